@@ -0,0 +1,481 @@
+package m.pat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Binary cache of parsed programs (.shankc files), so an unchanged source file doesn't
+ * have to be lexed and parsed again.
+ * A cache file starts with a header holding the compiler version and the SHA-256 of the
+ * source it was built from, and is only used when both match. By default the cache is
+ * written next to the source (a.shank -> a.shank.shankc), -Dshank.cache.dir=dir puts it
+ * in dir named by the source hash instead, and -Dshank.cache=off turns it off.
+ * Bodies that have been parsed are stored as nodes, the ones that haven't as their tokens,
+ * so a function loaded from the cache is still only parsed when it's first called.
+ */
+final class AstCache {
+
+    /**
+     * Bump whenever the nodes the Parser builds, or the way they are written here, change.
+     */
+    static final String COMPILER_VERSION = "shank-1.0/ast-2";
+
+    private static final int MAGIC = 0x53484B43; // SHKC
+    private static final boolean ENABLED = !"off".equalsIgnoreCase(System.getProperty("shank.cache"));
+    private static final String CACHE_DIR = System.getProperty("shank.cache.dir");
+
+    // Node tags.
+    private static final byte NULL = 0;
+    private static final byte INTEGER = 1;
+    private static final byte FLOAT = 2;
+    private static final byte STRING = 3;
+    private static final byte CHARACTER = 4;
+    private static final byte BOOLEAN = 5;
+    private static final byte MATH_OP = 6;
+    private static final byte BOOLEAN_COMPARE = 7;
+    private static final byte VARIABLE_REFERENCE = 8;
+    private static final byte IF = 9;
+    private static final byte WHILE = 10;
+    private static final byte REPEAT = 11;
+    private static final byte FOR = 12;
+    private static final byte FUNCTION_CALL = 13;
+    private static final byte ASSIGNMENT = 14;
+
+    private static final MathOp[] MATH_OPS = MathOp.values();
+    private static final BooleanComparison[] COMPARISONS = BooleanComparison.values();
+    private static final Token.TokenType[] TOKEN_TYPES = Token.TokenType.values();
+
+    private AstCache(){}
+
+    /**
+     * Hashes a source file.
+     * @param source the source file
+     * @return the SHA-256 of the file
+     * @throws IOException if the file can't be read
+     */
+    static byte[] hash(Path source) throws IOException {
+        MessageDigest digest;
+        try{
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+        byte[] buffer = new byte[1 << 16];
+        try(InputStream in = Files.newInputStream(source)){
+            int read;
+            while((read = in.read(buffer)) > 0){
+                digest.update(buffer, 0, read);
+            }
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Loads the cached program for a source file.
+     * @param source the source file
+     * @param hash the hash of the source file, from {@link #hash(Path)}
+     * @return the cached program, or null if there isn't an up to date one
+     */
+    static ProgramNode load(Path source, byte[] hash){
+        if(!ENABLED) return null;
+        Path cacheFile = cacheFile(source, hash);
+        if(!Files.isRegularFile(cacheFile)) return null;
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cacheFile), 1 << 16))){
+            if(in.readInt() != MAGIC || !in.readUTF().equals(COMPILER_VERSION)) return null;
+            byte[] cachedHash = new byte[hash.length];
+            in.readFully(cachedHash);
+            if(!Arrays.equals(hash, cachedHash)) return null;
+            ProgramNode programNode = new Reader(in).program();
+            if(Trace.PARSER_INFO) Trace.log(Trace.Category.PARSER, "Loaded parsed program from " + cacheFile);
+            return programNode;
+        } catch (IOException | RuntimeException e) {
+            // A truncated or corrupt cache is just a miss, it gets rewritten.
+            if(Trace.PARSER_INFO) Trace.log(Trace.Category.PARSER, "Ignoring unreadable cache " + cacheFile + " (" + e + ")");
+            return null;
+        }
+    }
+
+    /**
+     * Writes the cache for a source file. Nothing is parsed for it, bodies that haven't been parsed yet
+     * are written as their tokens, so a syntax error in one is still only reported when it's called.
+     * @param source the source file
+     * @param hash the hash of the source file, from {@link #hash(Path)}
+     * @param programNode the program parsed from the source
+     */
+    static void store(Path source, byte[] hash, ProgramNode programNode){
+        if(!ENABLED) return;
+        Path cacheFile = cacheFile(source, hash);
+        Path temporary = null;
+        try{
+            Files.createDirectories(cacheFile.toAbsolutePath().getParent());
+            temporary = Files.createTempFile(cacheFile.toAbsolutePath().getParent(), cacheFile.getFileName().toString(), ".tmp");
+            try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))){
+                out.writeInt(MAGIC);
+                out.writeUTF(COMPILER_VERSION);
+                out.write(hash);
+                new Writer(out).program(programNode);
+            }
+            // Readers only ever see a whole file.
+            Files.move(temporary, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if(Trace.PARSER_INFO) Trace.log(Trace.Category.PARSER, "Wrote parsed program to " + cacheFile);
+        } catch (IOException e) {
+            // The cache is only an optimization, running the program doesn't depend on it.
+            if(Trace.PARSER_INFO) Trace.log(Trace.Category.PARSER, "Couldn't write cache " + cacheFile + " (" + e + ")");
+            try{
+                if(temporary != null) Files.deleteIfExists(temporary);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static Path cacheFile(Path source, byte[] hash){
+        if(CACHE_DIR != null){
+            StringBuilder name = new StringBuilder();
+            for(byte b : hash){
+                name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return Path.of(CACHE_DIR, name + ".shankc");
+        }
+        return source.resolveSibling(source.getFileName() + ".shankc");
+    }
+
+    /**
+     * Writes nodes depth first, each one as a tag followed by its fields.
+     * Names are written once and then referred to by index, and ints are variable length.
+     */
+    private static final class Writer {
+        private final DataOutputStream out;
+        private final HashMap<String, Integer> strings = new HashMap<>();
+
+        Writer(DataOutputStream out){
+            this.out = out;
+        }
+
+        void program(ProgramNode programNode) throws IOException {
+            // The tokens of the bodies not parsed yet go first, all in one buffer.
+            int tokenCount = 0;
+            for(FunctionNode functionNode : programNode.getFunctions().values()){
+                if(!functionNode.isParsed()) tokenCount += functionNode.getBodyEnd() - functionNode.getBodyStart();
+            }
+            varInt(tokenCount);
+            for(FunctionNode functionNode : programNode.getFunctions().values()){
+                if(functionNode.isParsed()) continue;
+                TokenBuffer tokens = functionNode.getBodyTokens();
+                for(int i = functionNode.getBodyStart(); i < functionNode.getBodyEnd(); i++){
+                    token(tokens, i);
+                }
+            }
+            // Only the last function with a name is in the ProgramNode, so order doesn't matter.
+            varInt(programNode.getFunctions().size());
+            int bodyStart = 0;
+            for(FunctionNode functionNode : programNode.getFunctions().values()){
+                string(functionNode.getName());
+                variables(functionNode.getParameters());
+                out.writeBoolean(functionNode.isParsed());
+                if(functionNode.isParsed()){
+                    variables(functionNode.getConstAndVariables());
+                    statements(functionNode.getStatements());
+                } else {
+                    // Where the body is in the buffer of tokens.
+                    int bodyEnd = bodyStart + functionNode.getBodyEnd() - functionNode.getBodyStart();
+                    varInt(bodyStart);
+                    varInt(bodyEnd);
+                    bodyStart = bodyEnd;
+                }
+            }
+        }
+
+        private void token(TokenBuffer tokens, int index) throws IOException {
+            out.writeByte(tokens.type(index).ordinal());
+            varInt(tokens.line(index));
+            out.writeBoolean(tokens.hasText(index));
+            if(tokens.hasText(index)) string(tokens.text(index));
+        }
+
+        private void variables(Collection<VariableNode> variables) throws IOException {
+            varInt(variables.size());
+            for(VariableNode variable : variables){
+                string(variable.getName());
+                node(variable.getType());
+                out.writeBoolean(variable.isConstant());
+                out.writeBoolean(variable.isVar());
+            }
+        }
+
+        private void statements(Collection<StatementNode> statements) throws IOException {
+            if(statements == null){
+                varInt(-1);
+                return;
+            }
+            varInt(statements.size());
+            for(StatementNode statement : statements){
+                node(statement);
+            }
+        }
+
+        private void node(Node node) throws IOException {
+            if(node == null){
+                out.writeByte(NULL);
+            } else if(node instanceof IntegerNode integerNode){
+                out.writeByte(INTEGER);
+                varInt(integerNode.getValue());
+                varInt(integerNode.getFromRange());
+                varInt(integerNode.getToRange());
+            } else if(node instanceof FloatNode floatNode){
+                out.writeByte(FLOAT);
+                out.writeFloat(floatNode.getValue());
+                out.writeFloat(floatNode.getFromRange());
+                out.writeFloat(floatNode.getToRange());
+            } else if(node instanceof StringNode stringNode){
+                out.writeByte(STRING);
+                string(stringNode.getValue());
+                varInt(stringNode.getFromRange());
+                varInt(stringNode.getToRange());
+            } else if(node instanceof CharacterNode characterNode){
+                out.writeByte(CHARACTER);
+                out.writeChar(characterNode.getValue());
+            } else if(node instanceof BooleanNode booleanNode){
+                out.writeByte(BOOLEAN);
+                out.writeBoolean(booleanNode.getValue());
+            } else if(node instanceof MathOpNode mathOp){
+                out.writeByte(MATH_OP);
+                out.writeByte(mathOp.getOperation().ordinal());
+                node(mathOp.getLeft());
+                node(mathOp.getRight());
+            } else if(node instanceof BooleanCompareNode compare){
+                out.writeByte(BOOLEAN_COMPARE);
+                out.writeByte(compare.getComparison().ordinal());
+                node(compare.getLeft());
+                node(compare.getRight());
+            } else if(node instanceof VariableReferenceNode varRef){
+                out.writeByte(VARIABLE_REFERENCE);
+                string(varRef.getName());
+                node(varRef.getIndex());
+            } else if(node instanceof IfNode ifNode){
+                out.writeByte(IF);
+                node(ifNode.getCondition());
+                statements(ifNode.getStatements());
+                node(ifNode.next());
+            } else if(node instanceof WhileNode whileNode){
+                out.writeByte(WHILE);
+                node(whileNode.getCondition());
+                statements(whileNode.getStatements());
+            } else if(node instanceof RepeatNode repeatNode){
+                out.writeByte(REPEAT);
+                node(repeatNode.getCondition());
+                statements(repeatNode.getStatements());
+            } else if(node instanceof ForNode forNode){
+                out.writeByte(FOR);
+                node(forNode.getVarReference());
+                node(forNode.getFrom());
+                node(forNode.getTo());
+                statements(forNode.getStatements());
+            } else if(node instanceof FunctionCallNode call){
+                out.writeByte(FUNCTION_CALL);
+                string(call.getName());
+                varInt(call.getParameters().size());
+                for(ParameterNode parameter : call.getParameters()){
+                    out.writeBoolean(parameter.isVar());
+                    node(parameter.isVar() ? parameter.getVariableRef() : parameter.getNode());
+                }
+            } else if(node instanceof AssignmentNode assignment){
+                out.writeByte(ASSIGNMENT);
+                node(assignment.getTarget());
+                node(assignment.getValue());
+            } else {
+                throw new IOException("Can't cache " + node);
+            }
+        }
+
+        /**
+         * Writes an int in as few bytes as its size needs, 7 bits at a time.
+         * Zigzag encoded so small negative numbers stay small too.
+         */
+        private void varInt(int value) throws IOException {
+            int zigzag = (value << 1) ^ (value >> 31);
+            while((zigzag & ~0x7F) != 0){
+                out.writeByte((zigzag & 0x7F) | 0x80);
+                zigzag >>>= 7;
+            }
+            out.writeByte(zigzag);
+        }
+
+        private void string(String string) throws IOException {
+            Integer index = strings.get(string);
+            if(index != null){
+                varInt(index);
+                return;
+            }
+            strings.put(string, strings.size());
+            // Strings can be longer than writeUTF allows.
+            varInt(-1);
+            varInt(string.length());
+            out.writeChars(string);
+        }
+    }
+
+    /**
+     * Reads back what the Writer wrote.
+     */
+    private static final class Reader {
+        private final DataInputStream in;
+        private final List<String> strings = new ArrayList<>();
+
+        Reader(DataInputStream in){
+            this.in = in;
+        }
+
+        ProgramNode program() throws IOException {
+            int tokenCount = varInt();
+            TokenBuffer tokens = new TokenBuffer();
+            for(int i = 0; i < tokenCount; i++){
+                token(tokens);
+            }
+            int count = varInt();
+            HashMap<String, FunctionNode> functions = new HashMap<>();
+            for(int i = 0; i < count; i++){
+                String name = string();
+                Collection<VariableNode> parameters = variables();
+                if(in.readBoolean()){
+                    Collection<VariableNode> constAndVariables = variables();
+                    functions.put(name, new FunctionNode(name, parameters, constAndVariables, statements()));
+                } else {
+                    functions.put(name, new FunctionNode(name, parameters, tokens, varInt(), varInt()));
+                }
+            }
+            return new ProgramNode(functions);
+        }
+
+        private void token(TokenBuffer tokens) throws IOException {
+            Token.TokenType type = TOKEN_TYPES[in.readUnsignedByte()];
+            int line = varInt();
+            if(in.readBoolean()){
+                String text = string();
+                tokens.add(type, text, 0, text.length(), line);
+            } else {
+                tokens.add(type, line);
+            }
+        }
+
+        private Collection<VariableNode> variables() throws IOException {
+            int count = varInt();
+            Collection<VariableNode> variables = new ArrayList<>(count);
+            for(int i = 0; i < count; i++){
+                String name = string();
+                VariableNode variable = new VariableNode(node(), name, in.readBoolean());
+                variable.setVar(in.readBoolean());
+                variables.add(variable);
+            }
+            return variables;
+        }
+
+        private List<StatementNode> statements() throws IOException {
+            int count = varInt();
+            if(count < 0) return null;
+            List<StatementNode> statements = new ArrayList<>(count);
+            for(int i = 0; i < count; i++){
+                statements.add((StatementNode) node());
+            }
+            return statements;
+        }
+
+        private Node node() throws IOException {
+            byte tag = in.readByte();
+            switch(tag){
+                case NULL -> {
+                    return null;
+                }
+                case INTEGER -> {
+                    return new IntegerNode(varInt(), varInt(), varInt());
+                }
+                case FLOAT -> {
+                    return new FloatNode(in.readFloat(), in.readFloat(), in.readFloat());
+                }
+                case STRING -> {
+                    return new StringNode(string(), varInt(), varInt());
+                }
+                case CHARACTER -> {
+                    return new CharacterNode(in.readChar());
+                }
+                case BOOLEAN -> {
+                    return new BooleanNode(in.readBoolean());
+                }
+                case MATH_OP -> {
+                    return new MathOpNode(MATH_OPS[in.readByte()], node(), node());
+                }
+                case BOOLEAN_COMPARE -> {
+                    return new BooleanCompareNode(COMPARISONS[in.readByte()], node(), node());
+                }
+                case VARIABLE_REFERENCE -> {
+                    return new VariableReferenceNode(string(), node());
+                }
+                case IF -> {
+                    return new IfNode((BooleanCompareNode) node(), statements(), (IfNode) node());
+                }
+                case WHILE -> {
+                    return new WhileNode((BooleanCompareNode) node(), statements());
+                }
+                case REPEAT -> {
+                    return new RepeatNode((BooleanCompareNode) node(), statements());
+                }
+                case FOR -> {
+                    return new ForNode((VariableReferenceNode) node(), node(), node(), statements());
+                }
+                case FUNCTION_CALL -> {
+                    String name = string();
+                    int count = varInt();
+                    Collection<ParameterNode> parameters = new ArrayList<>(count);
+                    for(int i = 0; i < count; i++){
+                        boolean isVar = in.readBoolean();
+                        Node node = node();
+                        parameters.add(isVar ? new ParameterNode((VariableReferenceNode) node) : new ParameterNode(node));
+                    }
+                    return new FunctionCallNode(name, parameters);
+                }
+                case ASSIGNMENT -> {
+                    return new AssignmentNode((VariableReferenceNode) node(), node());
+                }
+                default -> throw new IOException("Unknown node tag " + tag);
+            }
+        }
+
+        private int varInt() throws IOException {
+            int zigzag = 0;
+            for(int shift = 0; shift < 35; shift += 7){
+                int b = in.readUnsignedByte();
+                zigzag |= (b & 0x7F) << shift;
+                if((b & 0x80) == 0) return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+            throw new IOException("Malformed number");
+        }
+
+        private String string() throws IOException {
+            int index = varInt();
+            if(index >= 0) return strings.get(index);
+            int length = varInt();
+            if(length < 0) throw new EOFException();
+            char[] chars = new char[length];
+            for(int i = 0; i < length; i++){
+                chars[i] = in.readChar();
+            }
+            String string = new String(chars);
+            strings.add(string);
+            return string;
+        }
+    }
+}
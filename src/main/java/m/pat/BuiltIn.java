@@ -1,14 +1,76 @@
 package m.pat;
 
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Random;
 import java.util.Scanner;
 
 abstract class BuiltIn extends FunctionNode {
 
+    // Every built-in by name, with its parameters so calls can be checked once by the TypeChecker.
+    private static final HashMap<String, BuiltIn> REGISTRY = new HashMap<>();
+
+    static {
+        register(new BuiltInRead("read", parameters(parameter("variable", null, true)), null, null));
+        register(new BuiltInWrite("write", parameters(parameter("value", null, false)), null, null));
+        register(new BuiltInLeft("left", parameters(parameter("someString", new StringNode(""), false),
+                parameter("length", new IntegerNode(0), false), parameter("resultString", new StringNode(""), true)), null, null));
+        register(new BuiltInRight("right", parameters(parameter("someString", new StringNode(""), false),
+                parameter("length", new IntegerNode(0), false), parameter("resultString", new StringNode(""), true)), null, null));
+        register(new BuiltInSubstring("substring", parameters(parameter("someString", new StringNode(""), false),
+                parameter("index", new IntegerNode(0), false), parameter("length", new IntegerNode(0), false),
+                parameter("resultString", new StringNode(""), true)), null, null));
+        register(new BuiltInSquareRoot("squareRoot", parameters(parameter("someFloat", new FloatNode(0.0f), false),
+                parameter("result", new FloatNode(0.0f), true)), null, null));
+        register(new BuiltInGetRandom("getRandom", parameters(parameter("resultInteger", new IntegerNode(0), true)), null, null));
+        // The result comes first for the conversions.
+        register(new BuiltInIntegerToReal("integerToReal", parameters(parameter("result", new FloatNode(0.0f), true),
+                parameter("someInteger", new IntegerNode(0), false)), null, null));
+        register(new BuiltInRealToInteger("realToInteger", parameters(parameter("result", new IntegerNode(0), true),
+                parameter("someReal", new FloatNode(0.0f), false)), null, null));
+    }
+
     BuiltIn(String name, Collection<VariableNode> parameters, Collection<VariableNode> constAndVariables, Collection<StatementNode> statements) {
         super(name, parameters, constAndVariables, statements);
     }
+
+    /**
+     * Looks up a built-in by name.
+     * @param name the name of the built-in
+     * @return the built-in, or null if there isn't one with that name
+     */
+    static BuiltIn get(String name){
+        return REGISTRY.get(name);
+    }
+
+    private static void register(BuiltIn builtIn){
+        REGISTRY.put(builtIn.getName(), builtIn);
+    }
+
+    private static Collection<VariableNode> parameters(VariableNode... parameters){
+        return List.of(parameters);
+    }
+
+    /**
+     * A parameter of a built-in. The var ones are where the built-in puts its results, so they have to be
+     * passed a variable, with var or not.
+     * @param type the type node, or null for any type
+     */
+    private static VariableNode parameter(String name, Node type, boolean isVar){
+        VariableNode parameter = new VariableNode(type, name, false);
+        parameter.setVar(isVar);
+        return parameter;
+    }
+
+    /**
+     * Whether the built-in takes any number of parameters, each like its one declared parameter.
+     * @return true for read and write
+     */
+    boolean isVariadic(){
+        return false;
+    }
+
     abstract void execute(Collection<InterpreterDataType> dataTypes);
 }
 
@@ -20,6 +82,11 @@ class BuiltInRead extends BuiltIn {
         super(name, parameters, constAndVariables, statements);
     }
 
+    @Override
+    boolean isVariadic(){
+        return true;
+    }
+
     @Override
     void execute(Collection<InterpreterDataType> dataTypes) {
         Scanner inputScan = new Scanner(System.in);
@@ -47,6 +114,11 @@ class BuiltInWrite extends BuiltIn {
         super(name, parameters, constAndVariables, statements);
     }
 
+    @Override
+    boolean isVariadic(){
+        return true;
+    }
+
     @Override
     void execute(Collection<InterpreterDataType> dataTypes) {
         for(InterpreterDataType dataType : dataTypes){
@@ -82,10 +154,10 @@ class BuiltInLeft extends BuiltIn {
         if(dTypes[0] instanceof StringDataType){
             String input = dTypes[0].toString();
             if(dTypes[1] instanceof IntegerDataType){
-                int length = Integer.parseInt(dTypes[1].toString());
+                int length = ((IntegerDataType) dTypes[1]).getInteger();
                 result.append(input.substring(0, length));
                 if(dTypes[2] instanceof StringDataType){
-                    ((StringDataType) dTypes[2]).FromString(result.toString());
+                    ((StringDataType) dTypes[2]).setString(result.toString());
                 }
             }
         }
@@ -106,11 +178,11 @@ class BuiltInRight extends BuiltIn {
             String input = dTypes[0].toString();
             if(dTypes[1] instanceof IntegerDataType){
                 // Read length
-                int length = Integer.parseInt(dTypes[1].toString());
+                int length = ((IntegerDataType) dTypes[1]).getInteger();
                 result.append(input.substring(input.length() - length));
                 if(dTypes[2] instanceof StringDataType){
                     // Store result
-                    ((StringDataType) dTypes[2]).FromString(result.toString());
+                    ((StringDataType) dTypes[2]).setString(result.toString());
                 }
             }
         }
@@ -129,12 +201,12 @@ class BuiltInSubstring extends BuiltIn {
         if(dTypes[0] instanceof StringDataType){
             String input = dTypes[0].toString();
             if(dTypes[1] instanceof IntegerDataType){
-                int index = Integer.parseInt(dTypes[1].toString());
+                int index = ((IntegerDataType) dTypes[1]).getInteger();
                 if(dTypes[2] instanceof IntegerDataType){
-                    int length = Integer.parseInt(dTypes[2].toString());
+                    int length = ((IntegerDataType) dTypes[2]).getInteger();
                     if(dTypes[3] instanceof StringDataType resultVar){
                         result.append(input.substring(index, index + length));
-                        resultVar.FromString(result.toString());
+                        resultVar.setString(result.toString());
                     }
                 }
             }
@@ -156,7 +228,7 @@ class BuiltInSquareRoot extends BuiltIn {
         if(dTypes[0] instanceof RealDataType){
             float sqrt = (float) Math.sqrt(((RealDataType) dTypes[0]).getReal());
             if(dTypes[1] instanceof RealDataType){
-                ((RealDataType) dTypes[1]).FromString(sqrt + "");
+                ((RealDataType) dTypes[1]).setReal(sqrt);
             } else {
                 System.err.println("Expected to find a Float Data Type for sqrt function.");
             }
@@ -177,7 +249,7 @@ class BuiltInGetRandom extends BuiltIn {
         Object[] dTypes = dataTypes.toArray();
         if(dTypes[0] instanceof IntegerDataType){
             Random random = new Random();
-            ((IntegerDataType) dTypes[0]).FromString(random.nextInt() + "");
+            ((IntegerDataType) dTypes[0]).setInteger(random.nextInt());
         }
     }
 }
@@ -193,7 +265,7 @@ class BuiltInIntegerToReal extends BuiltIn {
         Object[] dTypes = dataTypes.toArray();
         if(dTypes[0] instanceof RealDataType){
             if(dTypes[1] instanceof IntegerDataType){
-                ((RealDataType) dTypes[0]).FromString(dTypes[1].toString());
+                ((RealDataType) dTypes[0]).setReal(((IntegerDataType) dTypes[1]).getInteger());
             }
         }
     }
@@ -210,7 +282,8 @@ class BuiltInRealToInteger extends BuiltIn {
         Object[] dTypes = dataTypes.toArray();
         if(dTypes[0] instanceof IntegerDataType){
             if(dTypes[1] instanceof RealDataType){
-                ((IntegerDataType) dTypes[0]).FromString(dTypes[1].toString());
+                // Truncated, like a cast.
+                ((IntegerDataType) dTypes[0]).setInteger((int) ((RealDataType) dTypes[1]).getReal());
             }
         }
     }
@@ -0,0 +1,147 @@
+package m.pat;
+
+/**
+ * A function compiled by the BytecodeCompiler for the VirtualMachine, and the instruction set.
+ * The code is a flat int array of opcodes, each followed by its operands. Values are kept on two
+ * stacks: integers, characters, booleans (0 or 1) and reals (as their float bits) on the int stack,
+ * strings and IDTs on the object stack. The compiler knows the type of every expression from the
+ * TypeChecker, so every instruction works on one type and never has to check it.
+ * Variables stay IDTs in the frame, so var parameters can share the caller's IDT and built-ins
+ * can be passed theirs like in the Interpreter.
+ */
+final class Bytecode {
+
+    // Constants.
+    static final int ICONST = 0;      // value: push an int (or char, boolean, float bits)
+    static final int SCONST = 1;      // index: push a string from the constant pool
+
+    // Variables.
+    static final int LOAD_I = 2;      // slot: push an integer variable
+    static final int LOAD_F = 3;      // slot: push a real variable
+    static final int LOAD_C = 4;      // slot: push a character variable
+    static final int LOAD_B = 5;      // slot: push a boolean variable
+    static final int LOAD_S = 6;      // slot: push a string variable
+    static final int LOAD_REF = 7;    // slot: push the IDT of a variable itself
+    static final int STORE_I = 8;     // slot: pop into an integer variable
+    static final int STORE_F = 9;     // slot: pop into a real variable
+    static final int STORE_C = 10;    // slot: pop into a character variable
+    static final int STORE_B = 11;    // slot: pop into a boolean variable
+    static final int STORE_S = 12;    // slot: pop into a string variable
+    static final int INC = 13;        // slot: add one to an integer variable
+
+    // Math.
+    static final int IADD = 14;
+    static final int ISUB = 15;
+    static final int IMUL = 16;
+    static final int IDIV = 17;
+    static final int IMOD = 18;
+    static final int FADD = 19;
+    static final int FSUB = 20;
+    static final int FMUL = 21;
+    static final int FDIV = 22;
+    static final int CONCAT = 23;     // pop two strings, push them joined
+
+    // Comparisons, push 1 or 0.
+    static final int IEQ = 24;        // also characters and booleans
+    static final int INE = 25;
+    static final int ILT = 26;
+    static final int IGT = 27;
+    static final int ILE = 28;
+    static final int IGE = 29;
+    static final int FEQ = 30;
+    static final int FNE = 31;
+    static final int FLT = 32;
+    static final int FGT = 33;
+    static final int FLE = 34;
+    static final int FGE = 35;
+    static final int SEQ = 36;        // pop two strings
+    static final int SNE = 37;
+
+    // Conversions.
+    static final int I2S = 38;        // pop an int, push it as a string
+    static final int F2S = 39;
+    static final int C2S = 40;
+    static final int B2S = 41;
+    static final int BOX_I = 42;      // pop an int, push a new IntegerDataType of it
+    static final int BOX_F = 43;
+    static final int BOX_C = 44;
+    static final int BOX_B = 45;
+    static final int BOX_S = 46;      // pop a string, push a new StringDataType of it
+
+    // Control flow.
+    static final int JUMP = 47;           // target
+    static final int JUMP_IF_FALSE = 48;  // target: pop, jump if 0
+    static final int CALL = 49;           // index, count: call the Bytecode in the constant pool with count IDTs
+    static final int CALL_BUILTIN = 50;   // index, count: call the BuiltIn in the constant pool with count IDTs
+    static final int RETURN = 51;
+
+    final FunctionNode function;
+
+    // Set once the function has been compiled, the first time it's called.
+    int[] code;
+    Object[] constants;
+    int frameSize;
+    int intStackSize;
+    int objectStackSize;
+
+    // Calls plus loops gone around, until the function is JIT compiled.
+    int heat;
+    JitCompiler.CompiledFunction jitted;
+    boolean jitFailed;
+    // Whether calls have to check the var parameters aren't passed the same IDT before running jitted.
+    boolean jitChecksArguments;
+
+    Bytecode(FunctionNode function){
+        this.function = function;
+    }
+
+    boolean isCompiled(){
+        return code != null;
+    }
+
+    /**
+     * Disassembles the code, for tracing.
+     */
+    @Override
+    public String toString(){
+        if(!isCompiled())
+            return "Bytecode(" + function.getName() + ", not compiled)";
+        StringBuilder builder = new StringBuilder("Bytecode(" + function.getName() + ")");
+        int pc = 0;
+        while(pc < code.length){
+            int opcode = code[pc];
+            builder.append("\n  ").append(pc).append(": ").append(name(opcode));
+            int operands = operands(opcode);
+            for(int i = 1; i <= operands; i++){
+                builder.append(' ').append(code[pc + i]);
+            }
+            pc += operands + 1;
+        }
+        return builder.toString();
+    }
+
+    /**
+     * The number of operands that follow an opcode.
+     */
+    static int operands(int opcode){
+        return switch(opcode){
+            case CALL, CALL_BUILTIN -> 2;
+            case ICONST, SCONST, LOAD_I, LOAD_F, LOAD_C, LOAD_B, LOAD_S, LOAD_REF,
+                    STORE_I, STORE_F, STORE_C, STORE_B, STORE_S, INC, JUMP, JUMP_IF_FALSE -> 1;
+            default -> 0;
+        };
+    }
+
+    private static final String[] NAMES = {
+            "ICONST", "SCONST", "LOAD_I", "LOAD_F", "LOAD_C", "LOAD_B", "LOAD_S", "LOAD_REF",
+            "STORE_I", "STORE_F", "STORE_C", "STORE_B", "STORE_S", "INC",
+            "IADD", "ISUB", "IMUL", "IDIV", "IMOD", "FADD", "FSUB", "FMUL", "FDIV", "CONCAT",
+            "IEQ", "INE", "ILT", "IGT", "ILE", "IGE", "FEQ", "FNE", "FLT", "FGT", "FLE", "FGE", "SEQ", "SNE",
+            "I2S", "F2S", "C2S", "B2S", "BOX_I", "BOX_F", "BOX_C", "BOX_B", "BOX_S",
+            "JUMP", "JUMP_IF_FALSE", "CALL", "CALL_BUILTIN", "RETURN"
+    };
+
+    static String name(int opcode){
+        return opcode >= 0 && opcode < NAMES.length ? NAMES[opcode] : "?" + opcode;
+    }
+}
@@ -0,0 +1,356 @@
+package m.pat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Compiles a function into Bytecode for the VirtualMachine.
+ * The function has to have been parsed, resolved and type checked first, the compiler picks the
+ * instruction for each operation from the type specialized nodes and the declared types of the slots.
+ */
+final class BytecodeCompiler {
+
+    private final VirtualMachine vm;
+    private final List<TypeChecker.Type> slotTypes = new ArrayList<>();
+
+    private int[] code = new int[64];
+    private int length;
+    private final List<Object> constants = new ArrayList<>();
+    private final HashMap<Object, Integer> constantIndexes = new HashMap<>();
+
+    // Current and deepest depth of the two stacks.
+    private int intDepth, objectDepth;
+    private int intStackSize, objectStackSize;
+
+    private BytecodeCompiler(VirtualMachine vm){
+        this.vm = vm;
+    }
+
+    /**
+     * Compiles a function into its Bytecode.
+     * @param bytecode the Bytecode of a function that has been resolved and type checked
+     * @param vm the VM it's for, which has the Bytecode of the other functions
+     * @throws InterpreterErrorException if the function has a statement or expression it can't compile
+     */
+    static void compile(Bytecode bytecode, VirtualMachine vm) throws InterpreterErrorException {
+        BytecodeCompiler compiler = new BytecodeCompiler(vm);
+        // Same slot order as the Resolver, parameters first.
+        for(VariableNode parameter : bytecode.function.getParameters()){
+            compiler.slotTypes.add(TypeChecker.typeOf(parameter.getType()));
+        }
+        for(VariableNode constOrVar : bytecode.function.getConstAndVariables()){
+            compiler.slotTypes.add(TypeChecker.typeOf(constOrVar.getType()));
+        }
+        compiler.statements(bytecode.function.getStatements());
+        compiler.emit(Bytecode.RETURN);
+
+        bytecode.code = Arrays.copyOf(compiler.code, compiler.length);
+        bytecode.constants = compiler.constants.toArray();
+        bytecode.frameSize = compiler.slotTypes.size();
+        bytecode.intStackSize = compiler.intStackSize;
+        bytecode.objectStackSize = compiler.objectStackSize;
+        if(Trace.INTERPRETER_DEBUG) Trace.log(Trace.Category.INTERPRETER, "Compiled " + bytecode);
+    }
+
+    private void statements(Collection<StatementNode> statements) throws InterpreterErrorException {
+        if(statements == null) return;
+        for(StatementNode statement : statements){
+            if(statement instanceof IfNode ifNode){
+                ifNode(ifNode);
+            } else if(statement instanceof ForNode forNode){
+                forNode(forNode);
+            } else if(statement instanceof WhileNode whileNode){
+                int top = length;
+                expression(whileNode.getCondition());
+                int exit = jump(Bytecode.JUMP_IF_FALSE);
+                statements(whileNode.getStatements());
+                emit(Bytecode.JUMP, top);
+                patch(exit);
+            } else if(statement instanceof RepeatNode repeatNode){
+                // Statements run at least once, and repeat until the condition is satisfied.
+                int top = length;
+                statements(repeatNode.getStatements());
+                expression(repeatNode.getCondition());
+                emit(Bytecode.JUMP_IF_FALSE, top);
+                stack(-1, 0);
+            } else if(statement instanceof AssignmentNode assignment){
+                TypeChecker.Type type = expression(assignment.getValue());
+                store(type, assignment.getTarget().getSlot());
+            } else if(statement instanceof FunctionCallNode call){
+                functionCall(call);
+            }
+        }
+    }
+
+    private void ifNode(IfNode ifNode) throws InterpreterErrorException {
+        // Each block jumps past the rest of the chain when it's done, an else has no condition.
+        List<Integer> ends = new ArrayList<>();
+        for(IfNode node = ifNode; node != null; node = node.next()){
+            int next = -1;
+            if(node.getCondition() != null){
+                expression(node.getCondition());
+                next = jump(Bytecode.JUMP_IF_FALSE);
+            }
+            statements(node.getStatements());
+            if(node.next() != null) ends.add(jump(Bytecode.JUMP));
+            if(next >= 0) patch(next);
+        }
+        for(int end : ends){
+            patch(end);
+        }
+    }
+
+    private void forNode(ForNode forNode) throws InterpreterErrorException {
+        // The range is worked out once and counted in two hidden slots, like the Interpreter
+        // counts in a Java int, so the body changing the variable doesn't change the loop.
+        int counter = newSlot();
+        int to = newSlot();
+        expression(forNode.getFrom());
+        store(TypeChecker.Type.INTEGER, counter);
+        expression(forNode.getTo());
+        store(TypeChecker.Type.INTEGER, to);
+        int top = length;
+        emit(Bytecode.LOAD_I, counter);
+        emit(Bytecode.LOAD_I, to);
+        stack(2, 0);
+        emit(Bytecode.ILE);
+        stack(-1, 0);
+        int exit = jump(Bytecode.JUMP_IF_FALSE);
+        emit(Bytecode.LOAD_I, counter);
+        stack(1, 0);
+        store(TypeChecker.Type.INTEGER, forNode.getVarReference().getSlot());
+        statements(forNode.getStatements());
+        emit(Bytecode.INC, counter);
+        emit(Bytecode.JUMP, top);
+        patch(exit);
+    }
+
+    private void functionCall(FunctionCallNode call) throws InterpreterErrorException {
+        // Bound by the TypeChecker.
+        BuiltIn builtIn = call.getFunction() instanceof BuiltIn bound ? bound : null;
+        FunctionNode function = builtIn == null ? call.getFunction() : null;
+        int count = 0;
+        for(ParameterNode parameter : call.getParameters()){
+            if(parameter.isVar()){
+                emit(Bytecode.LOAD_REF, parameter.getVariableRef().getSlot());
+                stack(0, 1);
+            } else if(builtIn != null && parameter.getNode() instanceof VariableReferenceNode varRef){
+                // Built-ins get the variable itself, the same as in the Interpreter.
+                emit(Bytecode.LOAD_REF, varRef.getSlot());
+                stack(0, 1);
+            } else {
+                // A copy of the value, which the function owns.
+                box(expression(parameter.getNode()));
+            }
+            count++;
+        }
+        if(function != null){
+            emit(Bytecode.CALL, pool(vm.getBytecode(function)), count);
+        } else {
+            emit(Bytecode.CALL_BUILTIN, pool(builtIn), count);
+        }
+        stack(0, -count);
+    }
+
+    /**
+     * Compiles an expression, leaving its value on top of the stack for its type.
+     * @return the type of the expression
+     */
+    private TypeChecker.Type expression(Node node) throws InterpreterErrorException {
+        if(node instanceof IntegerNode integer){
+            constant(integer.getValue());
+            return TypeChecker.Type.INTEGER;
+        } else if(node instanceof FloatNode real){
+            constant(Float.floatToRawIntBits(real.getValue()));
+            return TypeChecker.Type.REAL;
+        } else if(node instanceof CharacterNode character){
+            constant(character.getValue());
+            return TypeChecker.Type.CHARACTER;
+        } else if(node instanceof BooleanNode bool){
+            constant(bool.getValue() ? 1 : 0);
+            return TypeChecker.Type.BOOLEAN;
+        } else if(node instanceof StringNode string){
+            emit(Bytecode.SCONST, pool(string.getValue()));
+            stack(0, 1);
+            return TypeChecker.Type.STRING;
+        } else if(node instanceof VariableReferenceNode varRef){
+            TypeChecker.Type type = slotTypes.get(varRef.getSlot());
+            load(type, varRef.getSlot());
+            return type;
+        } else if(node instanceof IntegerMathOpNode mathOp){
+            expression(mathOp.getLeft());
+            expression(mathOp.getRight());
+            emit(switch(mathOp.getOperation()){
+                case PLUS -> Bytecode.IADD;
+                case MINUS -> Bytecode.ISUB;
+                case TIMES -> Bytecode.IMUL;
+                case DIVIDE -> Bytecode.IDIV;
+                case MOD -> Bytecode.IMOD;
+            });
+            stack(-1, 0);
+            return TypeChecker.Type.INTEGER;
+        } else if(node instanceof RealMathOpNode mathOp){
+            expression(mathOp.getLeft());
+            expression(mathOp.getRight());
+            emit(switch(mathOp.getOperation()){
+                case PLUS -> Bytecode.FADD;
+                case MINUS -> Bytecode.FSUB;
+                case TIMES -> Bytecode.FMUL;
+                case DIVIDE -> Bytecode.FDIV;
+                case MOD -> throw new InterpreterErrorException("Invalid math operator.");
+            });
+            stack(-1, 0);
+            return TypeChecker.Type.REAL;
+        } else if(node instanceof ConcatenationNode concatenation){
+            string(expression(concatenation.getLeft()));
+            string(expression(concatenation.getRight()));
+            emit(Bytecode.CONCAT);
+            stack(0, -1);
+            return TypeChecker.Type.STRING;
+        } else if(node instanceof RealCompareNode compare){
+            expression(compare.getLeft());
+            expression(compare.getRight());
+            emit(Bytecode.FEQ + comparison(compare.getComparison()));
+            stack(-1, 0);
+            return TypeChecker.Type.BOOLEAN;
+        } else if(node instanceof StringEqualsNode compare){
+            expression(compare.getLeft());
+            expression(compare.getRight());
+            emit(compare.getComparison() == BooleanComparison.EQUALS ? Bytecode.SEQ : Bytecode.SNE);
+            stack(1, -2);
+            return TypeChecker.Type.BOOLEAN;
+        } else if(node instanceof IntegerCompareNode || node instanceof CharacterCompareNode || node instanceof BooleanEqualsNode){
+            // Characters and booleans are ints on the stack, so they compare the same way.
+            BooleanCompareNode compare = (BooleanCompareNode) node;
+            expression(compare.getLeft());
+            expression(compare.getRight());
+            emit(Bytecode.IEQ + comparison(compare.getComparison()));
+            stack(-1, 0);
+            return TypeChecker.Type.BOOLEAN;
+        }
+        throw new InterpreterErrorException("Invalid expression.");
+    }
+
+    /**
+     * The offset of a comparison from IEQ (or FEQ), the comparisons are in the same order for both.
+     */
+    private static int comparison(BooleanComparison comparison){
+        return switch(comparison){
+            case EQUALS -> 0;
+            case NOT_EQUALS -> 1;
+            case LESS_THAN -> 2;
+            case GREATER_THAN -> 3;
+            case LESS_OR_EQUAL -> 4;
+            case GREATER_OR_EQUAL -> 5;
+        };
+    }
+
+    private void constant(int value){
+        emit(Bytecode.ICONST, value);
+        stack(1, 0);
+    }
+
+    private void load(TypeChecker.Type type, int slot){
+        switch(type){
+            case INTEGER -> emit(Bytecode.LOAD_I, slot);
+            case REAL -> emit(Bytecode.LOAD_F, slot);
+            case CHARACTER -> emit(Bytecode.LOAD_C, slot);
+            case BOOLEAN -> emit(Bytecode.LOAD_B, slot);
+            case STRING -> emit(Bytecode.LOAD_S, slot);
+        }
+        if(type == TypeChecker.Type.STRING) stack(0, 1);
+        else stack(1, 0);
+    }
+
+    private void store(TypeChecker.Type type, int slot){
+        switch(type){
+            case INTEGER -> emit(Bytecode.STORE_I, slot);
+            case REAL -> emit(Bytecode.STORE_F, slot);
+            case CHARACTER -> emit(Bytecode.STORE_C, slot);
+            case BOOLEAN -> emit(Bytecode.STORE_B, slot);
+            case STRING -> emit(Bytecode.STORE_S, slot);
+        }
+        if(type == TypeChecker.Type.STRING) stack(0, -1);
+        else stack(-1, 0);
+    }
+
+    /**
+     * Turns the value on top of the stack into a new IDT on the object stack.
+     */
+    private void box(TypeChecker.Type type){
+        switch(type){
+            case INTEGER -> emit(Bytecode.BOX_I);
+            case REAL -> emit(Bytecode.BOX_F);
+            case CHARACTER -> emit(Bytecode.BOX_C);
+            case BOOLEAN -> emit(Bytecode.BOX_B);
+            case STRING -> emit(Bytecode.BOX_S);
+        }
+        if(type != TypeChecker.Type.STRING) stack(-1, 1);
+    }
+
+    /**
+     * Turns the value on top of the stack into a string, the way its IDT's toString() would.
+     */
+    private void string(TypeChecker.Type type){
+        switch(type){
+            case INTEGER -> emit(Bytecode.I2S);
+            case REAL -> emit(Bytecode.F2S);
+            case CHARACTER -> emit(Bytecode.C2S);
+            case BOOLEAN -> emit(Bytecode.B2S);
+            case STRING -> {
+                return;
+            }
+        }
+        stack(-1, 1);
+    }
+
+    private int newSlot(){
+        slotTypes.add(TypeChecker.Type.INTEGER);
+        return slotTypes.size() - 1;
+    }
+
+    private int pool(Object value){
+        Integer index = constantIndexes.get(value);
+        if(index == null){
+            index = constants.size();
+            constants.add(value);
+            constantIndexes.put(value, index);
+        }
+        return index;
+    }
+
+    /**
+     * Emits a jump to be patched later.
+     * @return the position of the jump, for patch()
+     */
+    private int jump(int opcode){
+        emit(opcode, -1);
+        if(opcode == Bytecode.JUMP_IF_FALSE) stack(-1, 0);
+        return length - 2;
+    }
+
+    /**
+     * Points a jump from jump() at the next instruction.
+     */
+    private void patch(int jump){
+        code[jump + 1] = length;
+    }
+
+    private void emit(int... instruction){
+        if(length + instruction.length > code.length)
+            code = Arrays.copyOf(code, code.length * 2);
+        for(int value : instruction){
+            code[length++] = value;
+        }
+    }
+
+    private void stack(int ints, int objects){
+        intDepth += ints;
+        objectDepth += objects;
+        intStackSize = Math.max(intStackSize, intDepth);
+        objectStackSize = Math.max(objectStackSize, objectDepth);
+    }
+}
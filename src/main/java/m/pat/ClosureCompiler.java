@@ -0,0 +1,480 @@
+package m.pat;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Compiles a function into a tree of lambdas the Interpreter runs instead of walking the AST.
+ * Each node becomes a lambda that has its children, slots and constants bound when it's compiled,
+ * and produces its value as the Java type the TypeChecker worked out for it. So running it makes
+ * no instanceof checks, looks nothing up by name and doesn't create an IDT for every value.
+ * The function has to have been parsed, resolved and type checked first.
+ */
+final class ClosureCompiler {
+
+    interface Statement {
+        void execute(InterpreterDataType[] frame) throws InterpreterErrorException;
+    }
+
+    interface IntegerValue {
+        int get(InterpreterDataType[] frame) throws InterpreterErrorException;
+    }
+
+    interface RealValue {
+        float get(InterpreterDataType[] frame) throws InterpreterErrorException;
+    }
+
+    interface CharacterValue {
+        char get(InterpreterDataType[] frame) throws InterpreterErrorException;
+    }
+
+    interface BooleanValue {
+        boolean get(InterpreterDataType[] frame) throws InterpreterErrorException;
+    }
+
+    interface StringValue {
+        String get(InterpreterDataType[] frame) throws InterpreterErrorException;
+    }
+
+    interface DataTypeValue {
+        InterpreterDataType get(InterpreterDataType[] frame) throws InterpreterErrorException;
+    }
+
+    private final Interpreter interpreter;
+    private final TypeChecker.Type[] slotTypes;
+
+    private ClosureCompiler(FunctionNode functionNode, Interpreter interpreter){
+        this.interpreter = interpreter;
+        this.slotTypes = new TypeChecker.Type[functionNode.getFrameSize()];
+    }
+
+    /**
+     * Compiles the body of a function.
+     * @param functionNode a function that has been resolved and type checked
+     * @param interpreter the interpreter that calls to other functions go through
+     * @return the body, to run with a frame the interpreter has set up
+     * @throws InterpreterErrorException if the function has a statement or expression it can't compile
+     */
+    static Statement compile(FunctionNode functionNode, Interpreter interpreter) throws InterpreterErrorException {
+        ClosureCompiler compiler = new ClosureCompiler(functionNode, interpreter);
+        // Same slot order as the Resolver, parameters first.
+        int slot = 0;
+        for(VariableNode parameter : functionNode.getParameters()){
+            compiler.slotTypes[slot++] = TypeChecker.typeOf(parameter.getType());
+        }
+        for(VariableNode constOrVar : functionNode.getConstAndVariables()){
+            compiler.slotTypes[slot++] = TypeChecker.typeOf(constOrVar.getType());
+        }
+        Statement body = compiler.block(functionNode.getStatements());
+        if(Trace.INTERPRETER_DEBUG) Trace.log(Trace.Category.INTERPRETER, "Compiled " + functionNode.getName() + " to closures");
+        return body;
+    }
+
+    private Statement block(Collection<StatementNode> statementNodes) throws InterpreterErrorException {
+        List<Statement> statements = new ArrayList<>();
+        if(statementNodes != null){
+            for(StatementNode statement : statementNodes){
+                statements.add(statement(statement));
+            }
+        }
+        // Small blocks don't need the loop.
+        switch(statements.size()){
+            case 0 -> {
+                return frame -> { };
+            }
+            case 1 -> {
+                return statements.get(0);
+            }
+            case 2 -> {
+                Statement first = statements.get(0), second = statements.get(1);
+                return frame -> {
+                    first.execute(frame);
+                    second.execute(frame);
+                };
+            }
+            default -> {
+                Statement[] array = statements.toArray(new Statement[0]);
+                return frame -> {
+                    for(Statement statement : array){
+                        statement.execute(frame);
+                    }
+                };
+            }
+        }
+    }
+
+    private Statement statement(StatementNode statement) throws InterpreterErrorException {
+        if(statement instanceof IfNode ifNode){
+            return ifNode(ifNode);
+        } else if(statement instanceof ForNode forNode){
+            int slot = forNode.getVarReference().getSlot();
+            IntegerValue from = integer(forNode.getFrom());
+            IntegerValue to = integer(forNode.getTo());
+            Statement body = block(forNode.getStatements());
+            // The range includes both ends.
+            return frame -> {
+                IntegerDataType counter = (IntegerDataType) frame[slot];
+                int fromRange = from.get(frame);
+                int toRange = to.get(frame);
+                for(int i = fromRange; i <= toRange; i++){
+                    counter.setInteger(i);
+                    body.execute(frame);
+                }
+            };
+        } else if(statement instanceof WhileNode whileNode){
+            BooleanValue condition = bool(whileNode.getCondition());
+            Statement body = block(whileNode.getStatements());
+            return frame -> {
+                while(condition.get(frame)){
+                    body.execute(frame);
+                }
+            };
+        } else if(statement instanceof RepeatNode repeatNode){
+            BooleanValue condition = bool(repeatNode.getCondition());
+            Statement body = block(repeatNode.getStatements());
+            return frame -> {
+                do{
+                    body.execute(frame);
+                } while(!condition.get(frame));
+            };
+        } else if(statement instanceof AssignmentNode assignment){
+            return assignment(assignment);
+        } else if(statement instanceof FunctionCallNode call){
+            return functionCall(call);
+        }
+        throw new InterpreterErrorException("Invalid statement " + statement + ".");
+    }
+
+    private Statement ifNode(IfNode ifNode) throws InterpreterErrorException {
+        List<BooleanValue> conditions = new ArrayList<>();
+        List<Statement> blocks = new ArrayList<>();
+        Statement otherwise = null;
+        for(IfNode node = ifNode; node != null; node = node.next()){
+            if(node.getCondition() == null){
+                otherwise = block(node.getStatements());
+                break;
+            }
+            conditions.add(bool(node.getCondition()));
+            blocks.add(block(node.getStatements()));
+        }
+        Statement elseBlock = otherwise;
+        if(conditions.size() == 1){
+            BooleanValue condition = conditions.get(0);
+            Statement block = blocks.get(0);
+            if(elseBlock == null){
+                return frame -> {
+                    if(condition.get(frame)) block.execute(frame);
+                };
+            }
+            return frame -> {
+                if(condition.get(frame)) block.execute(frame);
+                else elseBlock.execute(frame);
+            };
+        }
+        BooleanValue[] conditionArray = conditions.toArray(new BooleanValue[0]);
+        Statement[] blockArray = blocks.toArray(new Statement[0]);
+        return frame -> {
+            for(int i = 0; i < conditionArray.length; i++){
+                if(conditionArray[i].get(frame)){
+                    blockArray[i].execute(frame);
+                    return;
+                }
+            }
+            if(elseBlock != null) elseBlock.execute(frame);
+        };
+    }
+
+    private Statement assignment(AssignmentNode assignment) throws InterpreterErrorException {
+        int slot = assignment.getTarget().getSlot();
+        Node value = assignment.getValue();
+        switch(slotTypes[slot]){
+            case INTEGER -> {
+                IntegerValue integer = integer(value);
+                return frame -> ((IntegerDataType) frame[slot]).setInteger(integer.get(frame));
+            }
+            case REAL -> {
+                RealValue real = real(value);
+                return frame -> ((RealDataType) frame[slot]).setReal(real.get(frame));
+            }
+            case CHARACTER -> {
+                CharacterValue character = character(value);
+                return frame -> ((CharacterDataType) frame[slot]).setCharacter(character.get(frame));
+            }
+            case BOOLEAN -> {
+                BooleanValue bool = bool(value);
+                return frame -> ((BooleanDataType) frame[slot]).setBoolean(bool.get(frame));
+            }
+            default -> {
+                StringValue string = string(value);
+                return frame -> ((StringDataType) frame[slot]).setString(string.get(frame));
+            }
+        }
+    }
+
+    private Statement functionCall(FunctionCallNode call) throws InterpreterErrorException {
+        // Bound by the TypeChecker.
+        BuiltIn builtIn = call.getFunction() instanceof BuiltIn bound ? bound : null;
+        FunctionNode function = builtIn == null ? call.getFunction() : null;
+        List<DataTypeValue> arguments = new ArrayList<>();
+        for(ParameterNode parameter : call.getParameters()){
+            if(parameter.isVar()){
+                int slot = parameter.getVariableRef().getSlot();
+                arguments.add(frame -> frame[slot]);
+            } else if(parameter.getNode() instanceof VariableReferenceNode varRef){
+                // The variable itself, the same as Interpreter.expression() gives. Functions copy it.
+                int slot = varRef.getSlot();
+                arguments.add(frame -> frame[slot]);
+            } else {
+                arguments.add(dataType(parameter.getNode()));
+            }
+        }
+        DataTypeValue[] argumentArray = arguments.toArray(new DataTypeValue[0]);
+        if(function != null){
+            return frame -> interpreter.interpretFunction(function, evaluate(argumentArray, frame));
+        }
+        return frame -> builtIn.execute(evaluate(argumentArray, frame));
+    }
+
+    private static List<InterpreterDataType> evaluate(DataTypeValue[] arguments, InterpreterDataType[] frame) throws InterpreterErrorException {
+        List<InterpreterDataType> values = new ArrayList<>(arguments.length);
+        for(DataTypeValue argument : arguments){
+            values.add(argument.get(frame));
+        }
+        return values;
+    }
+
+    /**
+     * Compiles an expression to an IDT of its value, which the call it's passed to only reads. Literals
+     * give the IDT they were made with, small integers and characters and booleans a shared one.
+     */
+    private DataTypeValue dataType(Node node) throws InterpreterErrorException {
+        InterpreterDataType constant = constant(node);
+        if(constant != null) return frame -> constant;
+        switch(type(node)){
+            case INTEGER -> {
+                IntegerValue integer = integer(node);
+                return frame -> IntegerDataType.valueOf(integer.get(frame));
+            }
+            case REAL -> {
+                RealValue real = real(node);
+                return frame -> new RealDataType(real.get(frame));
+            }
+            case CHARACTER -> {
+                CharacterValue character = character(node);
+                return frame -> CharacterDataType.valueOf(character.get(frame));
+            }
+            case BOOLEAN -> {
+                BooleanValue bool = bool(node);
+                return frame -> BooleanDataType.valueOf(bool.get(frame));
+            }
+            default -> {
+                StringValue string = string(node);
+                return frame -> new StringDataType(string.get(frame));
+            }
+        }
+    }
+
+    private static InterpreterDataType constant(Node node){
+        if(node instanceof IntegerNode integerNode) return integerNode.getConstant();
+        if(node instanceof FloatNode floatNode) return floatNode.getConstant();
+        if(node instanceof StringNode stringNode) return stringNode.getConstant();
+        if(node instanceof CharacterNode characterNode) return characterNode.getConstant();
+        if(node instanceof BooleanNode booleanNode) return booleanNode.getConstant();
+        return null;
+    }
+
+    private IntegerValue integer(Node node) throws InterpreterErrorException {
+        if(node instanceof IntegerNode integer){
+            int value = integer.getValue();
+            return frame -> value;
+        } else if(node instanceof VariableReferenceNode varRef){
+            int slot = varRef.getSlot();
+            return frame -> ((IntegerDataType) frame[slot]).getInteger();
+        } else if(node instanceof IntegerMathOpNode mathOp){
+            IntegerValue left = integer(mathOp.getLeft());
+            IntegerValue right = integer(mathOp.getRight());
+            switch(mathOp.getOperation()){
+                case PLUS -> {
+                    return frame -> left.get(frame) + right.get(frame);
+                }
+                case MINUS -> {
+                    return frame -> left.get(frame) - right.get(frame);
+                }
+                case TIMES -> {
+                    return frame -> left.get(frame) * right.get(frame);
+                }
+                case DIVIDE -> {
+                    return frame -> {
+                        int l = left.get(frame), r = right.get(frame);
+                        if(r == 0)
+                            throw new InterpreterErrorException("Division by zero.");
+                        return l / r;
+                    };
+                }
+                case MOD -> {
+                    return frame -> {
+                        int l = left.get(frame), r = right.get(frame);
+                        if(r == 0)
+                            throw new InterpreterErrorException("Division by zero.");
+                        return l % r;
+                    };
+                }
+            }
+        }
+        throw new InterpreterErrorException("Invalid integer expression " + node + ".");
+    }
+
+    private RealValue real(Node node) throws InterpreterErrorException {
+        if(node instanceof FloatNode real){
+            float value = real.getValue();
+            return frame -> value;
+        } else if(node instanceof VariableReferenceNode varRef){
+            int slot = varRef.getSlot();
+            return frame -> ((RealDataType) frame[slot]).getReal();
+        } else if(node instanceof RealMathOpNode mathOp){
+            RealValue left = real(mathOp.getLeft());
+            RealValue right = real(mathOp.getRight());
+            switch(mathOp.getOperation()){
+                case PLUS -> {
+                    return frame -> left.get(frame) + right.get(frame);
+                }
+                case MINUS -> {
+                    return frame -> left.get(frame) - right.get(frame);
+                }
+                case TIMES -> {
+                    return frame -> left.get(frame) * right.get(frame);
+                }
+                case DIVIDE -> {
+                    return frame -> {
+                        float l = left.get(frame), r = right.get(frame);
+                        if(r == 0)
+                            throw new InterpreterErrorException("Division by zero.");
+                        return l / r;
+                    };
+                }
+            }
+        }
+        throw new InterpreterErrorException("Invalid real expression " + node + ".");
+    }
+
+    private CharacterValue character(Node node) throws InterpreterErrorException {
+        if(node instanceof CharacterNode character){
+            char value = character.getValue();
+            return frame -> value;
+        } else if(node instanceof VariableReferenceNode varRef){
+            int slot = varRef.getSlot();
+            return frame -> ((CharacterDataType) frame[slot]).getCharacter();
+        }
+        throw new InterpreterErrorException("Invalid character expression " + node + ".");
+    }
+
+    private StringValue string(Node node) throws InterpreterErrorException {
+        if(node instanceof StringNode string){
+            String value = string.getValue();
+            return frame -> value;
+        } else if(node instanceof VariableReferenceNode varRef){
+            int slot = varRef.getSlot();
+            return frame -> ((StringDataType) frame[slot]).getString();
+        } else if(node instanceof ConcatenationNode concatenation){
+            StringValue left = text(concatenation.getLeft());
+            StringValue right = text(concatenation.getRight());
+            return frame -> left.get(frame) + right.get(frame);
+        }
+        throw new InterpreterErrorException("Invalid string expression " + node + ".");
+    }
+
+    /**
+     * Compiles an expression of any type to a string, the way its IDT's toString() would.
+     */
+    private StringValue text(Node node) throws InterpreterErrorException {
+        switch(type(node)){
+            case INTEGER -> {
+                IntegerValue integer = integer(node);
+                return frame -> Integer.toString(integer.get(frame));
+            }
+            case REAL -> {
+                RealValue real = real(node);
+                return frame -> Float.toString(real.get(frame));
+            }
+            case CHARACTER -> {
+                CharacterValue character = character(node);
+                return frame -> String.valueOf(character.get(frame));
+            }
+            case BOOLEAN -> {
+                BooleanValue bool = bool(node);
+                return frame -> Boolean.toString(bool.get(frame));
+            }
+            default -> {
+                return string(node);
+            }
+        }
+    }
+
+    private BooleanValue bool(Node node) throws InterpreterErrorException {
+        if(node instanceof BooleanNode bool){
+            boolean value = bool.getValue();
+            return frame -> value;
+        } else if(node instanceof VariableReferenceNode varRef){
+            int slot = varRef.getSlot();
+            return frame -> ((BooleanDataType) frame[slot]).getBoolean();
+        } else if(node instanceof IntegerCompareNode compare){
+            IntegerValue left = integer(compare.getLeft());
+            IntegerValue right = integer(compare.getRight());
+            return switch(compare.getComparison()){
+                case EQUALS -> frame -> left.get(frame) == right.get(frame);
+                case NOT_EQUALS -> frame -> left.get(frame) != right.get(frame);
+                case LESS_THAN -> frame -> left.get(frame) < right.get(frame);
+                case GREATER_THAN -> frame -> left.get(frame) > right.get(frame);
+                case LESS_OR_EQUAL -> frame -> left.get(frame) <= right.get(frame);
+                case GREATER_OR_EQUAL -> frame -> left.get(frame) >= right.get(frame);
+            };
+        } else if(node instanceof RealCompareNode compare){
+            RealValue left = real(compare.getLeft());
+            RealValue right = real(compare.getRight());
+            return switch(compare.getComparison()){
+                case EQUALS -> frame -> left.get(frame) == right.get(frame);
+                case NOT_EQUALS -> frame -> left.get(frame) != right.get(frame);
+                case LESS_THAN -> frame -> left.get(frame) < right.get(frame);
+                case GREATER_THAN -> frame -> left.get(frame) > right.get(frame);
+                case LESS_OR_EQUAL -> frame -> left.get(frame) <= right.get(frame);
+                case GREATER_OR_EQUAL -> frame -> left.get(frame) >= right.get(frame);
+            };
+        } else if(node instanceof CharacterCompareNode compare){
+            CharacterValue left = character(compare.getLeft());
+            CharacterValue right = character(compare.getRight());
+            return switch(compare.getComparison()){
+                case EQUALS -> frame -> left.get(frame) == right.get(frame);
+                case NOT_EQUALS -> frame -> left.get(frame) != right.get(frame);
+                case LESS_THAN -> frame -> left.get(frame) < right.get(frame);
+                case GREATER_THAN -> frame -> left.get(frame) > right.get(frame);
+                case LESS_OR_EQUAL -> frame -> left.get(frame) <= right.get(frame);
+                case GREATER_OR_EQUAL -> frame -> left.get(frame) >= right.get(frame);
+            };
+        } else if(node instanceof StringEqualsNode compare){
+            StringValue left = string(compare.getLeft());
+            StringValue right = string(compare.getRight());
+            boolean equals = compare.getComparison() == BooleanComparison.EQUALS;
+            return frame -> left.get(frame).equals(right.get(frame)) == equals;
+        } else if(node instanceof BooleanEqualsNode compare){
+            BooleanValue left = bool(compare.getLeft());
+            BooleanValue right = bool(compare.getRight());
+            boolean equals = compare.getComparison() == BooleanComparison.EQUALS;
+            return frame -> (left.get(frame) == right.get(frame)) == equals;
+        }
+        throw new InterpreterErrorException("Invalid boolean expression " + node + ".");
+    }
+
+    /**
+     * The type of an expression the TypeChecker has rewritten.
+     */
+    private TypeChecker.Type type(Node node) throws InterpreterErrorException {
+        if(node instanceof IntegerNode || node instanceof IntegerMathOpNode) return TypeChecker.Type.INTEGER;
+        if(node instanceof FloatNode || node instanceof RealMathOpNode) return TypeChecker.Type.REAL;
+        if(node instanceof StringNode || node instanceof ConcatenationNode) return TypeChecker.Type.STRING;
+        if(node instanceof CharacterNode) return TypeChecker.Type.CHARACTER;
+        if(node instanceof BooleanNode || node instanceof BooleanCompareNode) return TypeChecker.Type.BOOLEAN;
+        if(node instanceof VariableReferenceNode varRef) return slotTypes[varRef.getSlot()];
+        throw new InterpreterErrorException("Invalid expression " + node + ".");
+    }
+}
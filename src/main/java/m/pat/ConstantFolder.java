@@ -0,0 +1,168 @@
+package m.pat;
+
+import java.util.Collection;
+
+/**
+ * Constant folding and propagation pass, run over a function after the TypeChecker and before it is
+ * first interpreted. References to constants are replaced with their value, and operations whose
+ * operands are all literals are replaced with their result, so a loop doesn't work out 2 + 3 again
+ * on every iteration. Operations that would fail, like dividing by zero, are left in place so the
+ * error still happens when (and only if) the statement runs.
+ */
+final class ConstantFolder {
+
+    // The value of the constant in each slot, null for variables and parameters.
+    private final Node[] constants;
+
+    private ConstantFolder(FunctionNode functionNode){
+        this.constants = new Node[functionNode.getFrameSize()];
+    }
+
+    /**
+     * Folds the constants in a resolved and type checked function.
+     * @param functionNode the function to fold
+     */
+    static void fold(FunctionNode functionNode){
+        ConstantFolder folder = new ConstantFolder(functionNode);
+        // Same slot order as the Resolver, parameters first.
+        int slot = functionNode.getParameters().size();
+        for(VariableNode constOrVar : functionNode.getConstAndVariables()){
+            if(constOrVar.isConstant()) folder.constants[slot] = constOrVar.getType();
+            slot++;
+        }
+        folder.statements(functionNode.getStatements());
+        if(Trace.INTERPRETER_DEBUG) Trace.log(Trace.Category.INTERPRETER, "Folded constants in " + functionNode.getName());
+    }
+
+    /**
+     * The value of a condition whose operands are both literals.
+     * @return TRUE or FALSE, or null if the condition isn't constant
+     */
+    static Boolean constantCondition(BooleanCompareNode condition){
+        Node left = condition.getLeft(), right = condition.getRight();
+        if(!isLiteral(left) || !isLiteral(right)) return null;
+        if(condition instanceof IntegerCompareNode compare)
+            return compare.apply(((IntegerNode) left).getValue(), ((IntegerNode) right).getValue());
+        if(condition instanceof RealCompareNode compare)
+            return compare.apply(((FloatNode) left).getValue(), ((FloatNode) right).getValue());
+        if(condition instanceof CharacterCompareNode compare)
+            return compare.apply(((CharacterNode) left).getValue(), ((CharacterNode) right).getValue());
+        if(condition instanceof StringEqualsNode compare)
+            return compare.apply(((StringNode) left).getValue(), ((StringNode) right).getValue());
+        if(condition instanceof BooleanEqualsNode compare)
+            return compare.apply(((BooleanNode) left).getValue(), ((BooleanNode) right).getValue());
+        return null;
+    }
+
+    static boolean isLiteral(Node node){
+        return node instanceof IntegerNode || node instanceof FloatNode || node instanceof StringNode
+                || node instanceof CharacterNode || node instanceof BooleanNode;
+    }
+
+    private void statements(Collection<StatementNode> statements){
+        if(statements == null) return;
+        for(StatementNode statement : statements){
+            if(statement instanceof IfNode ifNode){
+                for(IfNode node = ifNode; node != null; node = node.next()){
+                    if(node.getCondition() != null) node.setCondition(condition(node.getCondition()));
+                    statements(node.getStatements());
+                }
+            } else if(statement instanceof ForNode forNode){
+                forNode.setFrom(expression(forNode.getFrom()));
+                forNode.setTo(expression(forNode.getTo()));
+                statements(forNode.getStatements());
+            } else if(statement instanceof WhileNode whileNode){
+                whileNode.setCondition(condition(whileNode.getCondition()));
+                statements(whileNode.getStatements());
+            } else if(statement instanceof RepeatNode repeatNode){
+                repeatNode.setCondition(condition(repeatNode.getCondition()));
+                statements(repeatNode.getStatements());
+            } else if(statement instanceof AssignmentNode assignment){
+                assignment.setValue(expression(assignment.getValue()));
+            } else if(statement instanceof FunctionCallNode call){
+                for(ParameterNode parameter : call.getParameters()){
+                    if(!parameter.isVar()) parameter.setNode(expression(parameter.getNode()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Folds the operands of a condition, which stays a comparison node.
+     */
+    private BooleanCompareNode condition(BooleanCompareNode condition){
+        Node left = expression(condition.getLeft());
+        Node right = expression(condition.getRight());
+        if(left == condition.getLeft() && right == condition.getRight()) return condition;
+        return condition.withOperands(left, right);
+    }
+
+    /**
+     * Folds an expression.
+     * @return the expression itself if nothing in it could be folded, a new node otherwise
+     */
+    private Node expression(Node node){
+        if(node instanceof VariableReferenceNode varRef){
+            if(varRef.getIndex() != null){
+                varRef.setIndex(expression(varRef.getIndex()));
+                return varRef;
+            }
+            Node constant = constants[varRef.getSlot()];
+            return constant == null ? varRef : copy(constant);
+        } else if(node instanceof BooleanCompareNode compare){
+            BooleanCompareNode folded = condition(compare);
+            Boolean value = constantCondition(folded);
+            return value == null ? folded : new BooleanNode(value);
+        } else if(node instanceof MathOpNode mathOp){
+            Node left = expression(mathOp.getLeft());
+            Node right = expression(mathOp.getRight());
+            if(isLiteral(left) && isLiteral(right)){
+                Node value = apply(mathOp, left, right);
+                if(value != null) return value;
+            }
+            if(left == mathOp.getLeft() && right == mathOp.getRight()) return mathOp;
+            return mathOp.withOperands(left, right);
+        }
+        return node;
+    }
+
+    /**
+     * Works out an operation on two literals.
+     * @return the result, or null if the operation fails and has to be left for when it runs
+     */
+    private static Node apply(MathOpNode mathOp, Node left, Node right){
+        try{
+            if(mathOp instanceof IntegerMathOpNode integerMathOp)
+                return new IntegerNode(integerMathOp.apply(((IntegerNode) left).getValue(), ((IntegerNode) right).getValue()));
+            if(mathOp instanceof RealMathOpNode realMathOp)
+                return new FloatNode(realMathOp.apply(((FloatNode) left).getValue(), ((FloatNode) right).getValue()));
+        } catch(InterpreterErrorException e){
+            return null;
+        }
+        if(mathOp instanceof ConcatenationNode)
+            return new StringNode(text(left) + text(right));
+        return null;
+    }
+
+    /**
+     * A literal as the interpreter turns it into a string, see {@link InterpreterDataType#toString()}.
+     */
+    private static String text(Node literal){
+        if(literal instanceof IntegerNode integerNode) return integerNode.getConstant().toString();
+        if(literal instanceof FloatNode floatNode) return floatNode.getConstant().toString();
+        if(literal instanceof CharacterNode characterNode) return characterNode.getConstant().toString();
+        if(literal instanceof BooleanNode booleanNode) return booleanNode.getConstant().toString();
+        return ((StringNode) literal).getValue();
+    }
+
+    /**
+     * A new literal with the value of a constant, without the range of its declaration.
+     */
+    static Node copy(Node constant){
+        if(constant instanceof IntegerNode integerNode) return new IntegerNode(integerNode.getValue());
+        if(constant instanceof FloatNode floatNode) return new FloatNode(floatNode.getValue());
+        if(constant instanceof StringNode stringNode) return new StringNode(stringNode.getValue());
+        if(constant instanceof CharacterNode characterNode) return new CharacterNode(characterNode.getValue());
+        return new BooleanNode(((BooleanNode) constant).getValue());
+    }
+}
@@ -0,0 +1,213 @@
+package m.pat;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Dead code elimination. After a function has been constant folded, branches of ifs whose condition
+ * is always false (and the ones after a branch that is always true) are removed, along with locals
+ * that are never read and the assignments to them. Functions that are never called need nothing here,
+ * their bodies are never parsed.
+ */
+final class DeadCodeEliminator {
+
+    // Per slot, the number of times the variable is read and whether an assignment to it could fail.
+    private final int[] reads;
+    private final boolean[] failingWrites;
+    // Every reference in the body, each once, to move them to their new slots.
+    private final Set<VariableReferenceNode> references = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private DeadCodeEliminator(FunctionNode functionNode){
+        this.reads = new int[functionNode.getFrameSize()];
+        this.failingWrites = new boolean[functionNode.getFrameSize()];
+    }
+
+    /**
+     * Removes the dead branches and unread locals of a resolved, type checked and folded function,
+     * moving the variables left to new slots.
+     * @param functionNode the function
+     */
+    static void eliminate(FunctionNode functionNode){
+        DeadCodeEliminator eliminator = new DeadCodeEliminator(functionNode);
+        eliminator.branches(functionNode.getStatements());
+        eliminator.count(functionNode.getStatements());
+
+        // Parameters are passed by position, so only the constants and variables can go.
+        int parameters = functionNode.getParameters().size();
+        boolean[] dead = new boolean[functionNode.getFrameSize()];
+        int[] slots = new int[dead.length];
+        int frameSize = 0;
+        for(int slot = 0; slot < dead.length; slot++){
+            dead[slot] = slot >= parameters && eliminator.reads[slot] == 0 && !eliminator.failingWrites[slot];
+            slots[slot] = dead[slot] ? -1 : frameSize++;
+        }
+        if(frameSize == dead.length) return;
+
+        eliminator.removeAssignments(functionNode.getStatements(), dead);
+        Iterator<VariableNode> constOrVar = functionNode.getConstAndVariables().iterator();
+        for(int slot = parameters; constOrVar.hasNext(); slot++){
+            constOrVar.next();
+            if(dead[slot]) constOrVar.remove();
+        }
+        for(VariableReferenceNode varRef : eliminator.references){
+            varRef.setSlot(slots[varRef.getSlot()]);
+        }
+        if(Trace.INTERPRETER_DEBUG) Trace.log(Trace.Category.INTERPRETER, "Removed " + (dead.length - frameSize) + " unread locals from " + functionNode.getName());
+        functionNode.setFrameSize(frameSize);
+    }
+
+    /**
+     * Removes the branches of the ifs that can never run, and ifs left with none.
+     */
+    private void branches(Collection<StatementNode> statements){
+        if(statements == null) return;
+        Iterator<StatementNode> iterator = statements.iterator();
+        while(iterator.hasNext()){
+            StatementNode statement = iterator.next();
+            if(statement instanceof IfNode ifNode){
+                if(!branches(ifNode)) iterator.remove();
+            } else if(statement instanceof ForNode forNode){
+                branches(forNode.getStatements());
+            } else if(statement instanceof WhileNode whileNode){
+                branches(whileNode.getStatements());
+            } else if(statement instanceof RepeatNode repeatNode){
+                branches(repeatNode.getStatements());
+            }
+        }
+    }
+
+    /**
+     * Removes the dead branches of an if chain. The first branch left is moved into the first IfNode,
+     * which is the one in the statement list.
+     * @return false if no branch is left
+     */
+    private boolean branches(IfNode ifNode){
+        List<IfNode> kept = new ArrayList<>();
+        for(IfNode node = ifNode; node != null; node = node.next()){
+            Boolean condition = node.getCondition() == null ? Boolean.TRUE : ConstantFolder.constantCondition(node.getCondition());
+            if(Boolean.FALSE.equals(condition)) continue;
+            kept.add(node);
+            // Nothing after a branch that always runs can.
+            if(Boolean.TRUE.equals(condition)) break;
+        }
+        if(kept.isEmpty()) return false;
+        for(int i = 0; i < kept.size(); i++){
+            IfNode node = kept.get(i);
+            node.setNextIf(i + 1 < kept.size() ? kept.get(i + 1) : null);
+            branches(node.getStatements());
+        }
+        IfNode first = kept.get(0);
+        if(first != ifNode){
+            ifNode.setCondition(first.getCondition());
+            ifNode.setStatements(first.getStatements());
+            ifNode.setNextIf(first.next());
+        }
+        return true;
+    }
+
+    /**
+     * Counts the reads of every slot, and notes the ones assigned something that could fail.
+     */
+    private void count(Collection<StatementNode> statements){
+        if(statements == null) return;
+        for(StatementNode statement : statements){
+            if(statement instanceof IfNode ifNode){
+                for(IfNode node = ifNode; node != null; node = node.next()){
+                    read(node.getCondition());
+                    count(node.getStatements());
+                }
+            } else if(statement instanceof ForNode forNode){
+                // The loop reads its variable back every time around.
+                read(forNode.getVarReference());
+                read(forNode.getFrom());
+                read(forNode.getTo());
+                count(forNode.getStatements());
+            } else if(statement instanceof WhileNode whileNode){
+                read(whileNode.getCondition());
+                count(whileNode.getStatements());
+            } else if(statement instanceof RepeatNode repeatNode){
+                read(repeatNode.getCondition());
+                count(repeatNode.getStatements());
+            } else if(statement instanceof AssignmentNode assignment){
+                VariableReferenceNode target = assignment.getTarget();
+                references.add(target);
+                read(target.getIndex());
+                read(assignment.getValue());
+                if(target.getIndex() != null || canFail(assignment.getValue()))
+                    failingWrites[target.getSlot()] = true;
+            } else if(statement instanceof FunctionCallNode call){
+                // Functions and built-ins can read what they're passed, with var or not.
+                for(ParameterNode parameter : call.getParameters()){
+                    read(parameter.isVar() ? parameter.getVariableRef() : parameter.getNode());
+                }
+            }
+        }
+    }
+
+    private void read(Node node){
+        if(node instanceof VariableReferenceNode varRef){
+            references.add(varRef);
+            reads[varRef.getSlot()]++;
+            read(varRef.getIndex());
+        } else if(node instanceof MathOpNode mathOp){
+            read(mathOp.getLeft());
+            read(mathOp.getRight());
+        } else if(node instanceof BooleanCompareNode compare){
+            read(compare.getLeft());
+            read(compare.getRight());
+        }
+    }
+
+    /**
+     * Whether working out an expression could throw, in which case assigning it isn't dead even
+     * when the variable is never read.
+     */
+    private static boolean canFail(Node node){
+        if(node instanceof VariableReferenceNode varRef){
+            return varRef.getIndex() != null;
+        } else if(node instanceof MathOpNode mathOp){
+            MathOp operation = mathOp.getOperation();
+            if((operation == MathOp.DIVIDE || operation == MathOp.MOD) && !isNonZeroLiteral(mathOp.getRight()))
+                return true;
+            return canFail(mathOp.getLeft()) || canFail(mathOp.getRight());
+        } else if(node instanceof BooleanCompareNode compare){
+            return canFail(compare.getLeft()) || canFail(compare.getRight());
+        }
+        return false;
+    }
+
+    private static boolean isNonZeroLiteral(Node node){
+        return (node instanceof IntegerNode integerNode && integerNode.getValue() != 0)
+                || (node instanceof FloatNode floatNode && floatNode.getValue() != 0);
+    }
+
+    /**
+     * Removes the assignments to the dead slots.
+     */
+    private void removeAssignments(Collection<StatementNode> statements, boolean[] dead){
+        if(statements == null) return;
+        Iterator<StatementNode> iterator = statements.iterator();
+        while(iterator.hasNext()){
+            StatementNode statement = iterator.next();
+            if(statement instanceof IfNode ifNode){
+                for(IfNode node = ifNode; node != null; node = node.next()){
+                    removeAssignments(node.getStatements(), dead);
+                }
+            } else if(statement instanceof ForNode forNode){
+                removeAssignments(forNode.getStatements(), dead);
+            } else if(statement instanceof WhileNode whileNode){
+                removeAssignments(whileNode.getStatements(), dead);
+            } else if(statement instanceof RepeatNode repeatNode){
+                removeAssignments(repeatNode.getStatements(), dead);
+            } else if(statement instanceof AssignmentNode assignment && dead[assignment.getTarget().getSlot()]){
+                iterator.remove();
+                references.remove(assignment.getTarget());
+            }
+        }
+    }
+}
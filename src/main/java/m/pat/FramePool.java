@@ -0,0 +1,71 @@
+package m.pat;
+
+/**
+ * The frames of one function for the Interpreter, kept as a stack so they can be used again. A call
+ * takes the frame for its depth and gives it back when it returns, so a function that recurses n deep
+ * only ever has n frames made for it. A frame that's used again keeps its IDTs, only the locals are set
+ * back to their starting values; the var parameters are bound to the caller's IDTs by each call.
+ */
+final class FramePool {
+
+    private final FunctionNode functionNode;
+    private final int parameters;
+    // The starting value of each local, by slot from the first local.
+    private final InterpreterDataType[] locals;
+    // The frames made so far, the ones below depth are in use.
+    private InterpreterDataType[][] frames = new InterpreterDataType[4][];
+    private int created;
+    private int depth;
+
+    /**
+     * Makes the pool for a function, which has to have been prepared.
+     * @param functionNode the function
+     */
+    FramePool(FunctionNode functionNode){
+        this.functionNode = functionNode;
+        this.parameters = functionNode.getParameters().size();
+        this.locals = new InterpreterDataType[functionNode.getFrameSize() - parameters];
+        int slot = 0;
+        for(VariableNode constOrVar : functionNode.getConstAndVariables()){
+            locals[slot++] = constOrVar.getDataType();
+        }
+    }
+
+    /**
+     * Takes a frame for a call. The non-var parameters have IDTs of their own to copy the arguments into,
+     * the slots for var parameters have whatever was last bound to them.
+     * @return the frame, with the locals at their starting values
+     */
+    InterpreterDataType[] acquire(){
+        if(depth < created){
+            InterpreterDataType[] frame = frames[depth++];
+            for(int i = 0; i < locals.length; i++){
+                frame[parameters + i].copyFrom(locals[i]);
+            }
+            return frame;
+        }
+        InterpreterDataType[] frame = new InterpreterDataType[parameters + locals.length];
+        int slot = 0;
+        for(VariableNode parameter : functionNode.getParameters()){
+            frame[slot++] = parameter.isVar() ? null : parameter.getDataType();
+        }
+        for(VariableNode constOrVar : functionNode.getConstAndVariables()){
+            frame[slot++] = constOrVar.getDataType();
+        }
+        if(created == frames.length){
+            InterpreterDataType[][] grown = new InterpreterDataType[frames.length * 2][];
+            System.arraycopy(frames, 0, grown, 0, created);
+            frames = grown;
+        }
+        frames[created++] = frame;
+        depth++;
+        return frame;
+    }
+
+    /**
+     * Gives back the frame of the call that is returning, the last one taken.
+     */
+    void release(){
+        depth--;
+    }
+}
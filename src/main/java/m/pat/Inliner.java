@@ -0,0 +1,264 @@
+package m.pat;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Inlining pass, run over a function after constant folding and before dead code elimination. Calls to
+ * small functions that don't call any other user function (so can't recurse) are replaced with a copy of
+ * the function's body, saving the frame and the argument copies of a call. The parameters and locals of
+ * the inlined function get slots of their own in the caller, named function.variable:
+ * the parameters are assigned the arguments and the locals their starting value before the body, like a
+ * call would. References to var parameters are replaced with the variable passed, so the body changes it
+ * directly, which is what sharing the IDT does for a call.
+ * Turn it off with -Dshank.inline=off.
+ */
+final class Inliner {
+
+    static final boolean ENABLED = !"off".equalsIgnoreCase(System.getProperty("shank.inline"));
+
+    // The most statements, counting the ones nested in ifs and loops, a function can have to be inlined.
+    static final int MAX_STATEMENTS = 8;
+
+    private final FunctionNode caller;
+    private final ProgramNode program;
+    // The caller slots given to the parameters and locals of each inlined function, -1 for var parameters.
+    // Inlined bodies never call anything that could run another copy, so all call sites can share them.
+    private final HashMap<FunctionNode, int[]> frames = new HashMap<>();
+
+    private Inliner(FunctionNode caller, ProgramNode program){
+        this.caller = caller;
+        this.program = program;
+    }
+
+    /**
+     * Inlines the calls to small functions in a resolved, type checked and folded function. The functions
+     * called are prepared first, so what's inlined is already folded and has its own calls inlined.
+     * @param caller the function to inline calls in
+     * @param program the program, for the functions called
+     */
+    static void inline(FunctionNode caller, ProgramNode program){
+        if(!ENABLED) return;
+        Inliner inliner = new Inliner(caller, program);
+        inliner.statements(caller.getStatements());
+        if(Trace.INTERPRETER_DEBUG && !inliner.frames.isEmpty())
+            Trace.log(Trace.Category.INTERPRETER, "Inlined " + inliner.frames.size() + " functions into " + caller.getName());
+    }
+
+    private void statements(Collection<StatementNode> statements){
+        if(statements == null) return;
+        List<StatementNode> inlined = new ArrayList<>(statements.size());
+        boolean changed = false;
+        for(StatementNode statement : statements){
+            if(statement instanceof IfNode ifNode){
+                for(IfNode node = ifNode; node != null; node = node.next()){
+                    statements(node.getStatements());
+                }
+            } else if(statement instanceof ForNode forNode){
+                statements(forNode.getStatements());
+            } else if(statement instanceof WhileNode whileNode){
+                statements(whileNode.getStatements());
+            } else if(statement instanceof RepeatNode repeatNode){
+                statements(repeatNode.getStatements());
+            } else if(statement instanceof FunctionCallNode call){
+                FunctionNode callee = inlinable(call);
+                if(callee != null){
+                    inline(call, callee, inlined);
+                    changed = true;
+                    continue;
+                }
+            }
+            inlined.add(statement);
+        }
+        if(changed){
+            statements.clear();
+            statements.addAll(inlined);
+        }
+    }
+
+    /**
+     * The function a call can be replaced with the body of.
+     * @return the function, or null if the call has to stay a call
+     */
+    private FunctionNode inlinable(FunctionCallNode call){
+        FunctionNode callee = call.getFunction();
+        if(callee instanceof BuiltIn || callee == caller) return null;
+        for(ParameterNode parameter : call.getParameters()){
+            if(parameter.isVar() && parameter.getVariableRef().getIndex() != null) return null;
+        }
+        try{
+            Interpreter.prepare(callee, program);
+        } catch(InterpreterErrorException e){
+            // Left as a call, so the error is reported when (and if) it runs.
+            return null;
+        }
+        // A function that calls back into one still being prepared further up calls a user function,
+        // so it's never inlined half prepared.
+        return inlinable(callee.getStatements(), new int[]{MAX_STATEMENTS}) ? callee : null;
+    }
+
+    /**
+     * Whether statements are small enough to inline and only call built-ins.
+     * @param budget how many more statements are allowed, counted down
+     */
+    private boolean inlinable(Collection<StatementNode> statements, int[] budget){
+        if(statements == null) return true;
+        for(StatementNode statement : statements){
+            if(--budget[0] < 0) return false;
+            if(statement instanceof IfNode ifNode){
+                for(IfNode node = ifNode; node != null; node = node.next()){
+                    if(!inlinable(node.getStatements(), budget)) return false;
+                }
+            } else if(statement instanceof ForNode forNode){
+                if(!inlinable(forNode.getStatements(), budget)) return false;
+            } else if(statement instanceof WhileNode whileNode){
+                if(!inlinable(whileNode.getStatements(), budget)) return false;
+            } else if(statement instanceof RepeatNode repeatNode){
+                if(!inlinable(repeatNode.getStatements(), budget)) return false;
+            } else if(statement instanceof AssignmentNode assignment){
+                if(assignment.getTarget().getIndex() != null) return false;
+            } else if(statement instanceof FunctionCallNode call){
+                if(!(call.getFunction() instanceof BuiltIn)) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds the statements that do what a call does: bind the parameters, start the locals and run the body.
+     */
+    private void inline(FunctionCallNode call, FunctionNode callee, List<StatementNode> inlined){
+        int[] slots = frames.computeIfAbsent(callee, this::slots);
+        // What each slot of the callee refers to in the caller.
+        VariableReferenceNode[] references = new VariableReferenceNode[slots.length];
+        int slot = 0;
+        Iterator<ParameterNode> argument = call.getParameters().iterator();
+        for(VariableNode parameter : callee.getParameters()){
+            ParameterNode passed = argument.next();
+            if(parameter.isVar()){
+                references[slot] = passed.getVariableRef();
+            } else {
+                references[slot] = reference(parameter, slots[slot]);
+                inlined.add(new AssignmentNode(reference(parameter, slots[slot]), passed.getNode()));
+            }
+            slot++;
+        }
+        for(VariableNode constOrVar : callee.getConstAndVariables()){
+            references[slot] = reference(constOrVar, slots[slot]);
+            inlined.add(new AssignmentNode(reference(constOrVar, slots[slot]), ConstantFolder.copy(constOrVar.getType())));
+            slot++;
+        }
+        new Copier(references).statements(callee.getStatements(), inlined);
+    }
+
+    /**
+     * Gives the parameters (except var ones) and locals of a function slots at the end of the caller's frame.
+     */
+    private int[] slots(FunctionNode callee){
+        int[] slots = new int[callee.getFrameSize()];
+        int slot = 0;
+        for(VariableNode parameter : callee.getParameters()){
+            slots[slot++] = parameter.isVar() ? -1 : declare(callee, parameter);
+        }
+        for(VariableNode constOrVar : callee.getConstAndVariables()){
+            slots[slot++] = declare(callee, constOrVar);
+        }
+        return slots;
+    }
+
+    private int declare(FunctionNode callee, VariableNode variable){
+        // Not a constant even if it was one, the caller assigns it its value.
+        caller.getConstAndVariables().add(new VariableNode(variable.getType(), callee.getName() + "." + variable.getName(), false));
+        int slot = caller.getFrameSize();
+        caller.setFrameSize(slot + 1);
+        return slot;
+    }
+
+    private static VariableReferenceNode reference(VariableNode variable, int slot){
+        return reference(variable.getName(), slot);
+    }
+
+    private static VariableReferenceNode reference(String name, int slot){
+        VariableReferenceNode varRef = new VariableReferenceNode(name);
+        varRef.setSlot(slot);
+        return varRef;
+    }
+
+    /**
+     * Copies the body of an inlined function, moving its references to the caller's slots.
+     */
+    private static final class Copier {
+
+        private final VariableReferenceNode[] references;
+
+        Copier(VariableReferenceNode[] references){
+            this.references = references;
+        }
+
+        void statements(Collection<StatementNode> statements, Collection<StatementNode> copies){
+            for(StatementNode statement : statements){
+                copies.add(statement(statement));
+            }
+        }
+
+        private Collection<StatementNode> statements(Collection<StatementNode> statements){
+            Collection<StatementNode> copies = new ArrayList<>(statements.size());
+            statements(statements, copies);
+            return copies;
+        }
+
+        private StatementNode statement(StatementNode statement){
+            if(statement instanceof IfNode ifNode){
+                return ifNode(ifNode);
+            } else if(statement instanceof ForNode forNode){
+                return new ForNode(reference(forNode.getVarReference()), expression(forNode.getFrom()),
+                        expression(forNode.getTo()), statements(forNode.getStatements()));
+            } else if(statement instanceof WhileNode whileNode){
+                return new WhileNode(condition(whileNode.getCondition()), statements(whileNode.getStatements()));
+            } else if(statement instanceof RepeatNode repeatNode){
+                return new RepeatNode(condition(repeatNode.getCondition()), statements(repeatNode.getStatements()));
+            } else if(statement instanceof AssignmentNode assignment){
+                return new AssignmentNode(reference(assignment.getTarget()), expression(assignment.getValue()));
+            } else if(statement instanceof FunctionCallNode call){
+                Collection<ParameterNode> parameters = new ArrayList<>(call.getParameters().size());
+                for(ParameterNode parameter : call.getParameters()){
+                    parameters.add(parameter.isVar() ? new ParameterNode(reference(parameter.getVariableRef()))
+                            : new ParameterNode(expression(parameter.getNode())));
+                }
+                FunctionCallNode copy = new FunctionCallNode(call.getName(), parameters);
+                copy.setFunction(call.getFunction());
+                return copy;
+            }
+            return statement;
+        }
+
+        private IfNode ifNode(IfNode ifNode){
+            BooleanCompareNode condition = ifNode.getCondition() == null ? null : condition(ifNode.getCondition());
+            return new IfNode(condition, statements(ifNode.getStatements()), ifNode.next() == null ? null : ifNode(ifNode.next()));
+        }
+
+        private BooleanCompareNode condition(BooleanCompareNode condition){
+            return condition.withOperands(expression(condition.getLeft()), expression(condition.getRight()));
+        }
+
+        private VariableReferenceNode reference(VariableReferenceNode varRef){
+            VariableReferenceNode target = references[varRef.getSlot()];
+            return Inliner.reference(target.getName(), target.getSlot());
+        }
+
+        private Node expression(Node node){
+            if(node instanceof VariableReferenceNode varRef){
+                return reference(varRef);
+            } else if(node instanceof MathOpNode mathOp){
+                return mathOp.withOperands(expression(mathOp.getLeft()), expression(mathOp.getRight()));
+            } else if(node instanceof BooleanCompareNode compare){
+                return condition(compare);
+            }
+            // Literals are never changed, so the copy can share them.
+            return node;
+        }
+    }
+}
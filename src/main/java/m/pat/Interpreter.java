@@ -1,264 +1,370 @@
 package m.pat;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 
 public class Interpreter {
 
-    public void interpretFunction(FunctionNode functionNode) throws InterpreterErrorException {
-        HashMap<String, InterpreterDataType> localVariables = new HashMap<>();
-        // Create local variable IDT HashMap.
-        for(VariableNode constOrVar : functionNode.getConstAndVariables()){
-            String name = constOrVar.getName();
-            InterpreterDataType IDT = constOrVar.getDataType();
-            localVariables.put(name, IDT);
+    private final ProgramNode program;
+    // The frames of each function called, used again by later calls.
+    private final HashMap<FunctionNode, FramePool> framePools = new HashMap<>();
+    // The arguments of a built-in call, used again by the next one since built-ins never call back.
+    private final ArrayList<InterpreterDataType> builtInArguments = new ArrayList<>();
+    // Function bodies compiled by the ClosureCompiler, if they're being compiled.
+    private final HashMap<FunctionNode, ClosureCompiler.Statement> closures;
+
+    /**
+     * Instantiates the interpreter for a program from the Parser.
+     * @param program the program to interpret
+     */
+    Interpreter(ProgramNode program){
+        this(program, false);
+    }
+
+    /**
+     * Instantiates the interpreter for a program from the Parser.
+     * @param program the program to interpret
+     * @param compileClosures whether to compile each function into closures the first time it's
+     *                        called and run those, instead of walking its statements
+     */
+    Interpreter(ProgramNode program, boolean compileClosures){
+        this.program = program;
+        this.closures = compileClosures ? new HashMap<>() : null;
+    }
+
+    /**
+     * Gets a function ready to run the first time it's called: parses its body, resolves its
+     * variables to slots, type checks it, folds its constants, turns its self tail calls into a loop,
+     * inlines the small functions it calls and removes its dead code.
+     * Does nothing after the first time.
+     * @param functionNode the function
+     * @param program the program the function is in
+     * @throws InterpreterErrorException if the body doesn't parse, resolve or type check
+     */
+    static void prepare(FunctionNode functionNode, ProgramNode program) throws InterpreterErrorException {
+        if(functionNode.isTypeChecked()) return;
+        try{
+            functionNode.ensureParsed();
+        } catch (SyntaxErrorException e) {
+            throw new InterpreterErrorException("Syntax error in function " + functionNode.getName() + ": " + e.getMessage());
         }
+        Resolver.resolve(functionNode);
+        TypeChecker.check(functionNode, program);
+        ConstantFolder.fold(functionNode);
+        TailCallEliminator.eliminate(functionNode);
+        Inliner.inline(functionNode, program);
+        DeadCodeEliminator.eliminate(functionNode);
+    }
 
-        // Pass the local variables and function statements to interpretBlock()
-        interpretBlock(localVariables, functionNode.getStatements());
+    /**
+     * Interprets the program, starting at the start function.
+     * @throws InterpreterErrorException if there is no start function, or interpreting it fails
+     */
+    public void interpretProgram() throws InterpreterErrorException {
+        FunctionNode start = program.getFunction("start");
+        if(start == null)
+            throw new InterpreterErrorException("No start function was found.");
+        if(!start.getParameters().isEmpty())
+            throw new InterpreterErrorException("The start function can't have parameters.");
+        interpretFunction(start, new ArrayList<>());
+    }
 
+    /**
+     * Interprets a function. The body of the function is parsed, resolved and type checked the first
+     * time it's called. The frame comes from the function's FramePool, so calls reuse the IDTs of the
+     * calls before them. Parameters declared with var are bound to the caller's variable, the others get
+     * a copy of the value.
+     * @param functionNode the function to interpret
+     * @param arguments the values (or for var parameters, the variables) passed in, in order
+     * @throws InterpreterErrorException if the body doesn't parse or interpreting it fails
+     */
+    public void interpretFunction(FunctionNode functionNode, List<InterpreterDataType> arguments) throws InterpreterErrorException {
+        if(Trace.INTERPRETER_DEBUG) Trace.log(Trace.Category.INTERPRETER, "Calling " + functionNode.getName() + " with " + arguments);
+        FramePool pool = framePool(functionNode);
+        // The locals of a frame from the pool are already at their starting values.
+        InterpreterDataType[] frame = pool.acquire();
+        try{
+            // Bind the parameters, they take the first slots.
+            int slot = 0;
+            Iterator<InterpreterDataType> argument = arguments.iterator();
+            for(VariableNode parameter : functionNode.getParameters()){
+                // The caller was type checked, so the types match.
+                InterpreterDataType value = argument.next();
+                if(parameter.isVar()){
+                    frame[slot++] = value;
+                } else {
+                    frame[slot++].copyFrom(value);
+                }
+            }
+            run(functionNode, frame);
+        } finally {
+            pool.release();
+        }
+    }
+
+    /**
+     * The pool of frames for a function, preparing the function the first time it's called.
+     */
+    private FramePool framePool(FunctionNode functionNode) throws InterpreterErrorException {
+        FramePool pool = framePools.get(functionNode);
+        if(pool == null){
+            prepare(functionNode, program);
+            pool = new FramePool(functionNode);
+            framePools.put(functionNode, pool);
+        }
+        return pool;
     }
 
-    public void interpretBlock(HashMap<String, InterpreterDataType> localVariables, Collection<StatementNode> statements) throws InterpreterErrorException{
+    /**
+     * Runs the body of a function in a frame with its parameters bound.
+     */
+    private void run(FunctionNode functionNode, InterpreterDataType[] frame) throws InterpreterErrorException {
+        if(closures != null){
+            ClosureCompiler.Statement body = closures.get(functionNode);
+            if(body == null){
+                body = ClosureCompiler.compile(functionNode, this);
+                closures.put(functionNode, body);
+            }
+            body.execute(frame);
+            return;
+        }
+
+        // Pass the frame and function statements to interpretBlock()
+        interpretBlock(frame, functionNode.getStatements());
+    }
+
+    public void interpretBlock(InterpreterDataType[] frame, Collection<StatementNode> statements) throws InterpreterErrorException{
         for(StatementNode statement : statements){
             // StatementNode can be IfNode, ForNode, WhileNode, RepeatNode, AssignmentNode, FunctionCallNode or ParameterNode.
             if(statement instanceof IfNode){
-
+                ifNode((IfNode) statement, frame);
             } else if(statement instanceof ForNode){
-
+                forNode((ForNode) statement, frame);
             } else if(statement instanceof WhileNode){
-
+                whileNode((WhileNode) statement, frame);
             } else if(statement instanceof RepeatNode){
-
+                repeatNode((RepeatNode) statement, frame);
             } else if(statement instanceof AssignmentNode){
-
+                assignment((AssignmentNode) statement, frame);
             } else if(statement instanceof FunctionCallNode){
-
+                functionCall((FunctionCallNode) statement, frame);
             }
         }
     }
 
-    public InterpreterDataType expression(Node node, HashMap<String, InterpreterDataType> localVariables) throws InterpreterErrorException {
-        if(node instanceof IntegerNode ) {
-            return new IntegerDataType(((IntegerNode) node).getValue());
-        } else if(node instanceof FloatNode) {
-            return new RealDataType(((FloatNode) node).getValue());
-        } else if(node instanceof StringNode) {
-            return new StringDataType(((StringNode) node).getValue());
-        } else if(node instanceof VariableReferenceNode){
-            VariableReferenceNode varRef = (VariableReferenceNode) node;
-            if(localVariables.get(varRef.getName()) == null){
-                throw new InterpreterErrorException("Variable '" + varRef.getName() + "' does not exist or hasn't been declared.");
-            }
-            return localVariables.get(varRef);
-        } else if(node instanceof MathOpNode){
-            // Evaluate MathOpNode, both sides must be the same type.
-            MathOpNode mathOp = (MathOpNode) node;
-            InterpreterDataType left = expression(mathOp.getLeft(), localVariables);
-            InterpreterDataType right = expression(mathOp.getRight(), localVariables);
-            if(left instanceof IntegerDataType && right instanceof IntegerDataType){
-                int leftValue = ((IntegerDataType) left).getInteger();
-                int rightValue = ((IntegerDataType) right).getInteger();
-                switch(mathOp.getOperation()){
-                    case PLUS -> {
-                        return new IntegerDataType(leftValue + rightValue);
-                    }
-                    case MINUS -> {
-                        return new IntegerDataType(leftValue - rightValue);
-                    }
-                    case TIMES -> {
-                        return new IntegerDataType(leftValue * rightValue);
-                    }
-                    case DIVIDE -> {
-                        if(rightValue == 0)
-                            throw new InterpreterErrorException("Division by zero.");
-                        return new IntegerDataType(leftValue / rightValue);
-                    }
-                    case MOD -> {
-                        if(rightValue == 0)
-                            throw new InterpreterErrorException("Division by zero.");
-                        return new IntegerDataType(leftValue % rightValue);
-                    }
-                    default -> throw new InterpreterErrorException("Invalid math operator.");
-                }
-            } else if(left instanceof RealDataType && right instanceof RealDataType){
-                float leftValue = ((RealDataType) left).getReal();
-                float rightValue = ((RealDataType) right).getReal();
-                switch (mathOp.getOperation()) {
-                    case PLUS:
-                        return new RealDataType(leftValue + rightValue);
-                    case MINUS:
-                        return new RealDataType(leftValue - rightValue);
-                    case TIMES:
-                        return new RealDataType(leftValue * rightValue);
-                    case DIVIDE:
-                        if (rightValue == 0) {
-                            throw new InterpreterErrorException("Division by zero.");
-                        }
-                        return new RealDataType(leftValue / rightValue);
-                    default:
-                        throw new InterpreterErrorException("Invalid math operator.");
-                }
-            } else if(left instanceof StringDataType || right instanceof StringDataType){
-                String leftValue = left instanceof StringDataType ? ((StringDataType) left).getString() : left.toString();
-                String rightValue = right instanceof StringDataType ? ((StringDataType) right).getString() : right.toString();
-                return new StringDataType(leftValue + rightValue);
-            } else {
-                throw new InterpreterErrorException("Invalid expression");
+    /**
+     * Calls a user defined function or a built-in.
+     * @param call the function call
+     * @param frame the variables of the calling function
+     * @throws InterpreterErrorException if the function doesn't exist or the parameters don't match
+     */
+    public void functionCall(FunctionCallNode call, InterpreterDataType[] frame) throws InterpreterErrorException {
+        // The TypeChecker has already checked the parameters against the function, and bound the call to it.
+        ParameterNode[] parameters = call.getParameterArray();
+        if(call.getFunction() instanceof BuiltIn builtIn){
+            builtInArguments.clear();
+            for(ParameterNode parameter : parameters){
+                builtInArguments.add(parameter.isVar() ? variableReference(parameter.getVariableRef(), frame)
+                        : expression(parameter.getNode(), frame));
             }
-        } else {
-            throw new InterpreterErrorException("Invalid expression.");
+            builtIn.execute(builtInArguments);
+            return;
         }
-    }
-
-    public boolean booleanCompare(BooleanCompareNode node, HashMap<String, InterpreterDataType> localVariables) throws InterpreterErrorException {
-        InterpreterDataType leftIDT = expression(node.getLeft(), localVariables);
-        InterpreterDataType rightIDT = expression(node.getRight(), localVariables);
 
-        // Evaluate boolean comparison.
-        switch(node.getComparison()){
-            case EQUALS -> {
-                return leftIDT.equals(rightIDT);
-            }
-            case NOT_EQUALS -> {
-                return !leftIDT.equals(rightIDT);
-            }
-            case LESS_THAN -> {
-                // Verify that IDT is IntegerDataType or RealDataType.
-                if (leftIDT instanceof IntegerDataType && rightIDT instanceof IntegerDataType
-                        || leftIDT instanceof RealDataType && rightIDT instanceof RealDataType) {
-                    if (leftIDT instanceof IntegerDataType){ // Don't really need to check the right side since it was checked.
-                        return ((IntegerDataType) leftIDT).getInteger() < ((IntegerDataType) rightIDT).getInteger();
-                    } else {
-                        // leftIDT is a real.
-                        return ((RealDataType) leftIDT).getReal() < ((RealDataType) rightIDT).getReal();
-                    }
-                } else {
-                    throw new InterpreterErrorException("Less than comparison can only be done on integers or floats.");
-                }
-            }
-            case GREATER_THAN -> {
-                if (leftIDT instanceof IntegerDataType && rightIDT instanceof IntegerDataType
-                        || leftIDT instanceof RealDataType && rightIDT instanceof RealDataType) {
-                    if (leftIDT instanceof IntegerDataType){ // Don't really need to check the right side since it was checked.
-                        return ((IntegerDataType) leftIDT).getInteger() > ((IntegerDataType) rightIDT).getInteger();
-                    } else {
-                        // leftIDT is a real.
-                        return ((RealDataType) leftIDT).getReal() > ((RealDataType) rightIDT).getReal();
-                    }
+        FunctionNode functionNode = call.getFunction();
+        if(Trace.INTERPRETER_DEBUG) Trace.log(Trace.Category.INTERPRETER, "Calling " + functionNode.getName());
+        FramePool pool = framePool(functionNode);
+        InterpreterDataType[] calleeFrame = pool.acquire();
+        try{
+            // The arguments go straight into the parameter slots, expressions can't call anything so
+            // nothing else takes a frame from the pool while they're worked out.
+            for(int slot = 0; slot < parameters.length; slot++){
+                ParameterNode parameter = parameters[slot];
+                if(parameter.isVar()){
+                    calleeFrame[slot] = variableReference(parameter.getVariableRef(), frame);
                 } else {
-                    throw new InterpreterErrorException("Greater than comparison can only be done on integers or floats.");
+                    copy(parameter.getNode(), calleeFrame[slot], frame);
                 }
             }
-            case LESS_OR_EQUAL -> {
-                if (leftIDT instanceof IntegerDataType && rightIDT instanceof IntegerDataType
-                        || leftIDT instanceof RealDataType && rightIDT instanceof RealDataType) {
-                    if (leftIDT instanceof IntegerDataType){ // Don't really need to check the right side since it was checked.
-                        return ((IntegerDataType) leftIDT).getInteger() <= ((IntegerDataType) rightIDT).getInteger();
-                    } else {
-                        // leftIDT is a real.
-                        return ((RealDataType) leftIDT).getReal() <= ((RealDataType) rightIDT).getReal();
-                    }
-                } else {
-                    throw new InterpreterErrorException("Less than or equal comparison can only be done on integers or floats.");
-                }
-            }
-            case GREATER_OR_EQUAL -> {
-                if (leftIDT instanceof IntegerDataType && rightIDT instanceof IntegerDataType
-                        || leftIDT instanceof RealDataType && rightIDT instanceof RealDataType) {
-                    if (leftIDT instanceof IntegerDataType){ // Don't really need to check the right side since it was checked.
-                        return ((IntegerDataType) leftIDT).getInteger() >= ((IntegerDataType) rightIDT).getInteger();
-                    } else {
-                        // leftIDT is a real.
-                        return ((RealDataType) leftIDT).getReal() >= ((RealDataType) rightIDT).getReal();
-                    }
-                } else {
-                    throw new InterpreterErrorException("Greater than or equal comparison can only be done on integers or floats.");
-                }
-            }
-            default -> throw new InterpreterErrorException("Invalid boolean comparison operation.");
+            run(functionNode, calleeFrame);
+        } finally {
+            pool.release();
         }
     }
 
-    public InterpreterDataType variableReference(String name, HashMap<String, InterpreterDataType> localVariables) throws InterpreterErrorException {
-        InterpreterDataType varIDT = localVariables.get(name);
-        if(varIDT == null)
-            throw new InterpreterErrorException("Variable '" + name + "' does not exist or wasn't declared.");
-        else
-            return varIDT;
+    /**
+     * Works out an expression into an IDT, numbers and conditions without an IDT for the value.
+     * @param node the expression, the TypeChecker made sure it has the type of the IDT
+     * @param target the IDT to set
+     * @param frame the variables of the current call
+     */
+    private void copy(Node node, InterpreterDataType target, InterpreterDataType[] frame) throws InterpreterErrorException {
+        if(target instanceof IntegerDataType integer){
+            integer.setInteger(integerExpression(node, frame));
+        } else if(target instanceof RealDataType real){
+            real.setReal(realExpression(node, frame));
+        } else if(target instanceof BooleanDataType bool && node instanceof BooleanCompareNode condition){
+            bool.setBoolean(booleanCompare(condition, frame));
+        } else {
+            target.copyFrom(expression(node, frame));
+        }
     }
 
-    public void ifNode(IfNode node, HashMap<String, InterpreterDataType> localVariables) throws InterpreterErrorException {
-        //Collection<StatementNode> statements = node.getStatements();
-        IfNode localIfNode = null;
-        // Check that the condition for the IfNode is evaluated to be true.
-        // If the IfNode condition is false, must follow the chain of else blocks.
-
-        if(!node.hasNext()){
-            // No else blocks to evaluate.
-            if(booleanCompare(node.getCondition(), localVariables)){
-                interpretBlock(localVariables, node.getStatements());
-            }
+    /**
+     * Works out an expression as an IDT. A variable gives its own IDT, anything else may give one that is
+     * shared, so the IDT is only ever read or copied from.
+     * @param node the expression
+     * @param frame the variables of the current call
+     * @return the value
+     */
+    public InterpreterDataType expression(Node node, InterpreterDataType[] frame) throws InterpreterErrorException {
+        // Literals give the IDT they were made with, and the small values of operations a shared one.
+        if(node instanceof IntegerNode integerNode) {
+            return integerNode.getConstant();
+        } else if(node instanceof FloatNode floatNode) {
+            return floatNode.getConstant();
+        } else if(node instanceof StringNode stringNode) {
+            return stringNode.getConstant();
+        } else if(node instanceof CharacterNode characterNode) {
+            return characterNode.getConstant();
+        } else if(node instanceof BooleanNode booleanNode) {
+            return booleanNode.getConstant();
+        } else if(node instanceof BooleanCompareNode) {
+            return BooleanDataType.valueOf(booleanCompare((BooleanCompareNode) node, frame));
+        } else if(node instanceof VariableReferenceNode){
+            return variableReference((VariableReferenceNode) node, frame);
+        } else if(node instanceof IntegerMathOpNode mathOp){
+            return IntegerDataType.valueOf(integerExpression(mathOp, frame));
+        } else if(node instanceof RealMathOpNode mathOp){
+            return new RealDataType(realExpression(mathOp, frame));
+        } else if(node instanceof ConcatenationNode concatenation){
+            return new StringDataType(expression(concatenation.getLeft(), frame).toString() + expression(concatenation.getRight(), frame));
         } else {
-            // IfNode is linked.
-            while(node.hasNext() && (node = node.next()) != null){
-                // Evaluate boolean comparison condition.
-                if(booleanCompare(node.getCondition(), localVariables)){
-                    interpretBlock(localVariables, node.getStatements());
-                } else if(node.hasNext()){
-                    // Move on to the next IfNode!
-                    node = node.next();
-                }
-            }
+            throw new InterpreterErrorException("Invalid expression.");
         }
     }
 
-    public void forNode(ForNode node, HashMap<String, InterpreterDataType> localVariables) throws InterpreterErrorException {
-        if(node.getFrom() instanceof IntegerNode && node.getTo() instanceof IntegerNode){
-            int fromRange = ((IntegerNode) node.getFrom()).getFromRange();
-            int toRange = ((IntegerNode) node.getTo()).getToRange();
-            //FIXME: Evaluate whether we should use i <= toRange OR i < toRange
-            for(int i = fromRange; i <= toRange; i++){
-                interpretBlock(localVariables, node.getStatements());
-            }
+    public boolean booleanCompare(BooleanCompareNode node, InterpreterDataType[] frame) throws InterpreterErrorException {
+        // Evaluate boolean comparison, the TypeChecker picked the node for the operand types.
+        if(node instanceof IntegerCompareNode compare){
+            return compare.apply(integerExpression(compare.getLeft(), frame), integerExpression(compare.getRight(), frame));
+        } else if(node instanceof RealCompareNode compare){
+            return compare.apply(realExpression(compare.getLeft(), frame), realExpression(compare.getRight(), frame));
+        }
+
+        InterpreterDataType leftIDT = expression(node.getLeft(), frame);
+        InterpreterDataType rightIDT = expression(node.getRight(), frame);
+        if(node instanceof CharacterCompareNode compare){
+            return compare.apply(((CharacterDataType) leftIDT).getCharacter(), ((CharacterDataType) rightIDT).getCharacter());
+        } else if(node instanceof StringEqualsNode compare){
+            return compare.apply(((StringDataType) leftIDT).getString(), ((StringDataType) rightIDT).getString());
+        } else if(node instanceof BooleanEqualsNode compare){
+            return compare.apply(((BooleanDataType) leftIDT).getBoolean(), ((BooleanDataType) rightIDT).getBoolean());
+        }
+        throw new InterpreterErrorException("Invalid boolean comparison operation.");
+    }
 
-        } else if(node.getFrom() instanceof FloatNode && node.getTo() instanceof FloatNode){
-            float fromRange = ((FloatNode) node.getFrom()).getFromRange();
-            float toRange = ((FloatNode) node.getTo()).getToRange();
+    /**
+     * Works out an integer expression as an int. Literals, locals and operations are read straight
+     * into the int, the only IDTs are the ones already in the frame. What the expression is doesn't
+     * change once the function is prepared, so there's nothing to work out or remember at run time.
+     * A local that doesn't hold an integer falls back to expression().
+     * @param node an expression the TypeChecker found to be an integer
+     * @param frame the variables of the current call
+     * @return the value
+     */
+    public int integerExpression(Node node, InterpreterDataType[] frame) throws InterpreterErrorException {
+        if(node instanceof IntegerNode integerNode)
+            return integerNode.getValue();
+        if(node instanceof IntegerMathOpNode mathOp)
+            return mathOp.apply(integerExpression(mathOp.getLeft(), frame), integerExpression(mathOp.getRight(), frame));
+        if(node instanceof VariableReferenceNode varRef && varRef.getIndex() == null
+                && frame[varRef.getSlot()] instanceof IntegerDataType local)
+            return local.getInteger();
+        if(expression(node, frame) instanceof IntegerDataType value)
+            return value.getInteger();
+        throw new InterpreterErrorException("Expected an integer, found " + node + ".");
+    }
+
+    /**
+     * Works out a real expression as a float.
+     * @see #integerExpression(Node, InterpreterDataType[])
+     */
+    public float realExpression(Node node, InterpreterDataType[] frame) throws InterpreterErrorException {
+        if(node instanceof FloatNode floatNode)
+            return floatNode.getValue();
+        if(node instanceof RealMathOpNode mathOp)
+            return mathOp.apply(realExpression(mathOp.getLeft(), frame), realExpression(mathOp.getRight(), frame));
+        if(node instanceof VariableReferenceNode varRef && varRef.getIndex() == null
+                && frame[varRef.getSlot()] instanceof RealDataType local)
+            return local.getReal();
+        if(expression(node, frame) instanceof RealDataType value)
+            return value.getReal();
+        throw new InterpreterErrorException("Expected a real, found " + node + ".");
+    }
+
+    /**
+     * Looks up a variable in the frame, by the slot the Resolver gave the reference.
+     * @param varRef the variable reference
+     * @param frame the variables of the current call
+     * @return the IDT of the variable
+     */
+    public InterpreterDataType variableReference(VariableReferenceNode varRef, InterpreterDataType[] frame) throws InterpreterErrorException {
+        int slot = varRef.getSlot();
+        if(slot < 0)
+            throw new InterpreterErrorException("Variable '" + varRef.getName() + "' does not exist or wasn't declared.");
+        return frame[slot];
+    }
 
-            for(float i = fromRange; i <= toRange; i++){
-                interpretBlock(localVariables, node.getStatements());
+    public void ifNode(IfNode node, InterpreterDataType[] frame) throws InterpreterErrorException {
+        // Follow the chain of elsif/else blocks until a condition is true, an else has no condition.
+        while(node != null){
+            if(node.getCondition() == null || booleanCompare(node.getCondition(), frame)){
+                interpretBlock(frame, node.getStatements());
+                return;
             }
-        } else {
-            throw new InterpreterErrorException("Incompatible from -> to range in for loop, must be integer or float. ");
+            node = node.next();
         }
     }
 
-    public void repeatNode(RepeatNode node, HashMap<String, InterpreterDataType> localVariables) throws InterpreterErrorException {
-        // Only run & repeat statements if the RepeatNode condition is still satisfied.
-        while(booleanCompare(node.getCondition(), localVariables)){
-            interpretBlock(localVariables, node.getStatements());
+    public void forNode(ForNode node, InterpreterDataType[] frame) throws InterpreterErrorException {
+        // The TypeChecker made sure the variable and range are integers.
+        IntegerDataType counter = (IntegerDataType) variableReference(node.getVarReference(), frame);
+        int fromRange = integerExpression(node.getFrom(), frame);
+        int toRange = integerExpression(node.getTo(), frame);
+        // The range includes both ends.
+        for(int i = fromRange; i <= toRange; i++){
+            counter.setInteger(i);
+            interpretBlock(frame, node.getStatements());
         }
     }
 
-    public void whileNode(WhileNode node, HashMap<String, InterpreterDataType> localVariables) throws InterpreterErrorException {
-        while(booleanCompare(node.getCondition(), localVariables)){
-            interpretBlock(localVariables, node.getStatements());
+    public void repeatNode(RepeatNode node, InterpreterDataType[] frame) throws InterpreterErrorException {
+        // Statements run at least once, and repeat until the condition is satisfied.
+        do{
+            interpretBlock(frame, node.getStatements());
+        } while(!booleanCompare(node.getCondition(), frame));
+    }
+
+    public void whileNode(WhileNode node, InterpreterDataType[] frame) throws InterpreterErrorException {
+        while(booleanCompare(node.getCondition(), frame)){
+            interpretBlock(frame, node.getStatements());
         }
     }
 
-    public InterpreterDataType constantNodes(VariableNode node, HashMap<String, InterpreterDataType> localVariables) throws InterpreterErrorException {
+    public InterpreterDataType constantNodes(VariableNode node, InterpreterDataType[] frame) throws InterpreterErrorException {
         if(!node.isConstant())
             throw new InterpreterErrorException("Node '" + node + "' was not found to be constant.");
         else
             return node.getDataType();
     }
 
-    public void assignment(AssignmentNode assign, HashMap<String, InterpreterDataType> localVariables) throws InterpreterErrorException {
-        InterpreterDataType targetIDT = expression(assign.getTarget(), localVariables);
-        InterpreterDataType valueIDT = expression(assign.getValue(), localVariables);
-        // Assign the target IDT to value IDT.
-        targetIDT.FromString(valueIDT.toString());
+    public void assignment(AssignmentNode assign, InterpreterDataType[] frame) throws InterpreterErrorException {
+        // The TypeChecker made sure the value has the type of the target.
+        copy(assign.getValue(), expression(assign.getTarget(), frame), frame);
     }
 
 
@@ -5,10 +5,34 @@ import java.util.ArrayList;
 abstract class InterpreterDataType {
     public abstract String toString();
     public abstract void FromString(String input);
+
+    /**
+     * Sets this to the value of another IDT of the same type, without going through a string.
+     * @param other the IDT to copy, the TypeChecker made sure it has this one's type
+     */
+    public abstract void copyFrom(InterpreterDataType other);
+
+    /**
+     * Thrown by the setters of a shared IDT, one that valueOf() or a literal handed out. Anything that
+     * writes, like a built-in with a var parameter, should only ever have been given a variable.
+     */
+    static UnsupportedOperationException readOnly(InterpreterDataType idt){
+        return new UnsupportedOperationException("Can't set " + idt + ", it's a shared constant.");
+    }
 }
 
 class IntegerDataType extends InterpreterDataType {
 
+    // The integers valueOf() shares an IDT for.
+    private static final int CACHE_LOW = -128, CACHE_HIGH = 1023;
+    private static final IntegerDataType[] CACHE = new IntegerDataType[CACHE_HIGH - CACHE_LOW + 1];
+
+    static {
+        for(int i = 0; i < CACHE.length; i++){
+            CACHE[i] = new ReadOnly(CACHE_LOW + i);
+        }
+    }
+
     private int integer;
 
     IntegerDataType(){
@@ -19,18 +43,62 @@ class IntegerDataType extends InterpreterDataType {
         this.integer = integer;
     }
 
+    /**
+     * An IDT for an integer that is only going to be read, like a literal or a value passed to a call.
+     * Small integers all share the same IDT, so the one this gives is read only, its setters throw.
+     * @param integer the value
+     * @return the shared IDT for it, or a new read only one if it isn't small
+     */
+    static IntegerDataType valueOf(int integer){
+        if(integer >= CACHE_LOW && integer <= CACHE_HIGH) return CACHE[integer - CACHE_LOW];
+        return new ReadOnly(integer);
+    }
+
     public int getInteger(){
         return this.integer;
     }
 
+    public void setInteger(int integer){
+        this.integer = integer;
+    }
+
     @Override
     public String toString() {
-        return null;
+        return Integer.toString(integer);
     }
 
     @Override
     public void FromString(String input) {
+        input = input.trim();
+        // Reals are truncated, so a real read in for an integer still gives one.
+        this.integer = input.contains(".") ? (int) Float.parseFloat(input) : Integer.parseInt(input);
+    }
+
+    @Override
+    public void copyFrom(InterpreterDataType other) {
+        this.integer = ((IntegerDataType) other).integer;
+    }
 
+    // What valueOf() gives.
+    private static final class ReadOnly extends IntegerDataType {
+        ReadOnly(int integer){
+            super(integer);
+        }
+
+        @Override
+        public void setInteger(int integer){
+            throw readOnly(this);
+        }
+
+        @Override
+        public void FromString(String input){
+            throw readOnly(this);
+        }
+
+        @Override
+        public void copyFrom(InterpreterDataType other){
+            throw readOnly(this);
+        }
     }
 }
 
@@ -44,18 +112,58 @@ class RealDataType extends InterpreterDataType {
         this.real = real;
     }
 
+    /**
+     * An IDT for a real that is only going to be read, like a literal. It may be shared, so its setters throw.
+     * @param real the value
+     * @return a read only IDT for it
+     */
+    static RealDataType valueOf(float real){
+        return new ReadOnly(real);
+    }
+
     public float getReal(){
         return this.real;
     }
 
+    public void setReal(float real){
+        this.real = real;
+    }
+
     @Override
     public String toString() {
-        return null;
+        return Float.toString(real);
     }
 
     @Override
     public void FromString(String input) {
+        this.real = Float.parseFloat(input.trim());
+    }
 
+    @Override
+    public void copyFrom(InterpreterDataType other) {
+        this.real = ((RealDataType) other).real;
+    }
+
+    // What valueOf() gives.
+    private static final class ReadOnly extends RealDataType {
+        ReadOnly(float real){
+            super(real);
+        }
+
+        @Override
+        public void setReal(float real){
+            throw readOnly(this);
+        }
+
+        @Override
+        public void FromString(String input){
+            throw readOnly(this);
+        }
+
+        @Override
+        public void copyFrom(InterpreterDataType other){
+            throw readOnly(this);
+        }
     }
 }
 class ArrayDataType<T extends InterpreterDataType> extends InterpreterDataType {
@@ -72,13 +180,18 @@ class ArrayDataType<T extends InterpreterDataType> extends InterpreterDataType {
 
     @Override
     public String toString() {
-        return null;
+        return dataTypeList.toString();
     }
 
     @Override
     public void FromString(String input) {
 
     }
+
+    @Override
+    public void copyFrom(InterpreterDataType other) {
+
+    }
 }
 
 class StringDataType extends InterpreterDataType {
@@ -89,23 +202,72 @@ class StringDataType extends InterpreterDataType {
         this.string = string;
     }
 
+    /**
+     * An IDT for a string that is only going to be read, like a literal. It may be shared, so its setters throw.
+     * @param string the value
+     * @return a read only IDT for it
+     */
+    static StringDataType valueOf(String string){
+        return new ReadOnly(string);
+    }
+
     public String getString(){
         return this.string;
     }
 
+    public void setString(String string){
+        this.string = string;
+    }
+
     @Override
     public String toString() {
-        return null;
+        return string;
     }
 
     @Override
     public void FromString(String input) {
+        this.string = input;
+    }
+
+    @Override
+    public void copyFrom(InterpreterDataType other) {
+        this.string = ((StringDataType) other).string;
+    }
 
+    // What valueOf() gives.
+    private static final class ReadOnly extends StringDataType {
+        ReadOnly(String string){
+            super(string);
+        }
+
+        @Override
+        public void setString(String string){
+            throw readOnly(this);
+        }
+
+        @Override
+        public void FromString(String input){
+            throw readOnly(this);
+        }
+
+        @Override
+        public void copyFrom(InterpreterDataType other){
+            throw readOnly(this);
+        }
     }
 }
 
 class CharacterDataType extends InterpreterDataType {
 
+    // An IDT for each Latin-1 character, see valueOf().
+    private static final CharacterDataType[] CACHE = new CharacterDataType[256];
+
+    static {
+        for(int i = 0; i < CACHE.length; i++){
+            CACHE[i] = new ReadOnly((char) i);
+        }
+    }
+
     private char character;
 
     CharacterDataType(){}
@@ -114,30 +276,128 @@ class CharacterDataType extends InterpreterDataType {
         this.character = character;
     }
 
+    /**
+     * An IDT for a character that is only going to be read. Latin-1 characters all share the same IDT,
+     * so the one this gives is read only, its setters throw.
+     * @param character the value
+     * @return the shared IDT for it, or a new read only one past Latin-1
+     */
+    static CharacterDataType valueOf(char character){
+        if(character < CACHE.length) return CACHE[character];
+        return new ReadOnly(character);
+    }
+
     public char getCharacter(){
         return this.character;
     }
 
+    public void setCharacter(char character){
+        this.character = character;
+    }
+
     @Override
     public String toString() {
-        return null;
+        return String.valueOf(character);
     }
 
     @Override
     public void FromString(String input) {
+        this.character = input.isEmpty() ? '\0' : input.charAt(0);
+    }
+
+    @Override
+    public void copyFrom(InterpreterDataType other) {
+        this.character = ((CharacterDataType) other).character;
+    }
 
+    // What valueOf() gives.
+    private static final class ReadOnly extends CharacterDataType {
+        ReadOnly(char character){
+            super(character);
+        }
+
+        @Override
+        public void setCharacter(char character){
+            throw readOnly(this);
+        }
+
+        @Override
+        public void FromString(String input){
+            throw readOnly(this);
+        }
+
+        @Override
+        public void copyFrom(InterpreterDataType other){
+            throw readOnly(this);
+        }
     }
 }
 
 class BooleanDataType extends InterpreterDataType {
 
+    // The shared IDTs valueOf() gives.
+    private static final BooleanDataType TRUE = new ReadOnly(true);
+    private static final BooleanDataType FALSE = new ReadOnly(false);
+
+    private boolean bool;
+
+    BooleanDataType(){}
+
+    BooleanDataType(boolean bool){
+        this.bool = bool;
+    }
+
+    /**
+     * A shared IDT for a boolean that is only going to be read, so it's read only, its setters throw.
+     * @param bool the value
+     * @return the IDT for true or the one for false
+     */
+    static BooleanDataType valueOf(boolean bool){
+        return bool ? TRUE : FALSE;
+    }
+
+    public boolean getBoolean(){
+        return this.bool;
+    }
+
+    public void setBoolean(boolean bool){
+        this.bool = bool;
+    }
+
     @Override
     public String toString() {
-        return null;
+        return Boolean.toString(bool);
     }
 
     @Override
     public void FromString(String input) {
+        this.bool = Boolean.parseBoolean(input.trim());
+    }
+
+    @Override
+    public void copyFrom(InterpreterDataType other) {
+        this.bool = ((BooleanDataType) other).bool;
+    }
 
+    // What valueOf() gives.
+    private static final class ReadOnly extends BooleanDataType {
+        ReadOnly(boolean bool){
+            super(bool);
+        }
+
+        @Override
+        public void setBoolean(boolean bool){
+            throw readOnly(this);
+        }
+
+        @Override
+        public void FromString(String input){
+            throw readOnly(this);
+        }
+
+        @Override
+        public void copyFrom(InterpreterDataType other){
+            throw readOnly(this);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,791 @@
+package m.pat;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compiles hot functions of the VirtualMachine straight into JVM bytecode, so HotSpot compiles
+ * them like any other Java method.
+ * A function is compiled once it has been called, or gone around a loop, shank.jit.threshold
+ * times (1000 by default, -Dshank.jit=off turns this off). Only numeric functions are compiled:
+ * every variable has to be an integer, real, character or boolean, those live in JVM locals
+ * instead of IDTs. Var parameters are read into a local on the way in and written back on the way
+ * out, and calls to other functions go back through the VM.
+ * The class is defined as a hidden class, so it's unloaded once nothing refers to it anymore.
+ */
+final class JitCompiler {
+
+    static final boolean ENABLED = !System.getProperty("shank.jit", "on").equalsIgnoreCase("off");
+    static final int THRESHOLD = Integer.getInteger("shank.jit.threshold", 1000);
+
+    /**
+     * A function compiled to a hidden class.
+     */
+    interface CompiledFunction {
+        /**
+         * Runs the function.
+         * @param vm the VM to call other functions through
+         * @param arguments the IDTs passed in, the var ones are written back when the function is done
+         */
+        void run(VirtualMachine vm, InterpreterDataType[] arguments) throws InterpreterErrorException;
+    }
+
+    /**
+     * Thrown while compiling a function that uses something that isn't compiled, like strings.
+     */
+    private static final class UnsupportedException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedException(String message){
+            super(message);
+        }
+    }
+
+    private static final String CLASS_NAME = "m/pat/JitFunction";
+    private static final String RUN_DESCRIPTOR = "(Lm/pat/VirtualMachine;[Lm/pat/InterpreterDataType;)V";
+
+    // JVM locals, the Shank slots come after these.
+    private static final int THIS = 0;
+    private static final int VM = 1;
+    private static final int ARGUMENTS = 2;
+    private static final int FIRST_SLOT = 3;
+
+    private final FunctionNode functionNode;
+    private final VirtualMachine vm;
+    private final List<TypeChecker.Type> slotTypes = new ArrayList<>();
+    private final List<Object> constants = new ArrayList<>();
+    private final ClassFile classFile = new ClassFile();
+    private final Code code = new Code();
+    private int temporary = -1;
+
+    private JitCompiler(FunctionNode functionNode, VirtualMachine vm){
+        this.functionNode = functionNode;
+        this.vm = vm;
+    }
+
+    /**
+     * Compiles a function to a hidden class.
+     * @param function the Bytecode of the function, which has been compiled
+     * @param vm the VM the function runs in
+     * @return the compiled function, or null if it uses something that can't be compiled
+     */
+    static CompiledFunction compile(Bytecode function, VirtualMachine vm){
+        JitCompiler compiler = new JitCompiler(function.function, vm);
+        try{
+            byte[] bytes = compiler.compile();
+            Class<?> hidden = MethodHandles.lookup().defineHiddenClass(bytes, true).lookupClass();
+            CompiledFunction compiled = (CompiledFunction) hidden.getDeclaredConstructor(Object[].class)
+                    .newInstance((Object) compiler.constants.toArray());
+            if(Trace.INTERPRETER_DEBUG) Trace.log(Trace.Category.INTERPRETER, "JIT compiled " + function.function.getName() + " (" + bytes.length + " bytes)");
+            return compiled;
+        } catch (UnsupportedException e) {
+            if(Trace.INTERPRETER_DEBUG) Trace.log(Trace.Category.INTERPRETER, "Not JIT compiling " + function.function.getName() + ": " + e.getMessage());
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // A bug in the compiler, the function can still run as Bytecode.
+            if(Trace.INTERPRETER_INFO) Trace.log(Trace.Category.INTERPRETER, "JIT compiling " + function.function.getName() + " failed: " + e);
+        }
+        return null;
+    }
+
+    /**
+     * Whether a var parameter of the function could be passed the same IDT as another. Those are
+     * copied into separate locals once compiled, so a call like that has to run as Bytecode.
+     * @param function the function
+     * @return true if it has more than one var parameter
+     */
+    static boolean mayAliasVarParameters(FunctionNode function){
+        int count = 0;
+        for(VariableNode parameter : function.getParameters()){
+            if(parameter.isVar()) count++;
+        }
+        return count > 1;
+    }
+
+    private byte[] compile() throws UnsupportedException {
+        for(VariableNode parameter : functionNode.getParameters()){
+            slotTypes.add(numeric(parameter));
+        }
+        for(VariableNode constOrVar : functionNode.getConstAndVariables()){
+            slotTypes.add(numeric(constOrVar));
+        }
+
+        // Read the parameters in, the other variables start at zero like a new IDT.
+        int slot = 0;
+        for(; slot < functionNode.getParameters().size(); slot++){
+            code.op(Code.ALOAD, ARGUMENTS);
+            integer(slot);
+            code.op(Code.AALOAD);
+            get(slotTypes.get(slot));
+            store(slotTypes.get(slot), slot);
+        }
+        for(; slot < slotTypes.size(); slot++){
+            if(slotTypes.get(slot) == TypeChecker.Type.REAL) code.op(Code.FCONST_0);
+            else code.op(Code.ICONST_0);
+            store(slotTypes.get(slot), slot);
+        }
+
+        statements(functionNode.getStatements());
+
+        // Write the var parameters back.
+        slot = 0;
+        for(VariableNode parameter : functionNode.getParameters()){
+            if(parameter.isVar()){
+                code.op(Code.ALOAD, ARGUMENTS);
+                integer(slot);
+                code.op(Code.AALOAD);
+                set(slotTypes.get(slot), slot);
+            }
+            slot++;
+        }
+        code.op(Code.RETURN);
+
+        if(local(slotTypes.size()) > 255)
+            throw new UnsupportedException("too many variables");
+        if(code.length() > Short.MAX_VALUE)
+            throw new UnsupportedException("too long");
+        return classFile.toBytes(code, local(slotTypes.size()));
+    }
+
+    private TypeChecker.Type numeric(VariableNode variable) throws UnsupportedException {
+        TypeChecker.Type type = TypeChecker.typeOf(variable.getType());
+        if(type == null || type == TypeChecker.Type.STRING)
+            throw new UnsupportedException("'" + variable.getName() + "' is a " + type);
+        return type;
+    }
+
+    private void statements(Collection<StatementNode> statements) throws UnsupportedException {
+        if(statements == null) return;
+        for(StatementNode statement : statements){
+            if(statement instanceof IfNode ifNode){
+                List<Integer> ends = new ArrayList<>();
+                for(IfNode node = ifNode; node != null; node = node.next()){
+                    int next = -1;
+                    if(node.getCondition() != null){
+                        expression(node.getCondition());
+                        next = code.jump(Code.IFEQ);
+                    }
+                    statements(node.getStatements());
+                    if(node.next() != null) ends.add(code.jump(Code.GOTO));
+                    if(next >= 0) code.patch(next);
+                }
+                for(int end : ends){
+                    code.patch(end);
+                }
+            } else if(statement instanceof ForNode forNode){
+                int counter = newSlot();
+                int to = newSlot();
+                expression(forNode.getFrom());
+                store(TypeChecker.Type.INTEGER, counter);
+                expression(forNode.getTo());
+                store(TypeChecker.Type.INTEGER, to);
+                int top = code.length();
+                load(TypeChecker.Type.INTEGER, counter);
+                load(TypeChecker.Type.INTEGER, to);
+                int exit = code.jump(Code.IF_ICMPGT);
+                load(TypeChecker.Type.INTEGER, counter);
+                store(TypeChecker.Type.INTEGER, forNode.getVarReference().getSlot());
+                statements(forNode.getStatements());
+                code.op(Code.IINC, local(counter), 1);
+                code.jumpTo(Code.GOTO, top);
+                code.patch(exit);
+            } else if(statement instanceof WhileNode whileNode){
+                int top = code.length();
+                expression(whileNode.getCondition());
+                int exit = code.jump(Code.IFEQ);
+                statements(whileNode.getStatements());
+                code.jumpTo(Code.GOTO, top);
+                code.patch(exit);
+            } else if(statement instanceof RepeatNode repeatNode){
+                int top = code.length();
+                statements(repeatNode.getStatements());
+                expression(repeatNode.getCondition());
+                code.jumpTo(Code.IFEQ, top);
+            } else if(statement instanceof AssignmentNode assignment){
+                store(expression(assignment.getValue()), assignment.getTarget().getSlot());
+            } else if(statement instanceof FunctionCallNode call){
+                functionCall(call);
+            }
+        }
+    }
+
+    private void functionCall(FunctionCallNode call) throws UnsupportedException {
+        // Bound by the TypeChecker.
+        BuiltIn builtIn = call.getFunction() instanceof BuiltIn bound ? bound : null;
+        FunctionNode function = builtIn == null ? call.getFunction() : null;
+
+        // The arguments go in a new array of IDTs, and the variables the callee can change are read back after.
+        List<ParameterNode> parameters = new ArrayList<>(call.getParameters());
+        Set<Integer> passedByVar = new HashSet<>();
+        integer(parameters.size());
+        code.op(Code.ANEWARRAY, classFile.classRef("m/pat/InterpreterDataType"));
+        for(int i = 0; i < parameters.size(); i++){
+            ParameterNode parameter = parameters.get(i);
+            VariableReferenceNode variable = written(parameter, builtIn != null);
+            if(variable != null && !passedByVar.add(variable.getSlot()))
+                throw new UnsupportedException("'" + variable.getName() + "' is passed by var twice");
+            code.op(Code.DUP);
+            integer(i);
+            box(parameter.isVar() ? parameter.getVariableRef() : parameter.getNode());
+            code.op(Code.AASTORE);
+        }
+        // The array is kept in a local of its own, which takes a slot so for loops after this don't reuse it.
+        if(temporary < 0) temporary = local(newSlot());
+        code.op(Code.ASTORE, temporary);
+
+        code.op(Code.ALOAD, VM);
+        code.op(Code.ALOAD, THIS);
+        code.op(Code.GETFIELD, classFile.fieldRef(CLASS_NAME, "constants", "[Ljava/lang/Object;"));
+        integer(constants.size());
+        code.op(Code.AALOAD);
+        if(function != null){
+            constants.add(vm.getBytecode(function));
+            code.op(Code.CHECKCAST, classFile.classRef("m/pat/Bytecode"));
+            code.op(Code.ALOAD, temporary);
+            invoke(Code.INVOKEVIRTUAL, "m/pat/VirtualMachine", "invoke", "(Lm/pat/Bytecode;[Lm/pat/InterpreterDataType;)V");
+        } else {
+            constants.add(builtIn);
+            code.op(Code.CHECKCAST, classFile.classRef("m/pat/BuiltIn"));
+            code.op(Code.ALOAD, temporary);
+            invoke(Code.INVOKEVIRTUAL, "m/pat/VirtualMachine", "invokeBuiltIn", "(Lm/pat/BuiltIn;[Lm/pat/InterpreterDataType;)V");
+        }
+
+        for(int i = 0; i < parameters.size(); i++){
+            VariableReferenceNode variable = written(parameters.get(i), builtIn != null);
+            if(variable == null) continue;
+            code.op(Code.ALOAD, temporary);
+            integer(i);
+            code.op(Code.AALOAD);
+            TypeChecker.Type type = slotTypes.get(variable.getSlot());
+            get(type);
+            store(type, variable.getSlot());
+        }
+    }
+
+    /**
+     * The variable a call can change through a parameter: var ones, and for built-ins any variable
+     * since the Interpreter hands those the variable itself.
+     */
+    private static VariableReferenceNode written(ParameterNode parameter, boolean builtIn){
+        if(parameter.isVar()) return parameter.getVariableRef();
+        if(builtIn && parameter.getNode() instanceof VariableReferenceNode varRef) return varRef;
+        return null;
+    }
+
+    /**
+     * Pushes a new IDT holding the value of an expression.
+     */
+    private void box(Node node) throws UnsupportedException {
+        String dataType = switch(type(node)){
+            case INTEGER -> "m/pat/IntegerDataType";
+            case REAL -> "m/pat/RealDataType";
+            case CHARACTER -> "m/pat/CharacterDataType";
+            case BOOLEAN -> "m/pat/BooleanDataType";
+            case STRING -> throw new UnsupportedException("strings");
+        };
+        code.op(Code.NEW, classFile.classRef(dataType));
+        code.op(Code.DUP);
+        TypeChecker.Type type = expression(node);
+        invoke(Code.INVOKESPECIAL, dataType, "<init>", "(" + descriptor(type) + ")V");
+    }
+
+    private TypeChecker.Type expression(Node node) throws UnsupportedException {
+        if(node instanceof IntegerNode integer){
+            integer(integer.getValue());
+            return TypeChecker.Type.INTEGER;
+        } else if(node instanceof FloatNode real){
+            float value = real.getValue();
+            if(Float.floatToRawIntBits(value) == 0) code.op(Code.FCONST_0);
+            else code.op(Code.LDC_W, classFile.floatConstant(value));
+            return TypeChecker.Type.REAL;
+        } else if(node instanceof CharacterNode character){
+            integer(character.getValue());
+            return TypeChecker.Type.CHARACTER;
+        } else if(node instanceof BooleanNode bool){
+            code.op(bool.getValue() ? Code.ICONST_1 : Code.ICONST_0);
+            return TypeChecker.Type.BOOLEAN;
+        } else if(node instanceof VariableReferenceNode varRef){
+            TypeChecker.Type type = slotTypes.get(varRef.getSlot());
+            load(type, varRef.getSlot());
+            return type;
+        } else if(node instanceof IntegerMathOpNode mathOp){
+            expression(mathOp.getLeft());
+            expression(mathOp.getRight());
+            switch(mathOp.getOperation()){
+                case PLUS -> code.op(Code.IADD);
+                case MINUS -> code.op(Code.ISUB);
+                case TIMES -> code.op(Code.IMUL);
+                case DIVIDE -> invoke(Code.INVOKESTATIC, "m/pat/JitCompiler", "divide", "(II)I");
+                case MOD -> invoke(Code.INVOKESTATIC, "m/pat/JitCompiler", "modulo", "(II)I");
+            }
+            return TypeChecker.Type.INTEGER;
+        } else if(node instanceof RealMathOpNode mathOp){
+            expression(mathOp.getLeft());
+            expression(mathOp.getRight());
+            switch(mathOp.getOperation()){
+                case PLUS -> code.op(Code.FADD);
+                case MINUS -> code.op(Code.FSUB);
+                case TIMES -> code.op(Code.FMUL);
+                case DIVIDE -> invoke(Code.INVOKESTATIC, "m/pat/JitCompiler", "divide", "(FF)F");
+                case MOD -> throw new UnsupportedException("mod on reals");
+            }
+            return TypeChecker.Type.REAL;
+        } else if(node instanceof RealCompareNode compare){
+            expression(compare.getLeft());
+            expression(compare.getRight());
+            // NaN makes every comparison but not equals false, like in Java.
+            BooleanComparison comparison = compare.getComparison();
+            boolean less = comparison == BooleanComparison.LESS_THAN || comparison == BooleanComparison.LESS_OR_EQUAL;
+            code.op(less ? Code.FCMPG : Code.FCMPL);
+            bool(Code.IFEQ + condition(comparison));
+            return TypeChecker.Type.BOOLEAN;
+        } else if(node instanceof IntegerCompareNode || node instanceof CharacterCompareNode || node instanceof BooleanEqualsNode){
+            BooleanCompareNode compare = (BooleanCompareNode) node;
+            expression(compare.getLeft());
+            expression(compare.getRight());
+            bool(Code.IF_ICMPEQ + condition(compare.getComparison()));
+            return TypeChecker.Type.BOOLEAN;
+        }
+        throw new UnsupportedException(node.getClass().getSimpleName());
+    }
+
+    /**
+     * The type of an expression, without compiling it.
+     */
+    private TypeChecker.Type type(Node node) throws UnsupportedException {
+        if(node instanceof IntegerNode || node instanceof IntegerMathOpNode) return TypeChecker.Type.INTEGER;
+        if(node instanceof FloatNode || node instanceof RealMathOpNode) return TypeChecker.Type.REAL;
+        if(node instanceof CharacterNode) return TypeChecker.Type.CHARACTER;
+        if(node instanceof BooleanNode || node instanceof BooleanCompareNode) return TypeChecker.Type.BOOLEAN;
+        if(node instanceof VariableReferenceNode varRef) return slotTypes.get(varRef.getSlot());
+        throw new UnsupportedException(node.getClass().getSimpleName());
+    }
+
+    /**
+     * The offset of a comparison from IFEQ (or IF_ICMPEQ), which are in the order eq, ne, lt, ge, gt, le.
+     */
+    private static int condition(BooleanComparison comparison){
+        return switch(comparison){
+            case EQUALS -> 0;
+            case NOT_EQUALS -> 1;
+            case LESS_THAN -> 2;
+            case GREATER_OR_EQUAL -> 3;
+            case GREATER_THAN -> 4;
+            case LESS_OR_EQUAL -> 5;
+        };
+    }
+
+    /**
+     * Turns a conditional jump into 1 or 0 on the stack.
+     */
+    private void bool(int opcode){
+        int isTrue = code.jump(opcode);
+        code.op(Code.ICONST_0);
+        int end = code.jump(Code.GOTO);
+        code.patch(isTrue);
+        code.op(Code.ICONST_1);
+        // Only one of the two constants is pushed.
+        code.adjust(-1);
+        code.patch(end);
+    }
+
+    private void load(TypeChecker.Type type, int slot){
+        code.op(type == TypeChecker.Type.REAL ? Code.FLOAD : Code.ILOAD, local(slot));
+    }
+
+    private void store(TypeChecker.Type type, int slot){
+        code.op(type == TypeChecker.Type.REAL ? Code.FSTORE : Code.ISTORE, local(slot));
+    }
+
+    /**
+     * Reads the value out of the IDT on top of the stack.
+     */
+    private void get(TypeChecker.Type type){
+        String dataType = dataType(type);
+        code.op(Code.CHECKCAST, classFile.classRef(dataType));
+        invoke(Code.INVOKEVIRTUAL, dataType, getter(type), "()" + descriptor(type));
+    }
+
+    /**
+     * Writes a slot into the IDT on top of the stack.
+     */
+    private void set(TypeChecker.Type type, int slot){
+        String dataType = dataType(type);
+        code.op(Code.CHECKCAST, classFile.classRef(dataType));
+        load(type, slot);
+        invoke(Code.INVOKEVIRTUAL, dataType, "s" + getter(type).substring(1), "(" + descriptor(type) + ")V");
+    }
+
+    private static String dataType(TypeChecker.Type type){
+        return switch(type){
+            case INTEGER -> "m/pat/IntegerDataType";
+            case REAL -> "m/pat/RealDataType";
+            case CHARACTER -> "m/pat/CharacterDataType";
+            case BOOLEAN -> "m/pat/BooleanDataType";
+            case STRING -> "m/pat/StringDataType";
+        };
+    }
+
+    private static String getter(TypeChecker.Type type){
+        return switch(type){
+            case INTEGER -> "getInteger";
+            case REAL -> "getReal";
+            case CHARACTER -> "getCharacter";
+            case BOOLEAN -> "getBoolean";
+            case STRING -> "getString";
+        };
+    }
+
+    private static String descriptor(TypeChecker.Type type){
+        return switch(type){
+            case INTEGER -> "I";
+            case REAL -> "F";
+            case CHARACTER -> "C";
+            case BOOLEAN -> "Z";
+            case STRING -> "Ljava/lang/String;";
+        };
+    }
+
+    private void integer(int value){
+        if(value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) code.integer(value);
+        else code.op(Code.LDC_W, classFile.integerConstant(value));
+    }
+
+    /**
+     * Calls a method, keeping track of what it does to the stack from its descriptor.
+     */
+    private void invoke(int opcode, String owner, String name, String descriptor){
+        code.op(opcode, classFile.methodRef(owner, name, descriptor));
+        int change = opcode == Code.INVOKESTATIC ? 0 : -1;
+        for(int i = 1; descriptor.charAt(i) != ')'; i++){
+            char c = descriptor.charAt(i);
+            while(c == '[') c = descriptor.charAt(++i);
+            if(c == 'L') i = descriptor.indexOf(';', i);
+            change--;
+        }
+        if(!descriptor.endsWith("V")) change++;
+        code.adjust(change);
+    }
+
+    private int newSlot(){
+        slotTypes.add(TypeChecker.Type.INTEGER);
+        return slotTypes.size() - 1;
+    }
+
+    private static int local(int slot){
+        return FIRST_SLOT + slot;
+    }
+
+    // Division is a call so it can throw the same error as the Interpreter, HotSpot inlines it.
+
+    static int divide(int left, int right) throws InterpreterErrorException {
+        if(right == 0)
+            throw new InterpreterErrorException("Division by zero.");
+        return left / right;
+    }
+
+    static int modulo(int left, int right) throws InterpreterErrorException {
+        if(right == 0)
+            throw new InterpreterErrorException("Division by zero.");
+        return left % right;
+    }
+
+    static float divide(float left, float right) throws InterpreterErrorException {
+        if(right == 0)
+            throw new InterpreterErrorException("Division by zero.");
+        return left / right;
+    }
+
+    /**
+     * The code of the run method. Branches use 16 bit offsets from the branch instruction.
+     */
+    private static final class Code {
+        static final int ICONST_0 = 0x03, ICONST_1 = 0x04, FCONST_0 = 0x0b, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13;
+        static final int ILOAD = 0x15, FLOAD = 0x17, ALOAD = 0x19, AALOAD = 0x32;
+        static final int ISTORE = 0x36, FSTORE = 0x38, ASTORE = 0x3a, AASTORE = 0x53, DUP = 0x59;
+        static final int IADD = 0x60, FADD = 0x62, ISUB = 0x64, FSUB = 0x66, IMUL = 0x68, FMUL = 0x6a, IINC = 0x84;
+        static final int FCMPL = 0x95, FCMPG = 0x96, IFEQ = 0x99, IF_ICMPEQ = 0x9f, IF_ICMPGT = 0xa3, GOTO = 0xa7, RETURN = 0xb1;
+        static final int GETFIELD = 0xb4, PUTFIELD = 0xb5, INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8;
+        static final int NEW = 0xbb, ANEWARRAY = 0xbd, CHECKCAST = 0xc0;
+
+        private byte[] bytes = new byte[256];
+        private int length;
+        private int stack, maxStack;
+
+        int length(){
+            return length;
+        }
+
+        int maxStack(){
+            return maxStack;
+        }
+
+        /**
+         * Writes an instruction and its operand, which is a byte for locals and two bytes for the constant pool.
+         */
+        void op(int opcode, int... operands){
+            u1(opcode);
+            switch(opcode){
+                case ILOAD, FLOAD, ALOAD, ISTORE, FSTORE, ASTORE, BIPUSH -> u1(operands[0]);
+                case IINC -> {
+                    u1(operands[0]);
+                    u1(operands[1]);
+                }
+                default -> {
+                    for(int operand : operands){
+                        u2(operand);
+                    }
+                }
+            }
+            stack(opcode);
+        }
+
+        /**
+         * Pushes an int that fits in a short, bigger ones need the constant pool.
+         */
+        void integer(int value){
+            if(value >= -1 && value <= 5){
+                op(ICONST_0 + value);
+            } else if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE){
+                op(BIPUSH, value & 0xff);
+            } else if(value >= Short.MIN_VALUE && value <= Short.MAX_VALUE){
+                op(SIPUSH, value & 0xffff);
+            }
+        }
+
+        /**
+         * Writes a branch to be patched later.
+         * @return the position of the branch, for patch()
+         */
+        int jump(int opcode){
+            op(opcode, 0);
+            return length - 3;
+        }
+
+        void jumpTo(int opcode, int target){
+            op(opcode, (target - length) & 0xffff);
+        }
+
+        /**
+         * Points a branch from jump() at the next instruction.
+         */
+        void patch(int jump){
+            int offset = length - jump;
+            bytes[jump + 1] = (byte) (offset >> 8);
+            bytes[jump + 2] = (byte) offset;
+        }
+
+        byte[] toBytes(){
+            return Arrays.copyOf(bytes, length);
+        }
+
+        private void stack(int opcode){
+            switch(opcode){
+                case ICONST_0 - 1, ICONST_0, ICONST_1, ICONST_1 + 1, ICONST_1 + 2, ICONST_1 + 3, ICONST_1 + 4, FCONST_0,
+                        BIPUSH, SIPUSH, LDC_W, ILOAD, FLOAD, ALOAD, DUP, NEW -> stack++;
+                case ISTORE, FSTORE, ASTORE, IADD, FADD, ISUB, FSUB, IMUL, FMUL, FCMPL, FCMPG, IFEQ, IFEQ + 1,
+                        IFEQ + 2, IFEQ + 3, IFEQ + 4, IFEQ + 5, AALOAD -> stack--;
+                case IF_ICMPEQ, IF_ICMPEQ + 1, IF_ICMPEQ + 2, IF_ICMPEQ + 3, IF_ICMPEQ + 4, IF_ICMPEQ + 5, PUTFIELD -> stack -= 2;
+                case AASTORE -> stack -= 3;
+                // Invokes depend on the method, see adjust().
+                default -> { }
+            }
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        /**
+         * Changes the stack depth by what an instruction did that op() can't tell from its opcode.
+         */
+        void adjust(int change){
+            stack += change;
+        }
+
+        private void u1(int value){
+            if(length + 1 > bytes.length) bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            bytes[length++] = (byte) value;
+        }
+
+        private void u2(int value){
+            u1(value >> 8);
+            u1(value);
+        }
+    }
+
+    /**
+     * Writes the class: a constant pool, a constructor that keeps the constants and the run method.
+     */
+    private static final class ClassFile {
+        private final Buffer pool = new Buffer();
+        private final HashMap<String, Integer> entries = new HashMap<>();
+        private int poolCount = 1;
+
+        int classRef(String name){
+            return entry("Class:" + name, () -> {
+                int nameIndex = utf8(name);
+                pool.u1(7);
+                pool.u2(nameIndex);
+            });
+        }
+
+        int fieldRef(String owner, String name, String descriptor){
+            return memberRef(9, owner, name, descriptor);
+        }
+
+        int methodRef(String owner, String name, String descriptor){
+            return memberRef(10, owner, name, descriptor);
+        }
+
+        int integerConstant(int value){
+            return entry("Integer:" + value, () -> {
+                pool.u1(3);
+                pool.u4(value);
+            });
+        }
+
+        int floatConstant(float value){
+            return entry("Float:" + Float.floatToRawIntBits(value), () -> {
+                pool.u1(4);
+                pool.u4(Float.floatToRawIntBits(value));
+            });
+        }
+
+        private int memberRef(int tag, String owner, String name, String descriptor){
+            return entry(tag + ":" + owner + "." + name + descriptor, () -> {
+                int ownerIndex = classRef(owner);
+                int nameAndType = entry("NameAndType:" + name + descriptor, () -> {
+                    int nameIndex = utf8(name);
+                    int descriptorIndex = utf8(descriptor);
+                    pool.u1(12);
+                    pool.u2(nameIndex);
+                    pool.u2(descriptorIndex);
+                });
+                pool.u1(tag);
+                pool.u2(ownerIndex);
+                pool.u2(nameAndType);
+            });
+        }
+
+        int utf8(String value){
+            return entry("Utf8:" + value, () -> {
+                pool.u1(1);
+                pool.u2(value.length());
+                for(int i = 0; i < value.length(); i++){
+                    pool.u1(value.charAt(i));
+                }
+            });
+        }
+
+        /**
+         * Adds a constant pool entry if it isn't there already. The writer has to add any entries
+         * it refers to before it writes its own tag.
+         */
+        private int entry(String key, Runnable writer){
+            Integer index = entries.get(key);
+            if(index == null){
+                writer.run();
+                index = poolCount++;
+                entries.put(key, index);
+            }
+            return index;
+        }
+
+        byte[] toBytes(Code run, int maxLocals){
+            int thisClass = classRef(CLASS_NAME);
+            int superClass = classRef("java/lang/Object");
+            int compiledFunction = classRef("m/pat/JitCompiler$CompiledFunction");
+            int constantsField = fieldRef(CLASS_NAME, "constants", "[Ljava/lang/Object;");
+            int objectInit = methodRef("java/lang/Object", "<init>", "()V");
+            int codeName = utf8("Code");
+            int constantsName = utf8("constants");
+            int objectArray = utf8("[Ljava/lang/Object;");
+            int initName = utf8("<init>");
+            int initDescriptor = utf8("([Ljava/lang/Object;)V");
+            int runName = utf8("run");
+            int runDescriptor = utf8(RUN_DESCRIPTOR);
+
+            Buffer out = new Buffer();
+            out.u4(0xcafebabe);
+            // Java 5 class files don't need stack map frames.
+            out.u2(0);
+            out.u2(49);
+            out.u2(poolCount);
+            out.bytes(pool.toBytes());
+            out.u2(0x0010 | 0x0020); // final super
+            out.u2(thisClass);
+            out.u2(superClass);
+            out.u2(1);
+            out.u2(compiledFunction);
+
+            out.u2(1);
+            out.u2(0x0002 | 0x0010); // private final
+            out.u2(constantsName);
+            out.u2(objectArray);
+            out.u2(0);
+
+            out.u2(2);
+            Code init = new Code();
+            init.op(Code.ALOAD, 0);
+            init.op(Code.INVOKESPECIAL, objectInit);
+            init.adjust(-1);
+            init.op(Code.ALOAD, 0);
+            init.op(Code.ALOAD, 1);
+            init.op(Code.PUTFIELD, constantsField);
+            init.op(Code.RETURN);
+            method(out, initName, initDescriptor, codeName, init.toBytes(), 2, 2);
+            method(out, runName, runDescriptor, codeName, run.toBytes(), run.maxStack(), maxLocals);
+
+            out.u2(0);
+            return out.toBytes();
+        }
+
+        private static void method(Buffer out, int name, int descriptor, int codeName, byte[] code, int maxStack, int maxLocals){
+            out.u2(0x0001); // public
+            out.u2(name);
+            out.u2(descriptor);
+            out.u2(1);
+            out.u2(codeName);
+            out.u4(12 + code.length);
+            out.u2(maxStack);
+            out.u2(maxLocals);
+            out.u4(code.length);
+            out.bytes(code);
+            out.u2(0);
+            out.u2(0);
+        }
+    }
+
+    private static final class Buffer {
+        private byte[] bytes = new byte[256];
+        private int length;
+
+        void u1(int value){
+            if(length + 1 > bytes.length) bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            bytes[length++] = (byte) value;
+        }
+
+        void u2(int value){
+            u1(value >> 8);
+            u1(value);
+        }
+
+        void u4(int value){
+            u2(value >> 16);
+            u2(value);
+        }
+
+        void bytes(byte[] values){
+            for(byte value : values){
+                u1(value);
+            }
+        }
+
+        byte[] toBytes(){
+            return Arrays.copyOf(bytes, length);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package m.pat;
+
+/**
+ * Immutable character trie used by the Lexer to recognise keywords and operators.
+ * Tables are built once when the class is loaded and are safe to share between
+ * lexers. Lookups walk the input in place, so matching never allocates.
+ */
+final class KeywordTable {
+
+    /** Keywords that are only matched as whole words (i.e define, while, mod). */
+    static final KeywordTable WORDS = new KeywordTable(
+            Token.TokenType.DEFINE, "define",
+            Token.TokenType.VARIABLES, "variables",
+            Token.TokenType.CONSTANTS, "constants",
+            Token.TokenType.IF, "if",
+            Token.TokenType.ELSIF, "elsif",
+            Token.TokenType.ELSE, "else",
+            Token.TokenType.WHILE, "while",
+            Token.TokenType.FOR, "for",
+            Token.TokenType.FROM, "from",
+            Token.TokenType.TO, "to",
+            Token.TokenType.REPEAT, "repeat",
+            Token.TokenType.BLOCK, "block",
+            Token.TokenType.THEN, "then",
+            Token.TokenType.UNTIL, "until",
+            Token.TokenType.NOT, "not",
+            Token.TokenType.VAR, "var",
+            Token.TokenType.INTEGER, "integer",
+            Token.TokenType.FLOAT, "float",
+            Token.TokenType.CHARACTER, "char",
+            Token.TokenType.STRING, "string",
+            Token.TokenType.BOOLEAN, "bool",
+            Token.TokenType.TRUE, "true",
+            Token.TokenType.FALSE, "false",
+            Token.TokenType.MODULUS, "mod"
+    );
+
+    /** Symbols matched at any position, longest match first (i.e <= before <). */
+    static final KeywordTable OPERATORS = new KeywordTable(
+            Token.TokenType.ASSIGNER, ":=",
+            Token.TokenType.NOT_EQUAL, "<>",
+            Token.TokenType.LESS_OR_EQUAL, "<=",
+            Token.TokenType.GREATER_OR_EQUAL, ">=",
+            Token.TokenType.STRINGLITERAL, "\"",
+            Token.TokenType.CHARACTERLITERAL, "'",
+            Token.TokenType.COMMA, ",",
+            Token.TokenType.PARENTHESIS_R, ")",
+            Token.TokenType.PARENTHESIS_L, "(",
+            Token.TokenType.COMMENTBLOCK_L, "{",
+            Token.TokenType.COMMENTBLOCK_R, "}",
+            Token.TokenType.INDEX_L, "[",
+            Token.TokenType.INDEX_R, "]",
+            Token.TokenType.PLUS, "+",
+            Token.TokenType.MINUS, "-",
+            Token.TokenType.MULTIPLY, "*",
+            Token.TokenType.DIVIDE, "/",
+            Token.TokenType.EQUALS, "=",
+            Token.TokenType.LESS_THAN, "<",
+            Token.TokenType.GREATER_THAN, ">",
+            Token.TokenType.COLON, ":",
+            Token.TokenType.SEMICOLON, ";"
+    );
+
+    // Only printable ASCII can appear in keywords, anything else falls straight through.
+    private static final int FIRST_CHAR = 0x20;
+    private static final int ALPHABET = 0x7F - FIRST_CHAR;
+
+    // transitions[state * ALPHABET + c] is the next state, 0 meaning no transition (state 0 is the root).
+    private final int[] transitions;
+    private final Token.TokenType[] accepting;
+    private final String[] spellings = new String[Token.TokenType.values().length];
+
+    /**
+     * Builds a trie from alternating token type and spelling arguments.
+     * @param entries TokenType, String pairs
+     */
+    private KeywordTable(Object... entries){
+        int states = 1;
+        for(int i = 1; i < entries.length; i += 2){
+            states += ((String) entries[i]).length();
+        }
+        int[] transitions = new int[states * ALPHABET];
+        Token.TokenType[] accepting = new Token.TokenType[states];
+
+        int nextState = 1;
+        for(int i = 0; i < entries.length; i += 2){
+            Token.TokenType tokenType = (Token.TokenType) entries[i];
+            String spelling = (String) entries[i + 1];
+            int state = 0;
+            for(int j = 0; j < spelling.length(); j++){
+                int slot = state * ALPHABET + (spelling.charAt(j) - FIRST_CHAR);
+                if(transitions[slot] == 0){
+                    transitions[slot] = nextState++;
+                }
+                state = transitions[slot];
+            }
+            accepting[state] = tokenType;
+            spellings[tokenType.ordinal()] = spelling;
+        }
+        this.transitions = transitions;
+        this.accepting = accepting;
+    }
+
+    /**
+     * Matches the whole of input[start, end) against the table.
+     * @param input the text being lexed
+     * @param start first character of the word
+     * @param end one past the last character of the word
+     * @return the token type of the word, or null if it is not a keyword
+     */
+    Token.TokenType matchWord(CharSequence input, int start, int end){
+        int state = 0;
+        for(int i = start; i < end; i++){
+            state = step(state, input.charAt(i));
+            if(state == 0) return null;
+        }
+        return accepting[state];
+    }
+
+    /**
+     * Finds the longest entry that input starts with at the given index.
+     * The length of the match is the length of {@link #spelling(Token.TokenType)}.
+     * @param input the text being lexed
+     * @param start the index to start matching from
+     * @return the token type of the longest match, or null if nothing matched
+     */
+    Token.TokenType matchLongest(CharSequence input, int start){
+        Token.TokenType longest = null;
+        int state = 0;
+        for(int i = start; i < input.length(); i++){
+            state = step(state, input.charAt(i));
+            if(state == 0) break;
+            if(accepting[state] != null) longest = accepting[state];
+        }
+        return longest;
+    }
+
+    /**
+     * The source text a token type is spelled with in this table.
+     * @param tokenType the token type to look up
+     * @return the spelling, or null if the type is not in this table
+     */
+    String spelling(Token.TokenType tokenType){
+        return spellings[tokenType.ordinal()];
+    }
+
+    private int step(int state, char c){
+        int offset = c - FIRST_CHAR;
+        if(offset < 0 || offset >= ALPHABET) return 0;
+        return transitions[state * ALPHABET + offset];
+    }
+}
@@ -1,21 +1,26 @@
 package m.pat;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Objects;
 
+/**
+ * Turns Shank source into tokens, one line at a time.
+ * All of the state of a run (line count, indentation, state and the tokens found)
+ * belongs to the Lexer instance and the keyword tables it matches against are immutable
+ * and shared, so separate Lexers can lex separate files on different threads at the
+ * same time without any locking. A single Lexer must only be used by one thread.
+ */
 public class Lexer {
 
-    List<Token> tokenList = new ArrayList<>();
-    static HashMap<Token.TokenType, String> knownWords = new HashMap<>();
-    private String input;
+    private final TokenBuffer tokens = new TokenBuffer();
+    private CharSequence input;
     private int index = 0;
-    private static int lineCounter;
-    private static int previousIndent;
-    private static int currentIndent;
+    private int lineCounter;
+    private int previousIndent;
+    private int currentIndent;
 
-    private static LexState currentState;
+    private LexState currentState;
 
     /**
      * Instantiates a Lexer.
@@ -25,65 +30,15 @@ public class Lexer {
     }
 
     /**
-     * Helper function for initializing tokens and known words.
+     * Instantiates a Lexer that continues part way through a file, as if the
+     * lines before it had already been lexed.
+     * @param linesBefore the number of lines before the first line this lexer will see
+     * @param indent the indentation level of the line before the first line
      */
-    public static void initialize(){
-
-        knownWords.put(Token.TokenType.ASSIGNER, ":=");
-        knownWords.put(Token.TokenType.NOT_EQUAL, "<>");
-        knownWords.put(Token.TokenType.LESS_OR_EQUAL, "<=");
-        knownWords.put(Token.TokenType.GREATER_OR_EQUAL, ">=");
-
-        knownWords.put(Token.TokenType.DEFINE, "define");
-        knownWords.put(Token.TokenType.VARIABLES, "variables");
-        knownWords.put(Token.TokenType.CONSTANTS, "constants");
-
-        knownWords.put(Token.TokenType.IF, "if");
-        knownWords.put(Token.TokenType.ELSIF, "elsif");
-        knownWords.put(Token.TokenType.ELSE, "else");
-        knownWords.put(Token.TokenType.WHILE, "while");
-        knownWords.put(Token.TokenType.FOR, "for");
-        knownWords.put(Token.TokenType.FROM, "from");
-        knownWords.put(Token.TokenType.TO, "to");
-        knownWords.put(Token.TokenType.REPEAT, "repeat");
-        knownWords.put(Token.TokenType.BLOCK, "block");
-        knownWords.put(Token.TokenType.THEN, "then");
-        knownWords.put(Token.TokenType.UNTIL, "until");
-        knownWords.put(Token.TokenType.NOT, "not");
-        knownWords.put(Token.TokenType.VAR, "var");
-        knownWords.put(Token.TokenType.INTEGER, "integer");
-        knownWords.put(Token.TokenType.FLOAT, "float");
-        knownWords.put(Token.TokenType.CHARACTER, "char");
-        knownWords.put(Token.TokenType.STRING, "string");
-        knownWords.put(Token.TokenType.BOOLEAN, "bool");
-        knownWords.put(Token.TokenType.TRUE, "true");
-        knownWords.put(Token.TokenType.FALSE, "false");
-
-        //knownWords.put(Token.TokenType.WRITE, "write");
-
-        knownWords.put(Token.TokenType.STRINGLITERAL, "\"");
-        knownWords.put(Token.TokenType.CHARACTERLITERAL, "\'");
-        knownWords.put(Token.TokenType.COMMA, ",");
-        knownWords.put(Token.TokenType.PARENTHESIS_R, ")");
-        knownWords.put(Token.TokenType.PARENTHESIS_L, "(");
-        knownWords.put(Token.TokenType.COMMENTBLOCK_L, "{");
-        knownWords.put(Token.TokenType.COMMENTBLOCK_R, "}");
-        knownWords.put(Token.TokenType.INDEX_L, "[");
-        knownWords.put(Token.TokenType.INDEX_R, "]");
-
-
-        knownWords.put(Token.TokenType.PLUS, "+");
-        knownWords.put(Token.TokenType.MINUS, "-");
-        knownWords.put(Token.TokenType.MULTIPLY, "*");
-        knownWords.put(Token.TokenType.DIVIDE, "/");
-        knownWords.put(Token.TokenType.MODULUS, "mod");
-        knownWords.put(Token.TokenType.EQUALS, "=");
-        knownWords.put(Token.TokenType.LESS_THAN, "<");
-        knownWords.put(Token.TokenType.GREATER_THAN, ">");
-        knownWords.put(Token.TokenType.COLON, ":");
-        knownWords.put(Token.TokenType.SEMICOLON, ";");
-
-
+    Lexer(int linesBefore, int indent){
+        this();
+        this.lineCounter = linesBefore;
+        this.currentIndent = indent;
     }
 
     /**
@@ -102,26 +57,26 @@ public class Lexer {
      * Lexer function to lex a line of text input.
      * @throws LexerException if any undefined characters are found.
      */
-    public void lex(String line) throws LexerException {
+    public void lex(CharSequence line) throws LexerException {
         lineCounter++;
         this.input = line;
         this.index = 0;
         // Indentation/dedentation
         previousIndent = currentIndent;
         currentIndent = getIndentCount(line);
-        System.out.println("Found indent: " + getIndentCount(line));
+        if(Trace.LEXER_TRACE) Trace.log(Trace.Category.LEXER, "Found indent: " + currentIndent);
 
         // If there is more indentation than previous line
         if(currentIndent > previousIndent){
             // Add the difference
             for(int i = 0; i < (currentIndent - previousIndent); i++){
-                addToken(new Token(Token.TokenType.INDENT, ""));
+                addToken(Token.TokenType.INDENT);
             }
         } else if(currentIndent < previousIndent){
             // We have dedent from the previous line
             for(int i = 0; i < (previousIndent - currentIndent); i++){
                 // Add the difference
-                addToken(new Token(Token.TokenType.DEDENT, ""));
+                addToken(Token.TokenType.DEDENT);
             }
         }
 
@@ -139,13 +94,13 @@ public class Lexer {
                     else if(Character.isDigit(c))
                         // If the character is a number
                         currentState = LexState.NUMBER;
-                    else if(c == knownWords.get(Token.TokenType.STRINGLITERAL).charAt(0))
+                    else if(c == '\"')
                         // If the character is a string literal ("")
                         currentState = LexState.STRINGLITERAL;
-                    else if(c == knownWords.get(Token.TokenType.CHARACTERLITERAL).charAt(0))
+                    else if(c == '\'')
                         // If the character is a character literal ('')
                         currentState = LexState.CHARACTERLITERAL;
-                    else if(c == knownWords.get(Token.TokenType.COMMENTBLOCK_L).charAt(0))
+                    else if(c == '{')
                         currentState = LexState.COMMENT;
                     else if (tryMatch(c))
                         currentState = LexState.NONE;
@@ -159,14 +114,15 @@ public class Lexer {
                     if(Character.isLetterOrDigit(c)) {
 
                         // Read the word fully, then try and match it to a token.
-                        String value = readWord();
-                        Token.TokenType tokenType = matchWord(value);
+                        int start = index;
+                        readWord();
+                        Token.TokenType tokenType = KeywordTable.WORDS.matchWord(input, start, index);
 
                         // Check to see if the word matched any tokens, if not, assign it as an IDENTIFIER.
                         if(tokenType != null) {
-                            addToken(new Token(tokenType, value));
+                            addToken(tokenType);
                         } else {
-                            addToken(new Token(Token.TokenType.IDENTIFIER, value));
+                            addToken(Token.TokenType.IDENTIFIER, start, index);
                         }
                         currentState = LexState.NONE;
                     }
@@ -175,9 +131,8 @@ public class Lexer {
                 case NUMBER:
                     if(Character.isDigit(c)){
                         int start = index;
-
-                        String value = input.substring(start, index);
-                        addToken(new Token(Token.TokenType.NUMBER, readNumber()));
+                        readNumber();
+                        addToken(Token.TokenType.NUMBER, start, index);
 
                         currentState = LexState.NONE;
 
@@ -186,26 +141,23 @@ public class Lexer {
                     break;
                 case STRINGLITERAL:
                     // Read until the next " is found
-                    String string = readUntil('\"', false);
-                    if(string == null) {
-                        addToken(new Token(Token.TokenType.STRINGLITERAL, ""));
-                        index = index + 1;
-                        currentState = LexState.NONE;
-                        break;
+                    int stringStart = index + 1;
+                    if(readUntil('\"')) {
+                        addToken(Token.TokenType.STRINGLITERAL, stringStart, index);
+                    } else {
+                        // Unterminated string, treat it as empty.
+                        addToken(Token.TokenType.STRINGLITERAL, stringStart, stringStart);
                     }
-                    addToken(new Token(Token.TokenType.STRINGLITERAL, string));
                     index = index + 1;
                     currentState = LexState.NONE;
                     break;
                 case CHARACTERLITERAL:
-                    String character = readUntil('\'', false);
-                    if(character == null) {
-                        addToken(new Token(Token.TokenType.CHARACTERLITERAL, ""));
-                        index = index + 1;
-                        currentState = LexState.NONE;
-                        break;
+                    int characterStart = index + 1;
+                    if(readUntil('\'')) {
+                        addToken(Token.TokenType.CHARACTERLITERAL, characterStart, index);
+                    } else {
+                        addToken(Token.TokenType.CHARACTERLITERAL, characterStart, characterStart);
                     }
-                    addToken(new Token(Token.TokenType.CHARACTERLITERAL, character));
                     index = index + 1;
                     currentState = LexState.NONE;
                     break;
@@ -215,7 +167,28 @@ public class Lexer {
 
             }
         }
-        addToken(new Token(Token.TokenType.ENDOFLINE, ""));
+        addToken(Token.TokenType.ENDOFLINE);
+    }
+
+    /**
+     * Lexes every line of a source file as it is streamed in, without
+     * holding the whole file in memory.
+     * A line with undefined characters doesn't stop lexing, its error is collected
+     * and the next line is lexed.
+     * @param reader the source to read lines from
+     * @return the errors found, in line order
+     * @throws IOException if the source can't be read
+     */
+    public List<LexerException> lex(SourceReader reader) throws IOException {
+        List<LexerException> errors = new ArrayList<>();
+        while(reader.nextLine()){
+            try{
+                lex(reader.line());
+            } catch (LexerException e) {
+                errors.add(e);
+            }
+        }
+        return errors;
     }
 
     /**
@@ -254,56 +227,31 @@ public class Lexer {
      * @return true if a match was found
      */
     public boolean tryMatch(char c){
-        // For each known word in the key set
-        int i = 0;
-        // Not sure why, but I need this special case just for :=
-        if(index+2 < input.length() && c == ':' && input.charAt(index+1) == '='){
-            addToken(new Token(Token.TokenType.ASSIGNER, ""));
-            index = index + 2;
-            return true;
+        Token.TokenType tokenType = KeywordTable.OPERATORS.matchLongest(input, index);
+        if(tokenType == null){
+            return false;
         }
-
-            for (String knownWord : knownWords.values()) {
-
-                // Take length and see if the current input at index until index + length equals the known word
-                int len = knownWord.length();
-                // Make sure the word can fit before checking
-                if (index + len <= input.length()) {
-                    String str = input.substring(index, index + len);
-                    if (str.equals(knownWord)) {
-                        addToken(new Token(
-                                (Token.TokenType) knownWords.keySet().toArray()[i], str));
-                        index = index + len;
-                        return true;
-                    }
-                }
-                i++;
-            }
-
-        return false;
+        addToken(tokenType);
+        index = index + KeywordTable.OPERATORS.spelling(tokenType).length();
+        return true;
     }
 
     /**
      * Helper function to read until a certain character is met.
+     * Leaves index on the matching character, or at the end of the line if there wasn't one.
      * @param c - the character to read until
-     * @param include - whether to include the surrounding characters.
-     * @return - a string of what was read
+     * @return - whether the character was found
      */
-    public String readUntil(char c, boolean include){
-        int start  = index;
+    public boolean readUntil(char c){
         while(index < input.length()){
             index++;
             if((index != input.length())){
                 if(input.charAt(index) == c) {
-                    if (include) {
-                        return input.substring(start, index + 1);
-                    } else {
-                        return input.substring(start + 1, index);
-                    }
+                    return true;
                 }
             }
         }
-        return null;
+        return false;
     }
 
     public void eatComment(){
@@ -311,8 +259,7 @@ public class Lexer {
         boolean found = false;
         while(index < input.length()){
             // If the current character equals  "}"
-            if(input.charAt(index) ==
-                    knownWords.get(Token.TokenType.COMMENTBLOCK_R).charAt(0)){
+            if(input.charAt(index) == '}'){
                 // Reset back to NONE state.
                 found = true;
                 currentState = LexState.NONE;
@@ -326,65 +273,50 @@ public class Lexer {
     }
 
     /**
-     * Add a token to the list of tokens lexed.
-     * @param token the token to add
+     * Add a token whose text is fixed by its type to the tokens lexed.
+     * @param tokenType the type of token to add
      */
-    public void addToken(Token token){
-        tokenList.add(token);
-        if(Shank.DEBUG) System.out.println("New Token (L:" + lineCounter + " I:" + index + ") " + token.toString() + " | STATE - " + currentState.name());
+    public void addToken(Token.TokenType tokenType){
+        tokens.add(tokenType, lineCounter);
+        if(Trace.LEXER_TRACE) Trace.log(Trace.Category.LEXER, "New Token (L:" + lineCounter + " I:" + index + ") " + tokens.get(tokens.size() - 1) + " | STATE - " + currentState.name());
     }
 
     /**
-     * Attempts to match a word to a token.
-     * @param word the word to try and match
-     * @return null if no token type was found
+     * Add a token with text from the current line to the tokens lexed.
+     * @param tokenType the type of token to add
+     * @param start first character of the token text
+     * @param end one past the last character of the token text
      */
-    private Token.TokenType matchWord(String word){
-        // Loop through all the tokens that are defined.
-        int i = 0;
-        for(String knownWord : knownWords.values()){
-            // Check to see if word matches any of the known words (tokens).
-            if(Objects.equals(knownWord, word)){
-                // Return the token type.
-
-                return
-                        (Token.TokenType) knownWords.keySet().toArray()[i];
-            }
-            i++;
-        }
-        // No token could be matched.
-        return null;
+    public void addToken(Token.TokenType tokenType, int start, int end){
+        tokens.add(tokenType, input, start, end, lineCounter);
+        if(Trace.LEXER_TRACE) Trace.log(Trace.Category.LEXER, "New Token (L:" + lineCounter + " I:" + index + ") " + tokens.get(tokens.size() - 1) + " | STATE - " + currentState.name());
     }
 
     /**
      * Helper method to read the rest of a word, given it is alphanumeric.
-     * @return the word that was read
+     * Leaves index one past the end of the word.
      */
-    private String readWord() {
-        int start = index;
+    private void readWord() {
         while (index < input.length() && isAlphanumeric(input.charAt(index))) {
             index++;
         }
-        return input.substring(start, index);
     }
 
     /**
-     * Helper method to read digits.
-     * @return the number read from digits
+     * Helper method to read digits. Leaves index one past the end of the number.
      * @throws LexerException if the digit parsed is not valid
      */
-    private String readNumber() throws LexerException {
+    private void readNumber() throws LexerException {
         int start = index;
+        int decimalPoints = 0;
         while (index < input.length() && (Character.isDigit(input.charAt(index)) || input.charAt(index) == '.')) {
+            if (input.charAt(index) == '.') decimalPoints++;
             index++;
         }
-        String number = input.substring(start, index);
-        try {
-            Double.parseDouble(number);
-        } catch (NumberFormatException e) {
-            throw new LexerException("Invalid number format: " + number);
+        // Digits with at most one decimal point is always a valid number.
+        if (decimalPoints > 1) {
+            throw new LexerException("Invalid number format: " + input.subSequence(start, index));
         }
-        return number;
     }
     /**
      * Whether the character is alphanumeric or not.
@@ -401,14 +333,15 @@ public class Lexer {
      * @param str the string to analyze.
      * @return the amount of indentation.
      */
-    public int getIndentCount(String str){
+    public int getIndentCount(CharSequence str){
         int count = 0;
         int i = 0;
         while (i < str.length()) {
             if (str.charAt(i) == '\t') {
                 count++;
                 i++;
-            } else if (i < str.length() - 3 && str.substring(i, i + 4).equals("    ")) {
+            } else if (i < str.length() - 3 && str.charAt(i) == ' ' && str.charAt(i + 1) == ' '
+                    && str.charAt(i + 2) == ' ' && str.charAt(i + 3) == ' ') {
                 count++;
                 i += 4;
             } else {
@@ -419,10 +352,19 @@ public class Lexer {
     }
 
     /**
-     * Returns the list of tokens generated.
+     * Returns the state the lexer finished the last line in.
+     * Anything other than NONE means a comment carries on to the next line.
+     * @return the current lexer state
+     */
+    LexState getState(){
+        return currentState;
+    }
+
+    /**
+     * Returns the tokens generated.
      * @return
      */
-    public List<Token> getTokens(){
-        return tokenList;
+    public TokenBuffer getTokens(){
+        return tokens;
     }
 }
@@ -13,13 +13,16 @@ class IntegerNode extends Node {
     private int value;
     private int fromRange;
     private int toRange;
+    // The value as an IDT, shared by every evaluation of the literal.
+    private IntegerDataType constant;
 
     IntegerNode(int value){
         this.value = value;
+        this.constant = IntegerDataType.valueOf(value);
     }
 
     IntegerNode(int value, int fromRange, int toRange){
-        this.value = value;
+        this(value);
         this.fromRange = fromRange;
         this.toRange = toRange;
     }
@@ -34,12 +37,21 @@ class IntegerNode extends Node {
 
     public void setValue(int value){
         this.value = value;
+        this.constant = IntegerDataType.valueOf(value);
     }
 
     public int getValue(){
         return this.value;
     }
 
+    /**
+     * The value as an IDT, made with the node and given out every time the literal is evaluated.
+     * It's read only, its setters throw.
+     */
+    public IntegerDataType getConstant(){
+        return this.constant;
+    }
+
     public int getFromRange() {
         return fromRange;
     }
@@ -53,13 +65,16 @@ class FloatNode extends Node {
     private float value;
     private float fromRange;
     private float toRange;
+    // The value as an IDT, shared by every evaluation of the literal.
+    private RealDataType constant;
 
     FloatNode(float value){
         this.value = value;
+        this.constant = RealDataType.valueOf(value);
     }
 
     FloatNode(float value, float fromRange, float toRange){
-        this.value = value;
+        this(value);
         this.fromRange = fromRange;
         this.toRange = toRange;
     }
@@ -73,11 +88,20 @@ class FloatNode extends Node {
 
     public void setValue(float newValue){
         this.value = newValue;
+        this.constant = RealDataType.valueOf(newValue);
     }
 
     public float getValue(){
         return this.value;
     }
+
+    /**
+     * The value as an IDT, shared by every evaluation, so it's read only.
+     * @see IntegerNode#getConstant()
+     */
+    public RealDataType getConstant(){
+        return this.constant;
+    }
     public float getFromRange() {
         return fromRange;
     }
@@ -113,6 +137,17 @@ class MathOpNode extends Node {
         return this.right;
     }
 
+    /**
+     * A new node for the same operation, of the same specialized class, on other operands.
+     * Used by the passes that rewrite expressions after the TypeChecker.
+     */
+    MathOpNode withOperands(Node left, Node right){
+        if(this instanceof IntegerMathOpNode) return new IntegerMathOpNode(operation, left, right);
+        if(this instanceof RealMathOpNode) return new RealMathOpNode(operation, left, right);
+        if(this instanceof ConcatenationNode) return new ConcatenationNode(left, right);
+        return new MathOpNode(operation, left, right);
+    }
+
     @Override
     public String toString(){
         return "MathOpNode(" + left.toString() + " " + operation + " " + right.toString() + ")";
@@ -143,12 +178,228 @@ class BooleanCompareNode extends Node {
     public Node getRight(){
         return this.right;
     }
+    /**
+     * A new comparison of the same specialized class on other operands, see {@link MathOpNode#withOperands}.
+     */
+    BooleanCompareNode withOperands(Node left, Node right){
+        if(this instanceof IntegerCompareNode) return new IntegerCompareNode(comparison, left, right);
+        if(this instanceof RealCompareNode) return new RealCompareNode(comparison, left, right);
+        if(this instanceof CharacterCompareNode) return new CharacterCompareNode(comparison, left, right);
+        if(this instanceof StringEqualsNode) return new StringEqualsNode(comparison, left, right);
+        if(this instanceof BooleanEqualsNode) return new BooleanEqualsNode(comparison, left, right);
+        return new BooleanCompareNode(comparison, left, right);
+    }
     @Override
     public String toString(){
         return "BooleanCompareNode(comparison: " + comparison + ", left: " + left + ", right: " + right + ")";
     }
 }
 
+// TYPE SPECIALIZED OPERATIONS
+// Built by the TypeChecker in place of MathOpNode and BooleanCompareNode once the types of both sides
+// are known, so the operands can be used as they are without checking their type each time.
+// The shape of each operand is fixed once prepare is done, so the Interpreter reads a literal, a local
+// or a nested operation of the same type straight out of the node or the frame.
+
+class IntegerMathOpNode extends MathOpNode {
+
+    IntegerMathOpNode(MathOp operation, Node left, Node right){
+        super(operation, left, right);
+    }
+
+    /**
+     * Applies the operation to two integers.
+     * @throws InterpreterErrorException on division by zero
+     */
+    int apply(int left, int right) throws InterpreterErrorException {
+        switch(getOperation()){
+            case PLUS -> {
+                return left + right;
+            }
+            case MINUS -> {
+                return left - right;
+            }
+            case TIMES -> {
+                return left * right;
+            }
+            case DIVIDE -> {
+                if(right == 0)
+                    throw new InterpreterErrorException("Division by zero.");
+                return left / right;
+            }
+            case MOD -> {
+                if(right == 0)
+                    throw new InterpreterErrorException("Division by zero.");
+                return left % right;
+            }
+            default -> throw new InterpreterErrorException("Invalid math operator.");
+        }
+    }
+
+    @Override
+    public String toString(){
+        return "IntegerMathOpNode(" + getLeft() + " " + getOperation() + " " + getRight() + ")";
+    }
+}
+
+class RealMathOpNode extends MathOpNode {
+
+    RealMathOpNode(MathOp operation, Node left, Node right){
+        super(operation, left, right);
+    }
+
+    /**
+     * Applies the operation to two reals.
+     * @throws InterpreterErrorException on division by zero
+     */
+    float apply(float left, float right) throws InterpreterErrorException {
+        switch(getOperation()){
+            case PLUS -> {
+                return left + right;
+            }
+            case MINUS -> {
+                return left - right;
+            }
+            case TIMES -> {
+                return left * right;
+            }
+            case DIVIDE -> {
+                if(right == 0)
+                    throw new InterpreterErrorException("Division by zero.");
+                return left / right;
+            }
+            default -> throw new InterpreterErrorException("Invalid math operator.");
+        }
+    }
+
+    @Override
+    public String toString(){
+        return "RealMathOpNode(" + getLeft() + " " + getOperation() + " " + getRight() + ")";
+    }
+}
+
+class ConcatenationNode extends MathOpNode {
+
+    /**
+     * Constructs a string concatenation, at least one side is a string.
+     */
+    ConcatenationNode(Node left, Node right){
+        super(MathOp.PLUS, left, right);
+    }
+
+    @Override
+    public String toString(){
+        return "ConcatenationNode(" + getLeft() + " + " + getRight() + ")";
+    }
+}
+
+class IntegerCompareNode extends BooleanCompareNode {
+
+    IntegerCompareNode(BooleanComparison comparison, Node left, Node right){
+        super(comparison, left, right);
+    }
+
+    boolean apply(int left, int right){
+        switch(getComparison()){
+            case EQUALS -> { return left == right; }
+            case NOT_EQUALS -> { return left != right; }
+            case LESS_THAN -> { return left < right; }
+            case GREATER_THAN -> { return left > right; }
+            case LESS_OR_EQUAL -> { return left <= right; }
+            default -> { return left >= right; }
+        }
+    }
+
+    @Override
+    public String toString(){
+        return "IntegerCompareNode(comparison: " + getComparison() + ", left: " + getLeft() + ", right: " + getRight() + ")";
+    }
+}
+
+class RealCompareNode extends BooleanCompareNode {
+
+    RealCompareNode(BooleanComparison comparison, Node left, Node right){
+        super(comparison, left, right);
+    }
+
+    boolean apply(float left, float right){
+        switch(getComparison()){
+            case EQUALS -> { return left == right; }
+            case NOT_EQUALS -> { return left != right; }
+            case LESS_THAN -> { return left < right; }
+            case GREATER_THAN -> { return left > right; }
+            case LESS_OR_EQUAL -> { return left <= right; }
+            default -> { return left >= right; }
+        }
+    }
+
+    @Override
+    public String toString(){
+        return "RealCompareNode(comparison: " + getComparison() + ", left: " + getLeft() + ", right: " + getRight() + ")";
+    }
+}
+
+class CharacterCompareNode extends BooleanCompareNode {
+
+    CharacterCompareNode(BooleanComparison comparison, Node left, Node right){
+        super(comparison, left, right);
+    }
+
+    boolean apply(char left, char right){
+        switch(getComparison()){
+            case EQUALS -> { return left == right; }
+            case NOT_EQUALS -> { return left != right; }
+            case LESS_THAN -> { return left < right; }
+            case GREATER_THAN -> { return left > right; }
+            case LESS_OR_EQUAL -> { return left <= right; }
+            default -> { return left >= right; }
+        }
+    }
+
+    @Override
+    public String toString(){
+        return "CharacterCompareNode(comparison: " + getComparison() + ", left: " + getLeft() + ", right: " + getRight() + ")";
+    }
+}
+
+class StringEqualsNode extends BooleanCompareNode {
+
+    /**
+     * Constructs a string comparison, only EQUALS or NOT_EQUALS.
+     */
+    StringEqualsNode(BooleanComparison comparison, Node left, Node right){
+        super(comparison, left, right);
+    }
+
+    boolean apply(String left, String right){
+        return left.equals(right) == (getComparison() == BooleanComparison.EQUALS);
+    }
+
+    @Override
+    public String toString(){
+        return "StringEqualsNode(comparison: " + getComparison() + ", left: " + getLeft() + ", right: " + getRight() + ")";
+    }
+}
+
+class BooleanEqualsNode extends BooleanCompareNode {
+
+    /**
+     * Constructs a boolean comparison, only EQUALS or NOT_EQUALS.
+     */
+    BooleanEqualsNode(BooleanComparison comparison, Node left, Node right){
+        super(comparison, left, right);
+    }
+
+    boolean apply(boolean left, boolean right){
+        return (left == right) == (getComparison() == BooleanComparison.EQUALS);
+    }
+
+    @Override
+    public String toString(){
+        return "BooleanEqualsNode(comparison: " + getComparison() + ", left: " + getLeft() + ", right: " + getRight() + ")";
+    }
+}
+
 // FUNCTIONS AND LOCAL VARIABLES
 
 class BooleanNode extends Node {
@@ -162,7 +413,13 @@ class BooleanNode extends Node {
         this.value = value;
     }
 
-    private boolean getValue() { return this.value; }
+    public boolean getValue() { return this.value; }
+
+    /**
+     * The value as an IDT, shared by every evaluation, so it's read only.
+     * @see IntegerNode#getConstant()
+     */
+    public BooleanDataType getConstant() { return BooleanDataType.valueOf(value); }
 
     @Override
     public String toString() {
@@ -173,14 +430,25 @@ class BooleanNode extends Node {
 class CharacterNode extends Node {
 
     private char value;
+    // The value as an IDT, shared by every evaluation of the literal.
+    private CharacterDataType constant;
 
     /**
      * Constructs a CharacterNode.
      * @param value the character value
      */
-    CharacterNode(char value) { this.value = value; }
+    CharacterNode(char value) {
+        this.value = value;
+        this.constant = CharacterDataType.valueOf(value);
+    }
+
+    public char getValue() { return this.value; }
 
-    private char getValue() { return this.value; }
+    /**
+     * The value as an IDT, shared by every evaluation, so it's read only.
+     * @see IntegerNode#getConstant()
+     */
+    public CharacterDataType getConstant() { return this.constant; }
 
     @Override
     public String toString(){
@@ -193,14 +461,19 @@ class StringNode extends Node {
     private String value;
     private int fromRange;
     private int toRange;
+    // The value as an IDT, shared by every evaluation of the literal.
+    private StringDataType constant;
 
     /**
      * Constructs a StringNode.
      * @param value the value of the string
      */
-    StringNode(String value) { this.value = value; }
-    StringNode(String value, int fromRange, int toRange){
+    StringNode(String value) {
         this.value = value;
+        this.constant = StringDataType.valueOf(value);
+    }
+    StringNode(String value, int fromRange, int toRange){
+        this(value);
         this.fromRange = fromRange;
         this.toRange = toRange;
     }
@@ -215,10 +488,17 @@ class StringNode extends Node {
 
     public void setValue(String newValue){
         this.value = newValue;
+        this.constant = StringDataType.valueOf(newValue);
     }
 
     public String getValue() { return this.value; }
 
+    /**
+     * The value as an IDT, shared by every evaluation, so it's read only.
+     * @see IntegerNode#getConstant()
+     */
+    public StringDataType getConstant() { return this.constant; }
+
     public int getFromRange() {
         return fromRange;
     }
@@ -233,6 +513,7 @@ class VariableNode extends Node {
     private Node type;
     private String name;
     private boolean isConstant;
+    private boolean isVar;
 
     /**
      * Constructs a VariableNode.
@@ -268,11 +549,31 @@ class VariableNode extends Node {
         this.isConstant = isConstant;
     }
 
+    /**
+     * Whether this is a var parameter, which the caller's variable is passed by reference to.
+     * @return true if the parameter was declared with var
+     */
+    public boolean isVar(){
+        return this.isVar;
+    }
+
+    public void setVar(boolean isVar){
+        this.isVar = isVar;
+    }
+
     /**
      * Helper function to create IDT out of VariableNode.
+     * Constants start out holding their value.
      * @return corresponding IDT from VariableNode, or null.
      */
     public InterpreterDataType getDataType() {
+        if (this.isConstant) {
+            if (this.type instanceof BooleanNode booleanNode) return new BooleanDataType(booleanNode.getValue());
+            if (this.type instanceof IntegerNode integerNode) return new IntegerDataType(integerNode.getValue());
+            if (this.type instanceof StringNode stringNode) return new StringDataType(stringNode.getValue());
+            if (this.type instanceof FloatNode floatNode) return new RealDataType(floatNode.getValue());
+            if (this.type instanceof CharacterNode characterNode) return new CharacterDataType(characterNode.getValue());
+        }
         if (this.type instanceof BooleanNode) {
             return new BooleanDataType();
         } else if (this.type instanceof IntegerNode) {
@@ -290,7 +591,7 @@ class VariableNode extends Node {
 
     @Override
     public String toString(){
-        return "(name: " + name + ", type: " + type.toString() + ", const:" + isConstant + ")";
+        return "(name: " + name + ", type: " + type.toString() + ", const:" + isConstant + (isVar ? ", var" : "") + ")";
     }
 }
 
@@ -303,23 +604,40 @@ class VariableReferenceNode extends Node {
     }
 
     private Node index;
+    private int slot = -1;
 
     VariableReferenceNode(String name){
         this.name = name;
         this.index = null;
-        System.out.println("Create VarRefNode " + this);
+        if(Trace.PARSER_TRACE) Trace.log(Trace.Category.PARSER, "Create VarRefNode " + this);
     }
 
     VariableReferenceNode(String name, Node node){
         this.name = name;
         this.index = node;
-        System.out.println("Create VarRefNode " + this);
+        if(Trace.PARSER_TRACE) Trace.log(Trace.Category.PARSER, "Create VarRefNode " + this);
     }
 
     public void setIndex(Node node){
         this.index = node;
     }
 
+    public Node getIndex(){
+        return this.index;
+    }
+
+    /**
+     * The index of the variable in the frame of its function, set by the Resolver.
+     * @return the slot, or -1 if the reference hasn't been resolved
+     */
+    public int getSlot(){
+        return this.slot;
+    }
+
+    public void setSlot(int slot){
+        this.slot = slot;
+    }
+
     public String getName(){
         return this.name;
     }
@@ -405,6 +723,10 @@ class WhileNode extends StatementNode {
         this.statements = statements;
     }
 
+    public void setCondition(BooleanCompareNode condition){
+        this.condition = condition;
+    }
+
     public BooleanCompareNode getCondition(){
         return this.condition;
     }
@@ -428,6 +750,10 @@ class RepeatNode extends StatementNode {
         this.statements = statements;
     }
 
+    public void setCondition(BooleanCompareNode condition){
+        this.condition = condition;
+    }
+
     public BooleanCompareNode getCondition(){
         return this.condition;
     }
@@ -469,6 +795,18 @@ class ForNode extends StatementNode {
         return this.to;
     }
 
+    public void setFrom(Node from){
+        this.from = from;
+    }
+
+    public void setTo(Node to){
+        this.to = to;
+    }
+
+    public VariableReferenceNode getVarReference(){
+        return this.varReference;
+    }
+
     public Collection<StatementNode> getStatements(){
         return this.statements;
     }
@@ -486,11 +824,15 @@ class ForNode extends StatementNode {
 class FunctionCallNode extends StatementNode {
     private String name;
     private Collection<ParameterNode> parameters;
+    // The FunctionNode or BuiltIn called, bound by the TypeChecker so running the call doesn't look it up.
+    private FunctionNode function;
+    // The parameters as an array, made the first time the call runs.
+    private ParameterNode[] parameterArray;
 
     FunctionCallNode(String name, Collection<ParameterNode> parameters){
         this.name = name;
         this.parameters = parameters;
-        if(Shank.DEBUG) System.out.println("Built FunctionCallNode: " + this);
+        if(Trace.PARSER_DEBUG) Trace.log(Trace.Category.PARSER, "Built FunctionCallNode: " + this);
     }
 
     @Override
@@ -506,14 +848,26 @@ class FunctionCallNode extends StatementNode {
         return name;
     }
 
-    // To check if the function name is language-specific function.
-    public boolean isVariadic(){
-        switch (getName()){
-            case "write", "read" -> { // Write/Read can take at least 1 and potentially any number of variables.
-                return true;
-            }
-        }
-        return false;
+    /**
+     * The parameters as an array, for running the call without an iterator. The passes that prepare a
+     * function change its calls' parameters, so this is only for calls in functions that have been prepared.
+     * @return the parameters, in order
+     */
+    ParameterNode[] getParameterArray() {
+        if(parameterArray == null) parameterArray = parameters.toArray(new ParameterNode[0]);
+        return parameterArray;
+    }
+
+    /**
+     * The function the call goes to, a BuiltIn for the built-ins.
+     * @return the function, or null if the TypeChecker hasn't bound the call yet
+     */
+    public FunctionNode getFunction() {
+        return function;
+    }
+
+    void setFunction(FunctionNode function) {
+        this.function = function;
     }
 }
 
@@ -547,9 +901,21 @@ class ParameterNode extends StatementNode {
         return variableRef;
     }
 
+    /**
+     * Whether the parameter was passed with var, in which case getVariableRef() is the variable passed.
+     * @return true for a var parameter
+     */
+    public boolean isVar() {
+        return variableRef != null;
+    }
+
     public Node getNode() {
         return node;
     }
+
+    public void setNode(Node node) {
+        this.node = node;
+    }
 }
 
 class AssignmentNode extends StatementNode {
@@ -578,6 +944,10 @@ class AssignmentNode extends StatementNode {
         return this.value;
     }
 
+    public void setValue(Node value){
+        this.value = value;
+    }
+
     @Override
     public String toString(){ return "AssignmentNode(target: " + target + ", value: " + value + ")"; }
 }
@@ -588,6 +958,15 @@ class FunctionNode extends Node {
     private Collection<VariableNode> constAndVariables;
     private Collection<StatementNode> statements;
 
+    // Number of variable slots, set by the Resolver, -1 until then.
+    private int frameSize = -1;
+    private boolean typeChecked;
+
+    // Tokens of a body that hasn't been parsed yet, null once it has.
+    private TokenBuffer bodyTokens;
+    private int bodyStart;
+    private int bodyEnd;
+
     FunctionNode(String name, Collection<VariableNode> parameters,
                  Collection<VariableNode> constAndVariables,
                  Collection<StatementNode> statements){
@@ -597,6 +976,23 @@ class FunctionNode extends Node {
         this.statements = statements;
     }
 
+    /**
+     * Constructs a FunctionNode from just its signature. The constants, variables and
+     * statements in tokens [bodyStart, bodyEnd) are parsed by {@link #ensureParsed()}.
+     * @param name the name of the function
+     * @param parameters the function parameters
+     * @param bodyTokens the tokens the body is in
+     * @param bodyStart index of the first token after the signature
+     * @param bodyEnd index one past the last token of the body
+     */
+    FunctionNode(String name, Collection<VariableNode> parameters, TokenBuffer bodyTokens, int bodyStart, int bodyEnd){
+        this.name = name;
+        this.parameters = parameters;
+        this.bodyTokens = bodyTokens;
+        this.bodyStart = bodyStart;
+        this.bodyEnd = bodyEnd;
+    }
+
     public String getName(){
         return this.name;
     }
@@ -605,16 +1001,100 @@ class FunctionNode extends Node {
         return this.parameters;
     }
 
+    /**
+     * The constants and variables of the function, only available once {@link #ensureParsed()} has been called.
+     * @return the constants and variables
+     */
     public Collection<VariableNode> getConstAndVariables(){
         return this.constAndVariables;
     }
 
+    /**
+     * The statements of the function, only available once {@link #ensureParsed()} has been called.
+     * @return the statements
+     */
     public Collection<StatementNode> getStatements(){
         return this.statements;
     }
 
+    /**
+     * Whether the body of the function has been parsed yet.
+     * @return false if the body is still only a range of tokens
+     */
+    public boolean isParsed(){
+        return this.bodyTokens == null;
+    }
+
+    /**
+     * The tokens of a body that hasn't been parsed yet.
+     * @return the token buffer, or null once the body has been parsed
+     */
+    TokenBuffer getBodyTokens(){
+        return this.bodyTokens;
+    }
+
+    int getBodyStart(){
+        return this.bodyStart;
+    }
+
+    int getBodyEnd(){
+        return this.bodyEnd;
+    }
+
+    /**
+     * Parses the body of the function if it hasn't been already.
+     * @throws SyntaxErrorException if the body doesn't parse
+     */
+    public void ensureParsed() throws SyntaxErrorException {
+        if(bodyTokens != null){
+            new Parser(bodyTokens, bodyStart, bodyEnd).functionBody(this);
+            bodyTokens = null;
+        }
+    }
+
+    /**
+     * Whether the Resolver has given every variable of the function a slot.
+     * @return true once the function has been resolved
+     */
+    public boolean isResolved(){
+        return this.frameSize >= 0;
+    }
+
+    /**
+     * The number of slots a frame for this function needs, parameters first.
+     * @return the frame size, or -1 if the function hasn't been resolved
+     */
+    public int getFrameSize(){
+        return this.frameSize;
+    }
+
+    void setFrameSize(int frameSize){
+        this.frameSize = frameSize;
+    }
+
+    /**
+     * Whether the TypeChecker has checked the function and specialized its expressions.
+     * @return true once the function has been type checked
+     */
+    public boolean isTypeChecked(){
+        return this.typeChecked;
+    }
+
+    void setTypeChecked(){
+        this.typeChecked = true;
+    }
+
+    void setBody(Collection<VariableNode> constAndVariables, Collection<StatementNode> statements){
+        this.constAndVariables = constAndVariables;
+        this.statements = statements;
+    }
+
     @Override
     public String toString(){
+        if(!isParsed()){
+            return "FunctionNode(name: " + getName() + ", params: " + getParameters()
+                    + ", body: tokens " + bodyStart + "-" + bodyEnd + " not parsed yet)";
+        }
         return "FunctionNode(name: " + getName() + ", params: " + getParameters()
                 + ", constants & variables: (" + getConstAndVariables() +"), " +
                 "statements: " + statements.size() + ")";
@@ -629,6 +1109,19 @@ class ProgramNode extends Node {
         this.functions = functions;
     }
 
+    /**
+     * Looks up a function by name.
+     * @param name the name of the function
+     * @return the function, or null if there isn't one with that name
+     */
+    public FunctionNode getFunction(String name){
+        return this.functions.get(name);
+    }
+
+    public HashMap<String, FunctionNode> getFunctions(){
+        return this.functions;
+    }
+
     @Override
     public String toString(){
         String programNodeString = "ProgramNode(" + functions.size() + ")\n";
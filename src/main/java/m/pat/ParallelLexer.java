@@ -0,0 +1,297 @@
+package m.pat;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Lexes large source files in parallel.
+ * Top level functions start with "define" at the start of a line, so the file is split
+ * into chunks at those lines and every chunk is lexed by its own Lexer on a ForkJoinPool.
+ * A stretch too long for one chunk with no define in it is split at plain line starts.
+ * Each chunk lexer is started with the line number and indentation the sequential lexer
+ * would have had at that point, so the concatenated tokens and any LexerException messages
+ * are exactly the same as lexing the file line by line. If a chunk doesn't finish in the
+ * NONE state (i.e a comment runs over a define line) the file is lexed sequentially instead.
+ */
+final class ParallelLexer {
+
+    private static final long MIN_CHUNK_SIZE = 1 << 20; // Files smaller than 2MB aren't worth splitting.
+    private static final long MAX_CHUNK_SIZE = 1 << 28; // Most bytes in a chunk, and in one mapping while counting lines.
+    private static final byte[] DEFINE = {'d', 'e', 'f', 'i', 'n', 'e'};
+
+    private ParallelLexer(){}
+
+    /**
+     * Whether a file is big enough to split up at all. The ParallelParser goes by this too.
+     * @param size the size of the file in bytes
+     * @return true if it splits into at least two chunks of MIN_CHUNK_SIZE
+     */
+    static boolean worthSplitting(long size){
+        return size >= 2 * MIN_CHUNK_SIZE;
+    }
+
+    /**
+     * Lexes a file, in parallel when it is big enough to be worth it.
+     * @param path the file to lex
+     * @param pool the pool to lex chunks on
+     * @param errors collects any lexer errors, in line order
+     * @return the tokens of the whole file
+     * @throws IOException if the file can't be read
+     */
+    static TokenBuffer lex(Path path, ForkJoinPool pool, List<LexerException> errors) throws IOException {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)){
+            long size = channel.size();
+            int chunkCount = (int) Math.max(Math.min(pool.getParallelism() * 4L, size / MIN_CHUNK_SIZE),
+                    (size + MAX_CHUNK_SIZE - 1) / MAX_CHUNK_SIZE);
+            long[] bounds = chunkCount < 2 || !worthSplitting(size) ? null : findChunkBounds(channel, size, chunkCount);
+            if(bounds == null || bounds.length < 3){
+                return lexSequentially(channel, size, errors);
+            }
+
+            // First work out which line each chunk starts on.
+            int chunks = bounds.length - 1;
+            List<LineCountTask> lineCounts = new ArrayList<>(chunks);
+            for(int i = 0; i < chunks; i++){
+                LineCountTask task = new LineCountTask(channel, bounds[i], bounds[i + 1], size);
+                lineCounts.add(task);
+                pool.execute(task);
+            }
+            List<ChunkTask> lexTasks = new ArrayList<>(chunks);
+            int linesBefore = 0;
+            for(int i = 0; i < chunks; i++){
+                ChunkTask task = new ChunkTask(channel, bounds[i], bounds[i + 1], linesBefore,
+                        indentBefore(channel, bounds[i]));
+                lexTasks.add(task);
+                pool.execute(task);
+                linesBefore += join(lineCounts.get(i));
+            }
+
+            for(ChunkTask task : lexTasks){
+                join(task);
+            }
+            for(int i = 0; i < chunks - 1; i++){
+                if(lexTasks.get(i).lexer.getState() != Lexer.LexState.NONE){
+                    // The next chunk started in the middle of a comment.
+                    return lexSequentially(channel, size, errors);
+                }
+            }
+
+            // Concatenate in file order.
+            TokenBuffer tokens = new TokenBuffer();
+            for(ChunkTask task : lexTasks){
+                tokens.append(task.lexer.getTokens());
+                errors.addAll(task.errors);
+            }
+            return tokens;
+        }
+    }
+
+    private static TokenBuffer lexSequentially(FileChannel channel, long size, List<LexerException> errors) throws IOException {
+        Lexer lexer = new Lexer();
+        try(SourceReader reader = new SourceReader(channel, 0, size)){
+            errors.addAll(lexer.lex(reader));
+        }
+        return lexer.getTokens();
+    }
+
+    /**
+     * Picks chunk boundaries near evenly spaced targets. Every boundary apart from the first
+     * and last is the start of a line, one beginning with the define keyword where there is one.
+     * A target with no define line near it is skipped, which can leave a chunk bigger than
+     * MAX_CHUNK_SIZE, so those are split again at any line start. A chunk can only stay bigger
+     * than that if a single line is longer than half of it.
+     * @return increasing offsets starting at 0 and ending at size
+     */
+    private static long[] findChunkBounds(FileChannel channel, long size, int chunkCount) throws IOException {
+        List<Long> defines = new ArrayList<>();
+        defines.add(0L);
+        long chunkSize = size / chunkCount;
+        for(int i = 1; i < chunkCount; i++){
+            long from = Math.max(i * chunkSize, defines.get(defines.size() - 1) + 1);
+            long to = Math.min((i + 1) * chunkSize, size);
+            if(from >= to) continue;
+            long define = findLineStart(channel, from, to, true);
+            if(define >= 0) defines.add(define);
+        }
+        defines.add(size);
+
+        List<Long> bounds = new ArrayList<>();
+        for(int i = 0; i < defines.size() - 1; i++){
+            long start = defines.get(i);
+            long end = defines.get(i + 1);
+            bounds.add(start);
+            while(end - start > MAX_CHUNK_SIZE){
+                long line = findLineStart(channel, start + MAX_CHUNK_SIZE / 2, start + MAX_CHUNK_SIZE, false);
+                if(line < 0) break;
+                bounds.add(line);
+                start = line;
+            }
+        }
+        bounds.add(size);
+        long[] result = new long[bounds.size()];
+        for(int i = 0; i < result.length; i++){
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Finds the first line in [from, to) that starts, optionally only one that starts with the whole word "define".
+     * @param define whether the line has to start with define
+     * @return the offset of the line, or -1 if there isn't one
+     */
+    private static long findLineStart(FileChannel channel, long from, long to, boolean define) throws IOException {
+        long mapStart = from - 1; // Include the byte before, to tell whether from is a line start.
+        long mapEnd = Math.min(to + DEFINE.length + 1, channel.size());
+        MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+        int limit = (int) (to - mapStart);
+        for(int i = 1; i < limit; i++){
+            byte previous = bytes.get(i - 1);
+            boolean lineStart = previous == '\n' || previous == '\r' && bytes.get(i) != '\n';
+            if(lineStart && (!define || startsWithDefine(bytes, i))) return mapStart + i;
+        }
+        return -1;
+    }
+
+    private static boolean startsWithDefine(MappedByteBuffer bytes, int index){
+        if(index + DEFINE.length > bytes.limit()) return false;
+        for(int i = 0; i < DEFINE.length; i++){
+            if(bytes.get(index + i) != DEFINE[i]) return false;
+        }
+        if(index + DEFINE.length == bytes.limit()) return true;
+        byte next = bytes.get(index + DEFINE.length);
+        // Same characters the Lexer reads as part of a word.
+        return !(next >= 'a' && next <= 'z' || next >= 'A' && next <= 'Z' || next >= '0' && next <= '9');
+    }
+
+    /**
+     * The indentation of the line before the one starting at offset, counted the same way as
+     * Lexer.getIndentCount(). Tabs and spaces are single bytes in UTF-8 and no other character
+     * contains those bytes, so counting bytes gives the same answer as counting characters.
+     */
+    private static int indentBefore(FileChannel channel, long offset) throws IOException {
+        if(offset == 0) return 0;
+        // Step back over the line terminator, then to the start of the previous line.
+        long end = offset;
+        MappedByteBuffer terminator = channel.map(FileChannel.MapMode.READ_ONLY, Math.max(0, end - 2), Math.min(2, end));
+        int last = terminator.limit() - 1;
+        end--;
+        if(terminator.get(last) == '\n' && last > 0 && terminator.get(last - 1) == '\r') end--;
+        long start = end;
+        final int step = 4096;
+        while(start > 0){
+            long from = Math.max(0, start - step);
+            MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, from, start - from);
+            int i = bytes.limit() - 1;
+            while(i >= 0 && bytes.get(i) != '\n' && bytes.get(i) != '\r') i--;
+            if(i >= 0){
+                start = from + i + 1;
+                break;
+            }
+            start = from;
+        }
+        MappedByteBuffer line = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        int count = 0;
+        int i = 0;
+        int length = line.limit();
+        while(i < length){
+            if(line.get(i) == '\t'){
+                count++;
+                i++;
+            } else if(i < length - 3 && line.get(i) == ' ' && line.get(i + 1) == ' '
+                    && line.get(i + 2) == ' ' && line.get(i + 3) == ' '){
+                count++;
+                i += 4;
+            } else {
+                i++;
+            }
+        }
+        return count;
+    }
+
+    private static <T> T join(RecursiveTask<T> task) throws IOException {
+        try{
+            return task.join();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Counts the lines in [start, end). Line terminators are \n, \r\n or a lone \r.
+     * The range is mapped at most MAX_CHUNK_SIZE bytes at a time.
+     */
+    private static final class LineCountTask extends RecursiveTask<Integer> {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+        private final long size;
+
+        LineCountTask(FileChannel channel, long start, long end, long size){
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+            this.size = size;
+        }
+
+        @Override
+        protected Integer compute() {
+            try{
+                int lines = 0;
+                for(long from = start; from < end; from += MAX_CHUNK_SIZE){
+                    long to = Math.min(from + MAX_CHUNK_SIZE, end);
+                    // Map one extra byte to see whether a \r at the end is followed by \n.
+                    MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(to + 1, size) - from);
+                    int length = (int) (to - from);
+                    for(int i = 0; i < length; i++){
+                        byte b = bytes.get(i);
+                        if(b == '\n' || b == '\r' && (i + 1 >= bytes.limit() || bytes.get(i + 1) != '\n')) lines++;
+                    }
+                }
+                return lines;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Lexes the lines in [start, end) with a lexer of its own.
+     */
+    private static final class ChunkTask extends RecursiveTask<Lexer> {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+        private final Lexer lexer;
+        private List<LexerException> errors;
+
+        ChunkTask(FileChannel channel, long start, long end, int linesBefore, int indent){
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+            this.lexer = new Lexer(linesBefore, indent);
+        }
+
+        @Override
+        protected Lexer compute() {
+            try(SourceReader reader = new SourceReader(channel, start, end)){
+                errors = lexer.lex(reader);
+                return lexer;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package m.pat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Parses the functions of large programs in parallel.
+ * A function only ever starts at a DEFINE token outside of any indentation, and the parser
+ * is at indent level 0 with nothing pending at that point, so the tokens are split into
+ * batches of whole functions and every batch is parsed by its own Parser on a ForkJoinPool.
+ * The functions are then put into the ProgramNode in the order they were defined, so a
+ * duplicate name replaces the earlier function the same as it does when parsing sequentially.
+ * If any batch fails to parse, the whole program is parsed sequentially to report the
+ * same SyntaxErrorException the sequential parser would.
+ * Function bodies are skipped until they are called, so there is little to split. Only a
+ * source the ParallelLexer would split is parsed in parallel.
+ */
+final class ParallelParser {
+
+    private static final int MIN_BATCH_SIZE = 1 << 14; // Programs smaller than 32K tokens aren't worth splitting.
+
+    private ParallelParser(){}
+
+    /**
+     * Parses tokens into a ProgramNode, in parallel when there are enough of them to be worth it.
+     * @param tokens the tokens from the Lexer
+     * @param sourceSize the size in bytes of the source the tokens were lexed from
+     * @param pool the pool to parse batches on
+     * @return the ProgramNode
+     * @throws SyntaxErrorException if parsing fails
+     */
+    static ProgramNode parse(TokenBuffer tokens, long sourceSize, ForkJoinPool pool) throws SyntaxErrorException {
+        if(!ParallelLexer.worthSplitting(sourceSize)){
+            return (ProgramNode) new Parser(tokens).parse();
+        }
+        int batchCount = Math.min(pool.getParallelism() * 4, tokens.size() / MIN_BATCH_SIZE);
+        int[] bounds = batchCount < 2 ? null : findBatchBounds(tokens, batchCount);
+        if(bounds == null || bounds.length < 3){
+            return (ProgramNode) new Parser(tokens).parse();
+        }
+        if(Trace.PARSER_INFO) Trace.log(Trace.Category.PARSER, "Beginning parsing... (" + (bounds.length - 1) + " batches)");
+
+        List<BatchTask> tasks = new ArrayList<>(bounds.length - 1);
+        for(int i = 0; i < bounds.length - 1; i++){
+            BatchTask task = new BatchTask(tokens, bounds[i], bounds[i + 1]);
+            tasks.add(task);
+            pool.execute(task);
+        }
+        List<FunctionNode> functions = new ArrayList<>();
+        boolean failed = false;
+        for(BatchTask task : tasks){
+            List<FunctionNode> batch = task.join();
+            if(batch == null){
+                failed = true;
+            } else if(!failed) {
+                functions.addAll(batch);
+            }
+        }
+        if(failed){
+            return (ProgramNode) new Parser(tokens).parse();
+        }
+        return Parser.program(functions);
+    }
+
+    /**
+     * Picks batch boundaries near evenly spaced targets. Every boundary apart from the last
+     * is a DEFINE token at indent level 0, and only ENDOFLINE tokens come before the first.
+     * @return increasing token indexes ending at tokens.size(), or null if the tokens can't be split
+     */
+    private static int[] findBatchBounds(TokenBuffer tokens, int batchCount){
+        int size = tokens.size();
+        int batchSize = size / batchCount;
+        List<Integer> bounds = new ArrayList<>();
+        int depth = 0;
+        int target = 0;
+        for(int i = 0; i < size; i++){
+            Token.TokenType tokenType = tokens.type(i);
+            if(tokenType == Token.TokenType.INDENT){
+                depth++;
+            } else if(tokenType == Token.TokenType.DEDENT){
+                depth--;
+            } else if(tokenType == Token.TokenType.DEFINE && depth == 0 && i >= target){
+                bounds.add(i);
+                target = Math.max(i + 1, bounds.size() * batchSize);
+            } else if(bounds.isEmpty() && tokenType != Token.TokenType.ENDOFLINE){
+                // Something other than a function at the start, let the sequential parser report it.
+                return null;
+            }
+        }
+        if(bounds.isEmpty()) return null;
+        bounds.add(size);
+        int[] result = new int[bounds.size()];
+        for(int i = 0; i < result.length; i++){
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Parses the functions in [start, end) with a parser of its own.
+     * Joins to null if the batch doesn't parse.
+     */
+    private static final class BatchTask extends RecursiveTask<List<FunctionNode>> {
+        private static final long serialVersionUID = 1L;
+
+        private final TokenBuffer tokens;
+        private final int start;
+        private final int end;
+
+        BatchTask(TokenBuffer tokens, int start, int end){
+            this.tokens = tokens;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected List<FunctionNode> compute() {
+            try{
+                return new Parser(tokens, start, end).functions();
+            } catch (SyntaxErrorException e) {
+                return null;
+            }
+        }
+    }
+}
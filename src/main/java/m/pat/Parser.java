@@ -1,29 +1,38 @@
 package m.pat;
 
-import java.rmi.server.ServerNotActiveException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
-import java.util.function.Function;
 
 public class Parser {
 
-    private List<Token> tokens;
+    private final TokenBuffer tokens;
+    private final int end;
     private int currentIndex;
-    private Token currentToken;
     private int indentLevel;
 
     /**
-     * Instantiates the parser with a list of tokens.
-     * The list of tokens acts like a queue, matching and
-     * removing expected tokens.
-     * @param tokens the list of tokens to parse
+     * Instantiates the parser with the tokens from the Lexer.
+     * The parser reads the tokens through a cursor, matching and
+     * stepping past expected tokens. The tokens themselves are never modified.
+     * @param tokens the tokens to parse
      */
-    Parser(List<Token> tokens){
+    Parser(TokenBuffer tokens){
+        this(tokens, 0, tokens.size());
+    }
+
+    /**
+     * Instantiates the parser over part of the tokens from the Lexer, tokens
+     * outside of [start, end) are treated as if they don't exist.
+     * @param tokens the tokens to parse
+     * @param start index of the first token to parse
+     * @param end index one past the last token to parse
+     */
+    Parser(TokenBuffer tokens, int start, int end){
         this.tokens = tokens;
-        this.currentIndex = 0;
-        this.currentToken = tokens.get(0);
+        this.end = end;
+        this.currentIndex = start;
         this.indentLevel = 0;
     }
 
@@ -39,87 +48,97 @@ public class Parser {
 
     /**
      * Accepts a token type, if the token type matches the next token type
-     * token is removed from list and returned. If not a match, returns null.
+     * the cursor moves past the token. Nothing is materialized, callers that
+     * need the text of the token read it with peekValue(0) before matching.
      * @param tokenType the type of token to check for
-     * @return null if next token is not a match, or the token that was removed.
+     * @return true if the next token was a match and has been stepped past.
      */
-    private Token matchAndRemove(Token.TokenType tokenType){
-        Token tok = peek(0); // Peek the next token.
-        if(tok.getTokenType() == tokenType){
+    private boolean matchAndRemove(Token.TokenType tokenType){
+        if(peekType(0) == tokenType){
             // Keep track of indent level.
-            if(tok.getTokenType() == Token.TokenType.INDENT) indentLevel++;
-            if(tok.getTokenType() == Token.TokenType.DEDENT) indentLevel--;
-            // Token is  match, remove and return it.
+            if(tokenType == Token.TokenType.INDENT) indentLevel++;
+            if(tokenType == Token.TokenType.DEDENT) indentLevel--;
 
-            if(Shank.DEBUG) System.out.println("matchAndRemove() | " + Thread.currentThread().getStackTrace()[2].getMethodName() + "(): Removed " + tokenType.name() + "(" + tok.getValue() + ") index " + currentIndex + "/" + tokens.size());
-            tokens.remove(currentIndex);
-            //currentIndex++;
-            return tok;
+            if(Trace.PARSER_TRACE) Trace.log(Trace.Category.PARSER, "matchAndRemove() | " + Thread.currentThread().getStackTrace()[2].getMethodName() + "(): Removed " + tokenType.name() + "(" + tokens.text(currentIndex) + ") index " + currentIndex + "/" + end);
+            currentIndex++;
+            return true;
         }
-        return null;
+        return false;
     }
 
-    private Token expectsToken(Token.TokenType tokenType) throws SyntaxErrorException{
-        Token token = peek(0);
-
-        if(token != null) {
-            if (token.getTokenType() == tokenType) {
-                matchAndRemove(tokenType);
-                token = peek(0);
-                assert  token != null;
-
-                if (token.getTokenType() == tokenType) {
-                    expectsToken(tokenType);
-                } else {
-                    return token;
-
-                }
-            } else {
-
-                throw new SyntaxErrorException("Expected " + tokenType.name() + " token, found: " + token);
-            }
-        } else {
+    /**
+     * Expects one or more tokens of a type, and steps past all of them.
+     * @param tokenType the type of token expected
+     * @throws SyntaxErrorException if the next token is not of the type
+     */
+    private void expectsToken(Token.TokenType tokenType) throws SyntaxErrorException{
+        Token.TokenType next = peekType(0);
+        if(next == null) {
             throw new SyntaxErrorException("Expected " + tokenType.name() + " token, found nothing. ");
+        } else if(next != tokenType) {
+            throw new SyntaxErrorException("Expected " + tokenType.name() + " token, found: " + peek(0));
+        }
+        while(matchAndRemove(tokenType)){
+            // Step past every match.
         }
-        return null;
     }
 
     /**
-     * Checks if the next token is an end of line.
-     * Returns ENDOFLINE token or
+     * Checks if the next token is an end of line, and steps past it
+     * and any end of lines straight after it. Running out of tokens
+     * counts as an end of line.
      * If not, throws a SyntaxErrorException
      * @throws SyntaxErrorException if the next token type is not end of line.
      */
-    private Token expectsEndOfLine() throws SyntaxErrorException {
-        Token token = peek(0);
-        if(token != null) {
-            if (token.getTokenType() == Token.TokenType.ENDOFLINE) {
-                matchAndRemove(Token.TokenType.ENDOFLINE);
-                token = peek(0);
-
-                if (token != null && token.getTokenType() == Token.TokenType.ENDOFLINE) {
-                    expectsEndOfLine();
-                }
-                return token;
-            }
-        } else {
-            return null;
+    private void expectsEndOfLine() throws SyntaxErrorException {
+        Token.TokenType next = peekType(0);
+        if(next != null && next != Token.TokenType.ENDOFLINE) {
+            throw new SyntaxErrorException("Expected end of line token not found. Found: " + peek(0));
+        }
+        while(matchAndRemove(Token.TokenType.ENDOFLINE)){
+            // Step past every end of line.
         }
-        throw new SyntaxErrorException("Expected end of line token not found. Found: " + token);
     }
 
     /**
-     * Looks ahead a given amount, returns null if it can't.
+     * Looks ahead a given amount, returns null if it can't. This builds a Token,
+     * so it's only used for error messages, parsing goes by peekType() and peekValue().
      * @param index the index (currentIndex+index) to peek
      * @return null if nothing found, token if found.
      */
     private Token peek(int index){
-        if((currentIndex + index) < tokens.size()){
+        if((currentIndex + index) < end){
             return tokens.get(currentIndex + index);
         }
         return null;
     }
 
+    /**
+     * Looks ahead a given amount at just the type of token, without
+     * materializing the token.
+     * @param index the index (currentIndex+index) to peek
+     * @return null if nothing found, the token type if found.
+     */
+    private Token.TokenType peekType(int index){
+        if((currentIndex + index) < end){
+            return tokens.type(currentIndex + index);
+        }
+        return null;
+    }
+
+    /**
+     * Looks ahead a given amount at just the text of a token, without
+     * materializing the token.
+     * @param index the index (currentIndex+index) to peek
+     * @return null if nothing found or the token has no text, the text if found.
+     */
+    private String peekValue(int index){
+        if((currentIndex + index) < end){
+            return tokens.text(currentIndex + index);
+        }
+        return null;
+    }
+
     /**
      * Main parsing method. Returns a ProgramNode if code
      * parses correctly, null if not.
@@ -127,33 +146,55 @@ public class Parser {
      * @throws SyntaxErrorException if parsing fails
      */
     public Node parse() throws SyntaxErrorException {
-        System.out.println("Beginning parsing...");
-        ProgramNode programNode;
-        HashMap<String, FunctionNode> functions = new HashMap<>();
+        if(Trace.PARSER_INFO) Trace.log(Trace.Category.PARSER, "Beginning parsing...");
 
         // Clear up any ENDOFLINE's that are present before code tokens.
-        Token token = peek(0);
-        if(token != null && token.getTokenType() == Token.TokenType.ENDOFLINE) expectsEndOfLine();
+        if(peekType(0) == Token.TokenType.ENDOFLINE) expectsEndOfLine();
         // Begin parsing for functions.
+        ProgramNode programNode = program(functions());
+        if(programNode != null){
+            return programNode;
+        }
+        throw new SyntaxErrorException("Parsing found non matching token: " + peek(0));
+    }
+
+    /**
+     * Parses functions until there are no tokens left.
+     * @return the functions found, in the order they were defined
+     * @throws SyntaxErrorException if anything other than a function is found
+     */
+    List<FunctionNode> functions() throws SyntaxErrorException {
+        List<FunctionNode> functions = new ArrayList<>();
         Node node = function();
         while(node != null){
-            if(node instanceof FunctionNode){
-                String name = ((FunctionNode) node).getName();
-                if(functions.containsKey(name)){
-                    System.out.println("Duplicate function name! (" + name + ")");
-                    functions.replace(((FunctionNode) node).getName(), ((FunctionNode) node));
-                } else {
-                    functions.put(((FunctionNode) node).getName(), ((FunctionNode) node));
-                }
-                if(Shank.DEBUG) System.out.println("Found function: " + node);
-                node = function();
+            functions.add((FunctionNode) node);
+            if(Trace.PARSER_DEBUG) Trace.log(Trace.Category.PARSER, "Found function: " + node);
+            node = function();
+        }
+        return functions;
+    }
+
+    /**
+     * Builds a ProgramNode from functions in the order they were defined.
+     * A function with the same name as an earlier one replaces it.
+     * @param functionNodes the functions in definition order
+     * @return the ProgramNode, or null if there were no functions
+     */
+    static ProgramNode program(List<FunctionNode> functionNodes){
+        HashMap<String, FunctionNode> functions = new HashMap<>();
+        for(FunctionNode functionNode : functionNodes){
+            String name = functionNode.getName();
+            if(functions.containsKey(name)){
+                if(Trace.PARSER_INFO) Trace.log(Trace.Category.PARSER, "Duplicate function name! (" + name + ")");
+                functions.replace(name, functionNode);
+            } else {
+                functions.put(name, functionNode);
             }
         }
         if(functions.size() > 0){
-            programNode = new ProgramNode(functions);
-            return programNode;
+            return new ProgramNode(functions);
         }
-        throw new SyntaxErrorException("Parsing found non matching token: " + tokens.get(currentIndex));
+        return null;
     }
 
     // MATH OPERATIONS
@@ -168,11 +209,11 @@ public class Parser {
 
         Node left = term();
         while (true) {
-            Token token = peek(0);
-            if (token != null && (token.getTokenType() == Token.TokenType.PLUS || token.getTokenType() == Token.TokenType.MINUS)) {
-                matchAndRemove(token.getTokenType());
+            Token.TokenType tokenType = peekType(0);
+            if (tokenType == Token.TokenType.PLUS || tokenType == Token.TokenType.MINUS) {
+                matchAndRemove(tokenType);
                 Node right = term();
-                left = new MathOpNode(token.getTokenType() == Token.TokenType.PLUS ? MathOp.PLUS : MathOp.MINUS, left, right);
+                left = new MathOpNode(tokenType == Token.TokenType.PLUS ? MathOp.PLUS : MathOp.MINUS, left, right);
             } else {
                 break;
             }
@@ -189,16 +230,16 @@ public class Parser {
         // term = factor {(times or divide or mod) factor}
         Node left = factor();
         while (true) {
-            Token token = peek(0);
-            if (token != null && token.getTokenType() == Token.TokenType.MULTIPLY) {
+            Token.TokenType tokenType = peekType(0);
+            if (tokenType == Token.TokenType.MULTIPLY) {
                 matchAndRemove(Token.TokenType.MULTIPLY);
                 Node right = factor();
                 left = new MathOpNode(MathOp.TIMES, left, right);
-            } else if (token != null && token.getTokenType() == Token.TokenType.DIVIDE) {
+            } else if (tokenType == Token.TokenType.DIVIDE) {
                 matchAndRemove(Token.TokenType.DIVIDE);
                 Node right = factor();
                 left = new MathOpNode(MathOp.DIVIDE, left, right);
-            } else if (token != null && token.getTokenType() == Token.TokenType.MODULUS) {
+            } else if (tokenType == Token.TokenType.MODULUS) {
                 matchAndRemove(Token.TokenType.MODULUS);
                 Node right = factor();
                 left = new MathOpNode(MathOp.MOD, left, right);
@@ -217,10 +258,10 @@ public class Parser {
      * @throws SyntaxErrorException if VariableReference name is not found
      */
     public Node factor() {
-        Token token = peek(0);
+        Token.TokenType tokenType = peekType(0);
 
         // Base case check parens/groupings.
-        switch(token.getTokenType()){
+        switch(tokenType){
             // P
             case PARENTHESIS_L -> {
                 matchAndRemove(Token.TokenType.PARENTHESIS_L);
@@ -230,35 +271,35 @@ public class Parser {
             }
             // ..EMDA
             case NUMBER -> {
+                String number = peekValue(0);
                 matchAndRemove(Token.TokenType.NUMBER);
-                if(token.getValue().contains(".")){
-                    return new FloatNode(Float.parseFloat(token.getValue()));
+                if(number.contains(".")){
+                    return new FloatNode(Float.parseFloat(number));
                 } else {
-                    return new IntegerNode(Integer.parseInt(token.getValue()));
+                    return new IntegerNode(Integer.parseInt(number));
                 }
             }
             // ..S
             case MINUS -> {
                 matchAndRemove(Token.TokenType.MINUS);
-                token = peek(0);
-                if(token.getValue().contains(".")){
-                    matchAndRemove(Token.TokenType.NUMBER);
-                    return new FloatNode(-1 * Float.parseFloat(token.getValue()));
+                String number = peekValue(0);
+                matchAndRemove(Token.TokenType.NUMBER);
+                if(number.contains(".")){
+                    return new FloatNode(-1 * Float.parseFloat(number));
                 } else {
-                    matchAndRemove(Token.TokenType.NUMBER);
-                    return new IntegerNode(-1 * Integer.parseInt(token.getValue()));
+                    return new IntegerNode(-1 * Integer.parseInt(number));
                 }
             }
             // VariableReference
             case IDENTIFIER -> {
                 String varName;
-                token = peek(0);
-                varName = token.getValue();
+                tokenType = peekType(0);
+                varName = peekValue(0);
                 matchAndRemove(Token.TokenType.IDENTIFIER);
 
                 if(varName != null){
-                    token = peek(0);
-                    if(token.getTokenType() == Token.TokenType.INDEX_L){
+                    tokenType = peekType(0);
+                    if(tokenType == Token.TokenType.INDEX_L){
                         matchAndRemove(Token.TokenType.INDEX_L);
                         Node index = expression();
                         matchAndRemove(Token.TokenType.INDEX_R);
@@ -272,14 +313,14 @@ public class Parser {
             }
             // Strings & Chars
             case STRINGLITERAL -> {
-                token = peek(0);
-                if(token != null){
-                    if(token.getTokenType() == Token.TokenType.STRINGLITERAL){
-                        String stringLiteral = token.getValue();
+                tokenType = peekType(0);
+                if(tokenType != null){
+                    if(tokenType == Token.TokenType.STRINGLITERAL){
+                        String stringLiteral = peekValue(0);
                         matchAndRemove(Token.TokenType.STRINGLITERAL);
                         // Check for concatenation of StringLiteral.
-                        token = peek(0);
-                        if(token.getTokenType() == Token.TokenType.PLUS){
+                        tokenType = peekType(0);
+                        if(tokenType == Token.TokenType.PLUS){
                             // A bit weird, but build a MathOpNode to represent the string concat.
                             matchAndRemove(Token.TokenType.PLUS);
                             Node right = expression();
@@ -293,14 +334,14 @@ public class Parser {
             }
 
             case CHARACTERLITERAL -> {
-                token = peek(0);
-                if(token != null){
-                    if(token.getTokenType() == Token.TokenType.CHARACTERLITERAL){
-                        char charLiteral = token.getValue().charAt(0);
+                tokenType = peekType(0);
+                if(tokenType != null){
+                    if(tokenType == Token.TokenType.CHARACTERLITERAL){
+                        char charLiteral = peekValue(0).charAt(0);
                         matchAndRemove(Token.TokenType.CHARACTERLITERAL);
                         // Check for concat of CharacterLiteral
-                        token = peek(0);
-                        if(token.getTokenType() == Token.TokenType.PLUS){
+                        tokenType = peekType(0);
+                        if(tokenType == Token.TokenType.PLUS){
                             matchAndRemove(Token.TokenType.PLUS);
                             Node right = expression();
                             return new MathOpNode(MathOp.PLUS, new CharacterNode(charLiteral), right);
@@ -334,14 +375,14 @@ public class Parser {
      */
     public Node boolCompare() throws SyntaxErrorException {
         Node left = expression();
-        Token token = peek(0);
+        Token.TokenType tokenType = peekType(0);
         BooleanComparison comparisonType;
-        if(token != null){
-            if((comparisonType = token.isComparisonNode()) != null){
+        if(tokenType != null){
+            if((comparisonType = Token.comparisonOf(tokenType)) != null){
                 // Expect another expression,
-                matchAndRemove(token.getTokenType());
+                matchAndRemove(tokenType);
                 Node right = expression();
-                if(Shank.DEBUG) System.out.println("boolCompare(): Found left " + left + ", " + comparisonType + ", " + right);
+                if(Trace.PARSER_DEBUG) Trace.log(Trace.Category.PARSER, "boolCompare(): Found left " + left + ", " + comparisonType + ", " + right);
                 return new BooleanCompareNode(comparisonType, left, right);
             } else {
                 // No other expression.
@@ -355,97 +396,120 @@ public class Parser {
     // FUNCTION AND VARIABLE METHODS
 
     /**
-     * Returns a FunctionNode.
+     * Returns a FunctionNode with just its signature parsed. The body is skipped
+     * and only parsed when the function is first called, see {@link FunctionNode#ensureParsed()}.
      * @return function node
      */
     public Node function() throws SyntaxErrorException {
         // function() expects a DEFINE, IDENTIFIER, LEFT_PAREN, LIST_OF_VARS, RIGHT_PAREN, ENDOFLINE
-        // then constants and variables, then an indent, then statements, then a dedent. return FunctionNode or null.
+        // then the body up to the next DEFINE. return FunctionNode or null.
 
-        Token token;
-        token = peek(0);
-        if(token == null) return null;
-        if(token.getTokenType() == Token.TokenType.DEFINE){
+        Token.TokenType tokenType = peekType(0);
+        if(tokenType == null) return null;
+        if(tokenType == Token.TokenType.DEFINE){
             matchAndRemove(Token.TokenType.DEFINE);
             // Expect an identifier.
-            token = peek(0);
-            if(token.getTokenType() == Token.TokenType.IDENTIFIER){
+            tokenType = peekType(0);
+            if(tokenType == Token.TokenType.IDENTIFIER){
                 // Read function name.
-                String functionName = token.getValue();
+                String functionName = peekValue(0);
                 matchAndRemove(Token.TokenType.IDENTIFIER);
-                token = peek(0);
-                if(token.getTokenType() == Token.TokenType.PARENTHESIS_L){
+                tokenType = peekType(0);
+                if(tokenType == Token.TokenType.PARENTHESIS_L){
                     // We're processing the function parameters.
                     matchAndRemove(Token.TokenType.PARENTHESIS_L);
                     // Call processDeclarations to collect any function parameters.
                     Collection<VariableNode> parameters = processDeclarations(false);
-                    if(Shank.DEBUG) System.out.println("function (" + functionName + "): Finished processing function parameters (" + parameters.size() + " parameters)");
+                    if(Trace.PARSER_DEBUG) Trace.log(Trace.Category.PARSER, "function (" + functionName + "): Finished processing function parameters (" + parameters.size() + " parameters)");
 
 
                     // variableNodes can be empty, expect PAREN_R
-                    token = peek(0);
-                    if(token.getTokenType() == Token.TokenType.PARENTHESIS_R){
+                    tokenType = peekType(0);
+                    if(tokenType == Token.TokenType.PARENTHESIS_R){
                         matchAndRemove(Token.TokenType.PARENTHESIS_R);
                         // Need ENDOFLINE to seal the deal.
                         // TODO: Replace with expectsEndOfLine();
-                        token = peek(0);
-                        if(token.getTokenType() == Token.TokenType.ENDOFLINE){
+                        tokenType = peekType(0);
+                        if(tokenType == Token.TokenType.ENDOFLINE){
                             // We have processed define xyz (a,b,c : integer...) endofline
                             matchAndRemove(Token.TokenType.ENDOFLINE);
-                            token = peek(0);
-                            // Process the constants and variables that are defined for the function
-                            Collection<VariableNode> constantsAndVariables = new ArrayList<>();
-                            while(token.getTokenType() == Token.TokenType.CONSTANTS
-                            || token.getTokenType() == Token.TokenType.VARIABLES){
-                                if(token.getTokenType() == Token.TokenType.CONSTANTS){
-                                    matchAndRemove(Token.TokenType.CONSTANTS);
-
-                                    constantsAndVariables.addAll( processDeclarations(true));
-                                } else {
-                                    matchAndRemove(Token.TokenType.VARIABLES);
-
-                                    constantsAndVariables.addAll( processDeclarations(false));
-                                }
-                                if(Shank.DEBUG) System.out.println("function(): (" + functionName + "): Finished processing constants and variables (" + constantsAndVariables.size() + ")");
-
-                                expectsEndOfLine();
-                                break;
-                            }
-
-                            token = peek(0);
-
-                            // Expect either INDENT and statements or nothing else.
-                            if(token.getTokenType() == Token.TokenType.INDENT){
-                                // Expect statements...
-                                //matchAndRemove(Token.TokenType.INDENT);
-                                List<StatementNode> statements = statements();
-
-                                System.out.println("Function(" + functionName + "): " + statements.size() + " statements.");
-
-                                return new FunctionNode(functionName, parameters, constantsAndVariables, statements);
-                            } else {
-                                // No statements for function.
-                                List<StatementNode> statements = new ArrayList<>();
-                                System.out.println("Function(" + functionName + "): no statements.");
-                                return new FunctionNode(functionName, parameters, constantsAndVariables, statements);
+                            // Skip over the body. A statement can never contain DEFINE, so the
+                            // body is everything up to the next one (which is back at indent 0).
+                            int bodyStart = currentIndex;
+                            while(currentIndex < end && tokens.type(currentIndex) != Token.TokenType.DEFINE){
+                                if(tokens.type(currentIndex) == Token.TokenType.INDENT) indentLevel++;
+                                if(tokens.type(currentIndex) == Token.TokenType.DEDENT) indentLevel--;
+                                currentIndex++;
                             }
-
+                            if(Trace.PARSER_DEBUG) Trace.log(Trace.Category.PARSER, "Function(" + functionName + "): body is tokens " + bodyStart + "-" + currentIndex + ".");
+                            return new FunctionNode(functionName, parameters, tokens, bodyStart, currentIndex);
                         }
                     } else {
-                        throw new SyntaxErrorException("Expected a right parenthesis, found: " + token);
+                        throw new SyntaxErrorException("Expected a right parenthesis, found: " + peek(0));
                     }
 
                 } else {
-                    throw new SyntaxErrorException("Expected a left parenthesis, found: " + token);
+                    throw new SyntaxErrorException("Expected a left parenthesis, found: " + peek(0));
                 }
 
             } else {
-                throw new SyntaxErrorException("Expected IDENTIFIER token, found: " + token);
+                throw new SyntaxErrorException("Expected IDENTIFIER token, found: " + peek(0));
             }
         } else {
-            throw new SyntaxErrorException("Expected DEFINE token, found: " + token);
+            throw new SyntaxErrorException("Expected DEFINE token, found: " + peek(0));
         }
-        throw new SyntaxErrorException("Unexpected token: " + token);
+        throw new SyntaxErrorException("Unexpected token: " + peek(0));
+    }
+
+    /**
+     * Parses the body of a function, the constants and variables and then the statements.
+     * The parser is expected to cover exactly the body tokens of the function.
+     * @param functionNode the function to set the body of
+     * @throws SyntaxErrorException if the body doesn't parse, or has tokens left over
+     */
+    void functionBody(FunctionNode functionNode) throws SyntaxErrorException {
+        String functionName = functionNode.getName();
+        Token.TokenType tokenType = peekType(0);
+        // Process the constants and variables that are defined for the function
+        Collection<VariableNode> constantsAndVariables = new ArrayList<>();
+        while(tokenType == Token.TokenType.CONSTANTS
+        || tokenType == Token.TokenType.VARIABLES){
+            if(tokenType == Token.TokenType.CONSTANTS){
+                matchAndRemove(Token.TokenType.CONSTANTS);
+
+                constantsAndVariables.addAll( processDeclarations(true));
+            } else {
+                matchAndRemove(Token.TokenType.VARIABLES);
+
+                constantsAndVariables.addAll( processDeclarations(false));
+            }
+            if(Trace.PARSER_DEBUG) Trace.log(Trace.Category.PARSER, "function(): (" + functionName + "): Finished processing constants and variables (" + constantsAndVariables.size() + ")");
+
+            expectsEndOfLine();
+            tokenType = peekType(0);
+        }
+
+        tokenType = peekType(0);
+
+        // Expect either INDENT and statements or nothing else.
+        List<StatementNode> statements;
+        if(tokenType == Token.TokenType.INDENT){
+            // Expect statements...
+            statements = statements();
+            if(Trace.PARSER_DEBUG) Trace.log(Trace.Category.PARSER, "Function(" + functionName + "): " + statements.size() + " statements.");
+        } else {
+            // No statements for function.
+            statements = new ArrayList<>();
+            if(Trace.PARSER_DEBUG) Trace.log(Trace.Category.PARSER, "Function(" + functionName + "): no statements.");
+        }
+        // Anything left over would have been where the next DEFINE was expected.
+        while(peekType(0) == Token.TokenType.DEDENT || peekType(0) == Token.TokenType.ENDOFLINE){
+            matchAndRemove(peekType(0));
+        }
+        if(peekType(0) != null){
+            throw new SyntaxErrorException("Unexpected token in function " + functionName + ": " + peek(0));
+        }
+        functionNode.setBody(constantsAndVariables, statements);
     }
 
     /**
@@ -456,52 +520,52 @@ public class Parser {
      * @return assignment node
      */
     public AssignmentNode assignment() throws SyntaxErrorException {
-        Token token = peek(0);
+        Token.TokenType tokenType = peekType(0);
         // Check if token is an identifier.
-        if(token.getTokenType() != Token.TokenType.IDENTIFIER){
-            throw new SyntaxErrorException("Expected identifier in assignment statement. Found: " + token);
+        if(tokenType != Token.TokenType.IDENTIFIER){
+            throw new SyntaxErrorException("Expected identifier in assignment statement. Found: " + peek(0));
         }
         // Create a variable reference node with the name of the identifier.
-        VariableReferenceNode variableRefNode = new VariableReferenceNode(token.getValue());
+        VariableReferenceNode variableRefNode = new VariableReferenceNode(peekValue(0));
         matchAndRemove(Token.TokenType.IDENTIFIER);
-        token = peek(0);
-        if(token.getTokenType() == Token.TokenType.INDEX_L){
+        tokenType = peekType(0);
+        if(tokenType == Token.TokenType.INDEX_L){
 
             matchAndRemove(Token.TokenType.INDEX_L);
 
             // Parse any array indices present.
             int indexCounter = 0;
-            while(token.getTokenType() != Token.TokenType.ASSIGNER ){
-                switch(token.getTokenType()){
+            while(tokenType != Token.TokenType.ASSIGNER ){
+                switch(tokenType){
                     case IDENTIFIER -> {
                         // Nested array identifier.
-                        variableRefNode.setName(token.getValue());
+                        variableRefNode.setName(peekValue(0));
                         matchAndRemove(Token.TokenType.IDENTIFIER);
-                        token = peek(0);
+                        tokenType = peekType(0);
                     }
                     case NUMBER -> {
                         // Array index.
                         // Check if number is floating point.
-                        if(token.getValue().contains(".")){
+                        if(peekValue(0).contains(".")){
                             throw new SyntaxErrorException("Array index cannot be a floating point.");
                         } else {
                             // Set the variable reference node index to the array index specified.
-                            variableRefNode.setIndex(new IntegerNode(Integer.parseInt(token.getValue())));
+                            variableRefNode.setIndex(new IntegerNode(Integer.parseInt(peekValue(0))));
                             matchAndRemove(Token.TokenType.NUMBER);
-                            token = peek(0);
+                            tokenType = peekType(0);
                         }
                     }
                     case INDEX_L -> {
                         indexCounter++;
                         matchAndRemove(Token.TokenType.INDEX_L);
-                        token = peek(0);
+                        tokenType = peekType(0);
                     }
                     case INDEX_R -> {
                         indexCounter--;
                         matchAndRemove(Token.TokenType.INDEX_R);
-                        token = peek(0);
+                        tokenType = peekType(0);
                     }
-                    default -> throw new SyntaxErrorException("Unexpected token found while processing array: " + token);
+                    default -> throw new SyntaxErrorException("Unexpected token found while processing array: " + peek(0));
                 }
                 //Node index = parseArrayIndex();
                 //variableRefNode.setIndex(index);
@@ -509,16 +573,16 @@ public class Parser {
         }
 
         // Make sure next token is assign token.
-        token = peek(0);
-        if(token.getTokenType() != Token.TokenType.ASSIGNER){
-            throw new SyntaxErrorException("Expected an assigner operator :=, found: " + token);
+        tokenType = peekType(0);
+        if(tokenType != Token.TokenType.ASSIGNER){
+            throw new SyntaxErrorException("Expected an assigner operator :=, found: " + peek(0));
         }
         matchAndRemove(Token.TokenType.ASSIGNER);
 
         Node rightOperation = boolCompare();
 
         AssignmentNode assignmentNode = new AssignmentNode(variableRefNode, rightOperation);
-        System.out.println("Got assignment: " + assignmentNode);
+        if(Trace.PARSER_DEBUG) Trace.log(Trace.Category.PARSER, "Got assignment: " + assignmentNode);
         expectsEndOfLine();
 
         return assignmentNode;
@@ -526,68 +590,56 @@ public class Parser {
 
     /**
      * Parses a list of statements.
-     * Expects INDENT, then keeps gathering statement() while the
-     * getIndentLevel() > 0. Expects DEDENT after each statement() call.
+     * Expects INDENT, then keeps gathering statement() until a DEDENT
+     * takes the indent level back below the level of the block.
      * @return the list of statements found
      * @throws SyntaxErrorException if there was an error parsing statements
      */
     public List<StatementNode> statements() throws SyntaxErrorException {
         List<StatementNode> statementNodes = new ArrayList<>();
-        Token token = peek(0); // Used to track whether the next token is ENDOFLINE or DEDENT.
 
         expectsToken(Token.TokenType.INDENT);
+        // A blank or comment only first line is indented but has nothing on it but its ENDOFLINE.
+        while(peekType(0) == Token.TokenType.ENDOFLINE){
+            matchAndRemove(Token.TokenType.ENDOFLINE);
+        }
+        int blockLevel = getIndentLevel();
         StatementNode statementNode;
-        while((statementNode = statement()) != null){
-            if(Shank.DEBUG) System.out.println("statements(): Got statement: " + statementNode);
+        while(getIndentLevel() >= blockLevel && (statementNode = statement()) != null){
+            if(Trace.PARSER_DEBUG) Trace.log(Trace.Category.PARSER, "statements(): Got statement: " + statementNode);
             statementNodes.add(statementNode);
-            if(getIndentLevel() != 0){
-                if(Shank.DEBUG && statementNode instanceof IfNode) System.out.println("statements(): ADDED IfNode: " + statementNode);
-                if(Shank.DEBUG && statementNode instanceof WhileNode) System.out.println("statements(): ADDED WhileNode: " + statementNode);
-                if(Shank.DEBUG && statementNode instanceof ForNode) System.out.println("statements(): ADDED ForNode: " + statementNode);
-
-                // Check if we're at the end of the program.
-                token = peek(0);
-                if(token == null) return statementNodes;
-
-                // Remove any DEDENT or ENDOFLINE
-                while(token != null && (token.getTokenType() == Token.TokenType.DEDENT || token.getTokenType() == Token.TokenType.ENDOFLINE)){
-                    switch (token.getTokenType()){
-                        case DEDENT -> {
-                            expectsToken(Token.TokenType.DEDENT);
-                            token = peek(0);
-                        }
-                        case ENDOFLINE -> {
-                            expectsEndOfLine();
-                            token = peek(0);
-                        }
-                    }
-                }
 
+            // Remove any ENDOFLINE, and any DEDENT that ends this block. A DEDENT
+            // that ends an enclosing block is left for that block's statements().
+            Token.TokenType next = peekType(0);
+            while(next == Token.TokenType.ENDOFLINE || next == Token.TokenType.DEDENT && getIndentLevel() >= blockLevel){
+                matchAndRemove(next);
+                next = peekType(0);
             }
 
-            if(Shank.DEBUG) System.out.println("statements(): Finished loop, I: " + getIndentLevel());
+            if(Trace.PARSER_DEBUG) Trace.log(Trace.Category.PARSER, "statements(): Finished loop, I: " + getIndentLevel());
 
         }
-        if(Shank.DEBUG) System.out.println("statements(): Found " + statementNodes.size() + " statements.");
+        if(Trace.PARSER_DEBUG) Trace.log(Trace.Category.PARSER, "statements(): Found " + statementNodes.size() + " statements.");
         return statementNodes;
     }
 
     /**
      * Parses an individual statement.
-     * Expects assignment(), parseFunctionCalls(), parseIf(), parseFor() or parseWhile()
+     * Expects assignment(), parseFunctionCalls(), parseIf(), parseFor(), parseWhile() or parseRepeat()
      * Expects indentation to be dealt with in statements()
      * @return a StatementNode of the node being assigned.
      * @throws SyntaxErrorException if there was an error parsing the statement
      */
     public StatementNode statement() throws SyntaxErrorException {
-        Token token = peek(0);
-        if(token == null){
+        Token.TokenType tokenType = peekType(0);
+        if(tokenType == null){
             return null;
         }
 
-        switch (token.getTokenType()){
+        switch (tokenType){
             case IDENTIFIER -> {
-                if(peek(1) != null && peek(1).getTokenType() == Token.TokenType.ASSIGNER){
+                if(peekType(1) == Token.TokenType.ASSIGNER){
                     return assignment();
                 } else {
                     return parseFunctionCalls();
@@ -595,19 +647,24 @@ public class Parser {
             }
             case IF -> {
                 IfNode ifNode = parseIf();
-                if(ifNode != null) System.out.println("statement(): Returning IfNode: " + ifNode);
+                if(ifNode != null && Trace.PARSER_DEBUG) Trace.log(Trace.Category.PARSER, "statement(): Returning IfNode: " + ifNode);
                 return ifNode;
             }
             case WHILE -> {
                 WhileNode whileNode = parseWhile();
-                if(whileNode != null && (Shank.DEBUG)) System.out.println("statement(): Returning WhileNode: " + whileNode);
+                if(whileNode != null && Trace.PARSER_DEBUG) Trace.log(Trace.Category.PARSER, "statement(): Returning WhileNode: " + whileNode);
                 return whileNode;
             }
             case FOR -> {
                 ForNode forNode = parseFor();
-                if(forNode != null && (Shank.DEBUG)) System.out.println("statement(): Returning ForNode: " + forNode);
+                if(forNode != null && Trace.PARSER_DEBUG) Trace.log(Trace.Category.PARSER, "statement(): Returning ForNode: " + forNode);
                 return forNode;
             }
+            case REPEAT -> {
+                RepeatNode repeatNode = parseRepeat();
+                if(repeatNode != null && Trace.PARSER_DEBUG) Trace.log(Trace.Category.PARSER, "statement(): Returning RepeatNode: " + repeatNode);
+                return repeatNode;
+            }
             default -> { return null; }
         }
 
@@ -627,36 +684,37 @@ public class Parser {
         // (var) [identifier] (comma identifier...) [colon/equal] [type/value] (from 0/0.0 to 2/2.0) (semicolon, repeat...)
 
         Collection<VariableNode> declarations = new ArrayList<>();
-        Token token;
-        token = peek(0);
+        Token.TokenType tokenType = peekType(0);
 
-        // Use variableNode to build a variable node and then add it to declarations.
-        VariableNode variableNode = new VariableNode(null, null, false);
+        // Whether the names being collected were declared with var.
+        boolean isVar = false;
         // Use preprocessed list of VariableNode to build up multiple variables of the same type (i.e a, b, c : integer)
         Collection<VariableNode> preDeclarations = new ArrayList<>();
-        while(token != null){
-            switch (token.getTokenType()) {
+        while(tokenType != null){
+            switch (tokenType) {
 
                 // Process (VAR) and [IDENTIFIER] (COMMA IDENTIFIER)'s
                 case VAR -> {
                     matchAndRemove(Token.TokenType.VAR);
-                    variableNode.setConstant(true);
-                    token = peek(0);
+                    isVar = true;
+                    tokenType = peekType(0);
                 }
                 case IDENTIFIER -> {
                     // Add to preprocessed list.
-                    preDeclarations.add(new VariableNode(null, token.getValue(), false));
+                    VariableNode preDeclaration = new VariableNode(null, peekValue(0), isConstants);
+                    preDeclaration.setVar(isVar);
+                    preDeclarations.add(preDeclaration);
                     matchAndRemove(Token.TokenType.IDENTIFIER);
                     // Add to list.
-                    token = peek(0);
+                    tokenType = peekType(0);
                 }
                 case COMMA -> {
                     matchAndRemove(Token.TokenType.COMMA);
-                    token = peek(0);
+                    tokenType = peekType(0);
                 }
                 case COLON -> {
                     matchAndRemove(Token.TokenType.COLON);
-                    token = peek(0);
+                    tokenType = peekType(0);
                 }
 
                 // Process types.
@@ -666,7 +724,7 @@ public class Parser {
                         // We aren't aware of ranges yet, so just create a regular IntegerNode for now.
                         preDec.setType(new IntegerNode(0));
                     }
-                    token = peek(0);
+                    tokenType = peekType(0);
                 }
 
                 case FLOAT -> {
@@ -674,7 +732,7 @@ public class Parser {
                     for (VariableNode preDec : preDeclarations) {
                         preDec.setType(new FloatNode(0.0f));
                     }
-                    token = peek(0);
+                    tokenType = peekType(0);
                 }
 
                 case STRING -> {
@@ -682,7 +740,7 @@ public class Parser {
                     for (VariableNode preDec : preDeclarations) {
                         preDec.setType(new StringNode(""));
                     }
-                    token = peek(0);
+                    tokenType = peekType(0);
                 }
 
                 case CHARACTER -> {
@@ -690,7 +748,7 @@ public class Parser {
                     for(VariableNode preDec : preDeclarations){
                         preDec.setType(new CharacterNode('\0'));
                     }
-                    token = peek(0);
+                    tokenType = peekType(0);
                 }
 
                 case BOOLEAN -> {
@@ -698,30 +756,47 @@ public class Parser {
                     for(VariableNode preDec : preDeclarations){
                         preDec.setType(new BooleanNode(false));
                     }
-                    token = peek(0);
+                    tokenType = peekType(0);
+                }
+
+                // Process constant values, the literal is the type and the value.
+                case EQUALS -> {
+                    matchAndRemove(Token.TokenType.EQUALS);
+                    Node value = constantValue();
+                    for(VariableNode preDec : preDeclarations){
+                        preDec.setType(value);
+                    }
+                    // The value ends the declaration, so a comma can start the next constant.
+                    declarations.addAll(preDeclarations);
+                    preDeclarations.clear();
+                    tokenType = peekType(0);
                 }
 
                 // Process ranges.
 
                 case FROM -> {
                     matchAndRemove(Token.TokenType.FROM);
-                    Token fromRange = matchAndRemove(Token.TokenType.NUMBER);
-                    assert fromRange != null;
+                    String fromRange = peekValue(0);
+                    if(!matchAndRemove(Token.TokenType.NUMBER)){
+                        throw new SyntaxErrorException("Expected a number to start the range, found: " + peek(0));
+                    }
                     matchAndRemove(Token.TokenType.TO);
-                    Token toRange = matchAndRemove(Token.TokenType.NUMBER);
-                    assert toRange != null;
+                    String toRange = peekValue(0);
+                    if(!matchAndRemove(Token.TokenType.NUMBER)){
+                        throw new SyntaxErrorException("Expected a number to end the range, found: " + peek(0));
+                    }
                     for (VariableNode preDec : preDeclarations) {
                         // Check if the predeclarations are of the right type (IntegerNode, FloatNode or StringNode)
                         if (preDec.getType() instanceof IntegerNode) {
-                            preDec.setType(new IntegerNode(0, Integer.parseInt(fromRange.getValue()), Integer.parseInt(toRange.getValue())));
+                            preDec.setType(new IntegerNode(0, Integer.parseInt(fromRange), Integer.parseInt(toRange)));
                         } else if (preDec.getType() instanceof FloatNode) {
-                            preDec.setType(new FloatNode(0.0f, Float.parseFloat(fromRange.getValue()), Float.parseFloat(toRange.getValue())));
+                            preDec.setType(new FloatNode(0.0f, Float.parseFloat(fromRange), Float.parseFloat(toRange)));
                         } else if (preDec.getType() instanceof StringNode) {
-                            preDec.setType(new StringNode("", Integer.parseInt(fromRange.getValue()), Integer.parseInt(toRange.getValue())));
+                            preDec.setType(new StringNode("", Integer.parseInt(fromRange), Integer.parseInt(toRange)));
                         }
-                        if (Shank.DEBUG) System.out.println("processDeclarations(): processed range " + preDec);
+                        if(Trace.PARSER_DEBUG) Trace.log(Trace.Category.PARSER, "processDeclarations(): processed range " + preDec);
                     }
-                    token = peek(0);
+                    tokenType = peekType(0);
                 }
 
                 case SEMICOLON -> {
@@ -730,20 +805,71 @@ public class Parser {
                     // build any more parameters.
                     declarations.addAll(preDeclarations);
                     preDeclarations.clear();
-                    token = peek(0);
+                    isVar = false;
+                    tokenType = peekType(0);
                 }
 
                 case PARENTHESIS_R, ENDOFLINE -> {
                     declarations.addAll(preDeclarations);
-                    if(Shank.DEBUG) System.out.println("processDeclarations(): processed " + declarations.size() + " declarations: " + declarations );
+                    if(Trace.PARSER_DEBUG) Trace.log(Trace.Category.PARSER, "processDeclarations(): processed " + declarations.size() + " declarations: " + declarations );
                     return declarations;
                 }
 
+                default -> throw new SyntaxErrorException("Unexpected " + tokenType + " in declarations.");
+
             }
         }
         return declarations;
     }
 
+    /**
+     * Reads the literal after the equals of a constant declaration.
+     * @return an IntegerNode, FloatNode, StringNode, CharacterNode or BooleanNode holding the value
+     * @throws SyntaxErrorException if there's no literal
+     */
+    private Node constantValue() throws SyntaxErrorException {
+        Token.TokenType tokenType = peekType(0);
+        if(tokenType == null) throw new SyntaxErrorException("Expected a constant value, found null.");
+        boolean negative = false;
+        if(tokenType == Token.TokenType.MINUS){
+            matchAndRemove(Token.TokenType.MINUS);
+            negative = true;
+            tokenType = peekType(0);
+            if(tokenType != Token.TokenType.NUMBER)
+                throw new SyntaxErrorException("Expected a number after '-' in a constant.");
+        }
+        switch(tokenType){
+            case NUMBER -> {
+                String number = negative ? "-" + peekValue(0) : peekValue(0);
+                matchAndRemove(Token.TokenType.NUMBER);
+                try {
+                    return number.contains(".") ? new FloatNode(Float.parseFloat(number)) : new IntegerNode(Integer.parseInt(number));
+                } catch(NumberFormatException e){
+                    throw new SyntaxErrorException("Invalid constant value " + number + ".");
+                }
+            }
+            case STRINGLITERAL -> {
+                String stringLiteral = peekValue(0);
+                matchAndRemove(Token.TokenType.STRINGLITERAL);
+                return new StringNode(stringLiteral);
+            }
+            case CHARACTERLITERAL -> {
+                char charLiteral = peekValue(0).charAt(0);
+                matchAndRemove(Token.TokenType.CHARACTERLITERAL);
+                return new CharacterNode(charLiteral);
+            }
+            case TRUE -> {
+                matchAndRemove(Token.TokenType.TRUE);
+                return new BooleanNode(true);
+            }
+            case FALSE -> {
+                matchAndRemove(Token.TokenType.FALSE);
+                return new BooleanNode(false);
+            }
+            default -> throw new SyntaxErrorException("Expected a constant value, found " + tokenType + ".");
+        }
+    }
+
     /**
      * Processes a for loop statement.
      * Expects tokens FOR, IDENTIFIER, FROM, expression(), to, expression(), ENDOFLINE, statements()
@@ -751,38 +877,38 @@ public class Parser {
      * @throws SyntaxErrorException if there were any unexpected tokens found or logic.
      */
     public ForNode parseFor() throws SyntaxErrorException {
-        Token token = peek(0);
-        if(token.getTokenType() == Token.TokenType.FOR){
+        Token.TokenType tokenType = peekType(0);
+        if(tokenType == Token.TokenType.FOR){
             matchAndRemove(Token.TokenType.FOR);
-            token = peek(0);
-            if(token.getTokenType() == Token.TokenType.IDENTIFIER){
-                VariableReferenceNode variableReferenceNode =  new VariableReferenceNode(token.getValue());
+            tokenType = peekType(0);
+            if(tokenType == Token.TokenType.IDENTIFIER){
+                VariableReferenceNode variableReferenceNode =  new VariableReferenceNode(peekValue(0));
                 matchAndRemove(Token.TokenType.IDENTIFIER);
-                token = peek(0);
-                if(token.getTokenType() == Token.TokenType.FROM){
+                tokenType = peekType(0);
+                if(tokenType == Token.TokenType.FROM){
                     matchAndRemove(Token.TokenType.FROM);
                     Node from = expression();
-                    token = peek(0);
-                    if(token.getTokenType() == Token.TokenType.TO){
+                    tokenType = peekType(0);
+                    if(tokenType == Token.TokenType.TO){
                         matchAndRemove(Token.TokenType.TO);
                         Node to = expression();
                         expectsEndOfLine();
                         Collection<StatementNode> statements = statements();
-                        if(Shank.DEBUG) System.out.println("parseFor(): Collected  " + statements.size() + " statements.");
+                        if(Trace.PARSER_DEBUG) Trace.log(Trace.Category.PARSER, "parseFor(): Collected  " + statements.size() + " statements.");
                         ForNode forNode = new ForNode(variableReferenceNode, from, to, statements);
-                        if(Shank.DEBUG) System.out.println("parseFor(): Built " + forNode);
+                        if(Trace.PARSER_DEBUG) Trace.log(Trace.Category.PARSER, "parseFor(): Built " + forNode);
                         return forNode;
                     } else {
-                        throw new SyntaxErrorException("Expected to token, found: " + token);
+                        throw new SyntaxErrorException("Expected to token, found: " + peek(0));
                     }
                 } else {
-                    throw  new SyntaxErrorException("Expected from token, found: " + token);
+                    throw  new SyntaxErrorException("Expected from token, found: " + peek(0));
                 }
             } else {
-                throw new SyntaxErrorException("Expected an identifier, found: " + token);
+                throw new SyntaxErrorException("Expected an identifier, found: " + peek(0));
             }
         } else {
-            throw new SyntaxErrorException("Expected a for loop statement, found: " + token);
+            throw new SyntaxErrorException("Expected a for loop statement, found: " + peek(0));
         }
     }
 
@@ -795,22 +921,21 @@ public class Parser {
      * @throws SyntaxErrorException if no condition found or unexpected token
      */
     public WhileNode parseWhile() throws SyntaxErrorException {
-        Token token = peek(0);
-        if(token.getTokenType() == Token.TokenType.WHILE){
+        Token.TokenType tokenType = peekType(0);
+        if(tokenType == Token.TokenType.WHILE){
             matchAndRemove(Token.TokenType.WHILE);
-            token = peek(0);
             Node condition = boolCompare();
             expectsEndOfLine();
             if(condition instanceof BooleanCompareNode) {
                 Collection<StatementNode> statements = statements();
                 WhileNode whileNode = new WhileNode((BooleanCompareNode) condition, statements  );
-                if(Shank.DEBUG) System.out.println("parseWhile(): Built " + whileNode);
+                if(Trace.PARSER_DEBUG) Trace.log(Trace.Category.PARSER, "parseWhile(): Built " + whileNode);
                 return whileNode;
             } else {
-                throw new SyntaxErrorException("Expected a condition for while loop, found: " + token);
+                throw new SyntaxErrorException("Expected a condition for while loop, found: " + condition);
             }
         } else {
-            throw  new SyntaxErrorException("Expected a while loop statement, found: " + token);
+            throw  new SyntaxErrorException("Expected a while loop statement, found: " + peek(0));
         }
     }
 
@@ -823,15 +948,15 @@ public class Parser {
      * @throws SyntaxErrorException if there was an error processing the IfNode statements.
      */
     public IfNode parseIf() throws SyntaxErrorException {
-        Token token = peek(0);
+        Token.TokenType tokenType = peekType(0);
         Node ifNode = new IfNode(null, null, null); //ifNode will be used to build the chain of linked IfNode statements.
-        if(token != null){
-            if(token.getTokenType() == Token.TokenType.IF || token.getTokenType() == Token.TokenType.ELSIF
-                        || token.getTokenType() == Token.TokenType.ELSE){
+        if(tokenType != null){
+            if(tokenType == Token.TokenType.IF || tokenType == Token.TokenType.ELSIF
+                        || tokenType == Token.TokenType.ELSE){
                 // Remove IF, ELSIF, ELSE
-                matchAndRemove(token.getTokenType());
+                matchAndRemove(tokenType);
                 // Only gather comparison if token is IF or ELSIF
-                if(token.getTokenType() != Token.TokenType.ELSE){
+                if(tokenType != Token.TokenType.ELSE){
                     // Gather comparison.
                     Node comparison = boolCompare();
                     if(comparison instanceof BooleanCompareNode){
@@ -840,28 +965,28 @@ public class Parser {
                         throw new SyntaxErrorException("Expected a boolean comparison for if statement, found " + comparison);
                     }
 
-                    if(Shank.DEBUG) System.out.println("parseIf() Found comparison " + ((IfNode) ifNode).getCondition());
+                    if(Trace.PARSER_DEBUG) Trace.log(Trace.Category.PARSER, "parseIf() Found comparison " + ((IfNode) ifNode).getCondition());
 
                     // Gather statements.
                     expectsToken(Token.TokenType.THEN);
                 }
                 expectsEndOfLine();
                 ((IfNode) ifNode).setStatements(statements());
-                if(Shank.DEBUG) System.out.println("parseIf(): Found statements " + ((IfNode) ifNode).getStatements());
+                if(Trace.PARSER_DEBUG) Trace.log(Trace.Category.PARSER, "parseIf(): Found statements " + ((IfNode) ifNode).getStatements());
 
-                token = peek(0);
+                tokenType = peekType(0);
                 // Check for more IfNodes.
-                if(token != null){
+                if(tokenType != null){
                     // If there are more ELSIF, recursively set ifNode.nextIf to parseIf()
-                    if(token.getTokenType() == Token.TokenType.ELSIF) {
-                        if (Shank.DEBUG) System.out.println("parseIf(): Building ESLIF node -------");
+                    if(tokenType == Token.TokenType.ELSIF) {
+                        if(Trace.PARSER_DEBUG) Trace.log(Trace.Category.PARSER, "parseIf(): Building ESLIF node -------");
                         ((IfNode) ifNode).setNextIf(parseIf());
-                    } else if(token.getTokenType() == Token.TokenType.ELSE){
-                        if (Shank.DEBUG) System.out.println("parseIf(): Building ELSE node -------");
+                    } else if(tokenType == Token.TokenType.ELSE){
+                        if(Trace.PARSER_DEBUG) Trace.log(Trace.Category.PARSER, "parseIf(): Building ELSE node -------");
                         ((IfNode) ifNode).setNextIf(parseIf());
                     } else {
                         // If no ELSIF, we're done processing the IfNode.
-                        System.out.println(Thread.currentThread().getStackTrace()[2].getMethodName() + "() -> parseIf(): Built ifNode: " + ifNode);
+                        if(Trace.PARSER_DEBUG) Trace.log(Trace.Category.PARSER, Thread.currentThread().getStackTrace()[2].getMethodName() + "() -> parseIf(): Built ifNode: " + ifNode);
 
                         return (IfNode) ifNode;
                     }
@@ -883,8 +1008,8 @@ public class Parser {
      * @throws SyntaxErrorException
      */
     public RepeatNode parseRepeat() throws SyntaxErrorException {
-        Token token = peek(0);
-        if(token != null){
+        Token.TokenType tokenType = peekType(0);
+        if(tokenType != null){
             matchAndRemove(Token.TokenType.REPEAT);
             matchAndRemove(Token.TokenType.UNTIL);
             Node condition = boolCompare();
@@ -911,78 +1036,45 @@ public class Parser {
     public FunctionCallNode parseFunctionCalls() throws SyntaxErrorException {
         // FunctionCall expects [] = optional, {} = 0 or more:
         // IDENTIFIER [PARAMETER] {,PARAMETER}
-        // Parameter is either VAR IDENTIFIER or boolCompare()
-        Token token = peek(0);
-        if(token != null){
-            if(token.getTokenType() == Token.TokenType.IDENTIFIER){
-                String functionName = token.getValue();
+        // Parameter is either VAR IDENTIFIER or expression()
+        Token.TokenType tokenType = peekType(0);
+        if(tokenType != null){
+            if(tokenType == Token.TokenType.IDENTIFIER){
+                String functionName = peekValue(0);
                 // Found function call name, process parameters...
                 matchAndRemove(Token.TokenType.IDENTIFIER);
-                token = peek(0);
-                if(token != null){
-                    if(token.getTokenType() == Token.TokenType.VAR || token.getTokenType() == Token.TokenType.IDENTIFIER){
-                        // Process parameters...
-                        Collection<ParameterNode> parameters = new ArrayList<>();
-                        while(token != null && token.getTokenType() != Token.TokenType.ENDOFLINE){
-                            // Keep processing until we reach ENDOFLINE.
-                            switch (token.getTokenType()){
-                                case VAR ->{
-                                    matchAndRemove(Token.TokenType.VAR);
-                                    token = peek(0);
-                                }
-                                case COMMA -> {
-                                    matchAndRemove(Token.TokenType.COMMA);
-                                    token = peek(0);
-                                }
-                                case IDENTIFIER -> {
-                                    ParameterNode parameter = new ParameterNode(expression());
-                                    parameters.add(parameter);
-                                    matchAndRemove(Token.TokenType.IDENTIFIER);
-                                    token = peek(0);
-                                }
-
+                tokenType = peekType(0);
+                Collection<ParameterNode> parameters = new ArrayList<>();
+                while(tokenType != null && tokenType != Token.TokenType.ENDOFLINE){
+                    // Keep processing until we reach ENDOFLINE.
+                    switch (tokenType){
+                        case VAR -> {
+                            // var parameters are passed by reference, so they have to be a variable.
+                            matchAndRemove(Token.TokenType.VAR);
+                            String name = peekValue(0);
+                            if(!matchAndRemove(Token.TokenType.IDENTIFIER)){
+                                throw new SyntaxErrorException("Expected a variable name after var, found: " + peek(0));
                             }
-
+                            parameters.add(new ParameterNode(new VariableReferenceNode(name)));
                         }
-
-                        // We've finished processing any parameters.
-                        expectsEndOfLine();
-                        return new FunctionCallNode(functionName, parameters);
-
-                    } else if(token.getTokenType() == Token.TokenType.ENDOFLINE){
-                        // No parameters.
-                        return new FunctionCallNode(functionName, null);
-                    } else {
-                        // Process expression() -> expect expression() COMMA expression() COMMA....
-                        //Node parameter = boolCompare();
-                        Collection<ParameterNode> parameters = new ArrayList<>();
-                        // Already processed function name, so now time to process parameters.
-                        parameters.add(new ParameterNode(expression()));
-                        if(Shank.DEBUG) System.out.println("Added parameter: " + parameters);
-                        token = peek(0);
-                        while(token != null){
-                            if(token.getTokenType() != Token.TokenType.ENDOFLINE){
-                                switch (token.getTokenType()){
-                                    case COMMA -> {
-                                        matchAndRemove(Token.TokenType.COMMA);
-                                        parameters.add(new ParameterNode(expression()));
-                                        token = peek(0);
-                                    }
-                                    default -> throw new SyntaxErrorException("Unexpected token while processing function call parameters: " + token);
-                                }
-                            } else {
-                                break;
+                        case COMMA -> matchAndRemove(Token.TokenType.COMMA);
+                        default -> {
+                            Node expression = expression();
+                            if(expression == null){
+                                throw new SyntaxErrorException("Unexpected token while processing function call parameters: " + peek(0));
                             }
+                            parameters.add(new ParameterNode(expression));
                         }
-
-                        return new FunctionCallNode(functionName, parameters);
                     }
-                } else {
-                    // No more tokens and no parameters.
-                    return new FunctionCallNode(functionName, null);
+                    tokenType = peekType(0);
                 }
+                if(Trace.PARSER_DEBUG) Trace.log(Trace.Category.PARSER, "Added parameters: " + parameters);
+
+                // We've finished processing any parameters.
+                expectsEndOfLine();
+                return new FunctionCallNode(functionName, parameters);
             } else {
-                throw new SyntaxErrorException("Expected to find an IDENTIFIER for function call, found: " + token);
+                throw new SyntaxErrorException("Expected to find an IDENTIFIER for function call, found: " + peek(0));
             }
         }
         throw new SyntaxErrorException("Expected to find function call, found nothing.");
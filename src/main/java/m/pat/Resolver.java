@@ -0,0 +1,96 @@
+package m.pat;
+
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * Name resolution pass, run over a function once before it is first interpreted.
+ * Every parameter and every constant/variable of the function gets a slot index (parameters
+ * first, in order, so arguments can be bound by position) and every VariableReferenceNode in
+ * the body is annotated with the slot of the variable it names. The interpreter then keeps
+ * the variables of a call in a flat array frame instead of a HashMap keyed by name.
+ */
+final class Resolver {
+
+    private final FunctionNode functionNode;
+    private final HashMap<String, Integer> slots = new HashMap<>();
+
+    private Resolver(FunctionNode functionNode){
+        this.functionNode = functionNode;
+    }
+
+    /**
+     * Resolves the variables of a function, if it hasn't been already. The body must have been parsed.
+     * @param functionNode the function to resolve
+     * @throws InterpreterErrorException if a name is declared twice, or the body refers to a variable that wasn't declared
+     */
+    static void resolve(FunctionNode functionNode) throws InterpreterErrorException {
+        if(functionNode.isResolved()) return;
+        Resolver resolver = new Resolver(functionNode);
+        int frameSize = 0;
+        for(VariableNode parameter : functionNode.getParameters()){
+            resolver.declare(parameter, frameSize++);
+        }
+        for(VariableNode constOrVar : functionNode.getConstAndVariables()){
+            resolver.declare(constOrVar, frameSize++);
+        }
+        resolver.statements(functionNode.getStatements());
+        functionNode.setFrameSize(frameSize);
+        if(Trace.INTERPRETER_DEBUG) Trace.log(Trace.Category.INTERPRETER, "Resolved " + functionNode.getName() + " (" + frameSize + " slots)");
+    }
+
+    /**
+     * Gives a parameter, constant or variable its slot. A name can only be declared once in a function,
+     * a second one would leave the slot of the first unreachable.
+     */
+    private void declare(VariableNode variable, int slot) throws InterpreterErrorException {
+        if(slots.putIfAbsent(variable.getName(), slot) != null)
+            throw new InterpreterErrorException("Variable '" + variable.getName() + "' is declared more than once in " + functionNode.getName() + ".");
+    }
+
+    private void statements(Collection<StatementNode> statements) throws InterpreterErrorException {
+        if(statements == null) return;
+        for(StatementNode statement : statements){
+            if(statement instanceof IfNode ifNode){
+                for(IfNode node = ifNode; node != null; node = node.next()){
+                    expression(node.getCondition());
+                    statements(node.getStatements());
+                }
+            } else if(statement instanceof ForNode forNode){
+                expression(forNode.getVarReference());
+                expression(forNode.getFrom());
+                expression(forNode.getTo());
+                statements(forNode.getStatements());
+            } else if(statement instanceof WhileNode whileNode){
+                expression(whileNode.getCondition());
+                statements(whileNode.getStatements());
+            } else if(statement instanceof RepeatNode repeatNode){
+                expression(repeatNode.getCondition());
+                statements(repeatNode.getStatements());
+            } else if(statement instanceof AssignmentNode assignment){
+                expression(assignment.getTarget());
+                expression(assignment.getValue());
+            } else if(statement instanceof FunctionCallNode call){
+                for(ParameterNode parameter : call.getParameters()){
+                    expression(parameter.isVar() ? parameter.getVariableRef() : parameter.getNode());
+                }
+            }
+        }
+    }
+
+    private void expression(Node node) throws InterpreterErrorException {
+        if(node instanceof VariableReferenceNode varRef){
+            Integer slot = slots.get(varRef.getName());
+            if(slot == null)
+                throw new InterpreterErrorException("Variable '" + varRef.getName() + "' does not exist or hasn't been declared in " + functionNode.getName() + ".");
+            varRef.setSlot(slot);
+            expression(varRef.getIndex());
+        } else if(node instanceof MathOpNode mathOp){
+            expression(mathOp.getLeft());
+            expression(mathOp.getRight());
+        } else if(node instanceof BooleanCompareNode compare){
+            expression(compare.getLeft());
+            expression(compare.getRight());
+        }
+    }
+}
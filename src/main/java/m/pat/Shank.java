@@ -2,16 +2,13 @@ package m.pat;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 
 public class Shank {
 
-    public static boolean DEBUG = true;
-
     // Shank Lexer Main
     public static void main(String[] args){
         // Check commandline arguments.
@@ -24,57 +21,74 @@ public class Shank {
             if (!file.exists()) {
                 System.err.println("Error: the file (" + file.getAbsolutePath() + ") does not exist.");
             } else {
-                System.out.println("File found. Attempting to lex...");
                 long lexStartTime = System.currentTimeMillis();
                 try {
-                    // Lex each line in the file.
-                    List<String> fileLines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
-                    Lexer lexer = new Lexer();
-                    Lexer.initialize();
-                    int errorCount = 0;
-                    for (String line : fileLines) {
-                        try{
-                            lexer.lex(line);
-                        } catch (LexerException e) {
-                            errorCount++; // Keep track of any errors.
-                            e.printStackTrace();
-                        }
+                    // An unchanged file can skip lexing and parsing.
+                    byte[] sourceHash = AstCache.hash(file.toPath());
+                    ProgramNode cachedProgram = AstCache.load(file.toPath(), sourceHash);
+                    if(cachedProgram != null){
+                        System.out.println("File found. Loaded cached parse (" + (System.currentTimeMillis() - lexStartTime) + " milliseconds)");
+                        interpret(cachedProgram);
+                        return;
+                    }
+                    System.out.println("File found. Attempting to lex...");
+                    // Lex each line in the file, large files are split up and lexed in parallel.
+                    List<LexerException> errors = new ArrayList<>();
+                    TokenBuffer tokens = ParallelLexer.lex(file.toPath(), ForkJoinPool.commonPool(), errors);
+                    int errorCount = errors.size(); // Keep track of any errors.
+                    for (LexerException e : errors) {
+                        e.printStackTrace();
                     }
-                    List<Token> tokenList = new ArrayList<>(lexer.getTokens());
                     long lexEndTime = System.currentTimeMillis();
                     System.out.println("Finished lexical analysis (" + (lexEndTime - lexStartTime) + " milliseconds)");
-                    System.out.println("Total tokens - " + tokenList.size() + " - Total errors - " + errorCount);
+                    System.out.println("Total tokens - " + tokens.size() + " - Total errors - " + errorCount);
                     long parseStartTime = System.currentTimeMillis();
                     if(errorCount == 0){
                         // Only move on if there are no errors in the lexical analysis.
-                        Parser parser = new Parser(tokenList);
                         ProgramNode programNode;
                         try{
-                            programNode = (ProgramNode) parser.parse();
+                            // Large programs have their functions parsed in parallel.
+                            programNode = ParallelParser.parse(tokens, file.length(), ForkJoinPool.commonPool());
                             if(programNode != null){
                                 long parseEndTime = System.currentTimeMillis();
                                 System.out.println("Finished parsing (" + (parseEndTime - parseStartTime) + " milliseconds)");
                                 System.out.println("ProgramNode: " + programNode);
-
-                                // Begin interpreting ProgramNode...
-                                System.out.println("----- BEGINNING INTERPRETATION -----");
-                                try{
-                                    TimeUnit.SECONDS.sleep(2);
-                                    System.out.print("\033[H\033[2J");
-                                    System.out.flush();
-                                } catch (InterruptedException e){
-                                    e.printStackTrace();
-                                }
+                                AstCache.store(file.toPath(), sourceHash, programNode);
+                                interpret(programNode);
                             }
                         } catch(SyntaxErrorException e){
                             e.printStackTrace();
                         }
                     }
                 } catch (IOException e) {
-                    System.err.println("Error reading all lines from file: ");
+                    System.err.println("Error reading lines from file: ");
                     e.printStackTrace();
                 }
             }
         }
     }
+
+    private static void interpret(ProgramNode programNode){
+        // Begin interpreting ProgramNode...
+        System.out.println("----- BEGINNING INTERPRETATION -----");
+        try{
+            TimeUnit.SECONDS.sleep(2);
+            System.out.print("\033[H\033[2J");
+            System.out.flush();
+        } catch (InterruptedException e){
+            e.printStackTrace();
+        }
+        try{
+            // Function bodies are only parsed when they are first called.
+            String engine = System.getProperty("shank.engine", "tree");
+            if(engine.equalsIgnoreCase("vm")){
+                new VirtualMachine(programNode).interpretProgram();
+            } else {
+                new Interpreter(programNode, engine.equalsIgnoreCase("closure")).interpretProgram();
+            }
+            System.out.println();
+        } catch (InterpreterErrorException e){
+            e.printStackTrace();
+        }
+    }
 }
@@ -0,0 +1,193 @@
+package m.pat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams the lines of a UTF-8 source file to the Lexer.
+ * The file is memory mapped a window at a time and decoded into a small reusable
+ * CharBuffer, and each line is handed out through the same reusable buffer, so the
+ * heap used while reading stays the same no matter how big the file is.
+ * Lines are split the same way as Files.readAllLines (\n, \r or \r\n).
+ */
+final class SourceReader implements Closeable {
+
+    private static final int WINDOW_SIZE = 1 << 24; // 16MB of the file mapped at a time.
+    private static final int CHUNK_SIZE = 8192;
+
+    private final FileChannel channel;
+    private final boolean ownsChannel;
+    private final long start;
+    private final long end;
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+    private final CharBuffer chars = CharBuffer.allocate(CHUNK_SIZE);
+    private final Line line = new Line();
+
+    private long windowStart;
+    private MappedByteBuffer window;
+    private boolean decoderFlushed;
+    private boolean skipLineFeed;
+    private int lineNumber;
+
+    /**
+     * Opens a reader over an entire file.
+     * @param path the file to read
+     * @throws IOException if the file can't be opened or mapped
+     */
+    SourceReader(Path path) throws IOException {
+        this(FileChannel.open(path, StandardOpenOption.READ), true, 0, -1);
+    }
+
+    /**
+     * Opens a reader over part of an already open file. The range should start at the
+     * beginning of a line. Closing the reader leaves the channel open.
+     * @param channel the file to read
+     * @param start the byte offset to start reading at
+     * @param end the byte offset to stop reading at
+     * @throws IOException if the file can't be read
+     */
+    SourceReader(FileChannel channel, long start, long end) throws IOException {
+        this(channel, false, start, end);
+    }
+
+    private SourceReader(FileChannel channel, boolean ownsChannel, long start, long end) throws IOException {
+        this.channel = channel;
+        this.ownsChannel = ownsChannel;
+        this.start = start;
+        this.end = end < 0 ? channel.size() : end;
+        this.windowStart = start;
+        this.chars.flip(); // Start with nothing decoded.
+    }
+
+    /**
+     * Advances to the next line of the file.
+     * @return false once there are no more lines
+     * @throws IOException if the file can't be read or is not valid UTF-8
+     */
+    boolean nextLine() throws IOException {
+        line.length = 0;
+        boolean readAnything = false;
+        while(chars.hasRemaining() || fill()){
+            char c = chars.get();
+            if(skipLineFeed){
+                skipLineFeed = false;
+                if(c == '\n') continue;
+            }
+            if(c == '\n' || c == '\r'){
+                skipLineFeed = c == '\r';
+                lineNumber++;
+                return true;
+            }
+            line.append(c);
+            readAnything = true;
+        }
+        if(readAnything){
+            // Last line without a line terminator.
+            lineNumber++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * The current line. The returned sequence is reused, and is only valid until the
+     * next call to {@link #nextLine()}.
+     * @return the characters of the current line, without the line terminator
+     */
+    CharSequence line(){
+        return line;
+    }
+
+    /**
+     * The 1-based number of the current line.
+     * @return the line number
+     */
+    int lineNumber(){
+        return lineNumber;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(ownsChannel) channel.close();
+    }
+
+    /**
+     * Decodes the next chunk of the file into chars.
+     * @return false if the end of the file has been reached
+     */
+    private boolean fill() throws IOException {
+        if(decoderFlushed) return false;
+        chars.clear();
+        while(chars.position() == 0){
+            if(window == null || !window.hasRemaining() && windowStart + window.limit() < end){
+                map(window == null ? start : windowStart + window.position());
+            }
+            boolean lastWindow = windowStart + window.limit() == end;
+            CoderResult result = decoder.decode(window, chars, lastWindow);
+            if(result.isError()) result.throwException();
+            if(lastWindow && !window.hasRemaining()){
+                decoder.flush(chars);
+                decoderFlushed = true;
+                break;
+            }
+            if(result.isUnderflow() && !lastWindow){
+                // Any bytes left are the start of a character split across windows.
+                map(windowStart + window.position());
+            }
+        }
+        chars.flip();
+        return chars.hasRemaining();
+    }
+
+    private void map(long position) throws IOException {
+        windowStart = position;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_SIZE, end - position));
+    }
+
+    /**
+     * Growable, reusable character buffer for a single line.
+     */
+    private static final class Line implements CharSequence {
+        private char[] buffer = new char[256];
+        private int length;
+
+        private void append(char c){
+            if(length == buffer.length){
+                char[] grown = new char[buffer.length * 2];
+                System.arraycopy(buffer, 0, grown, 0, length);
+                buffer = grown;
+            }
+            buffer[length++] = c;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if(index >= length) throw new IndexOutOfBoundsException(index);
+            return buffer[index];
+        }
+
+        @Override
+        public String subSequence(int start, int end) {
+            if(start < 0 || end > length || start > end) throw new IndexOutOfBoundsException(start);
+            return new String(buffer, start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(buffer, 0, length);
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package m.pat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Tail call elimination pass, run over a function after constant folding and before inlining. A call a
+ * function makes to itself as the last thing it does is turned into going around a loop, in the same
+ * frame, so deep recursion doesn't grow the Java stack. The body is wrapped in
+ * <pre>
+ *     while tail.again = true
+ *         tail.again := false
+ *         (locals back to their starting values)
+ *         body
+ * </pre>
+ * and each tail call assigns the parameters their new values and sets tail.again. A var parameter can
+ * only be passed along as itself, in the same place, so it stays bound to the same variable.
+ * <p>
+ * The usual way to return a result is through a var parameter set from a local passed to the recursive
+ * call, like the add in the README (add ..., var newSum then sum := newSum). When that var parameter is
+ * the only one, is never read and is assigned whichever way the function goes, the call is changed to pass
+ * it along directly, which makes it a tail call.
+ */
+final class TailCallEliminator {
+
+    private final FunctionNode functionNode;
+    private final List<VariableNode> parameters;
+    // The only var parameter, if it's never read and always assigned, so tail calls can be passed it
+    // instead of a local.
+    private int resultSlot = -1;
+
+    private TailCallEliminator(FunctionNode functionNode){
+        this.functionNode = functionNode;
+        this.parameters = new ArrayList<>(functionNode.getParameters());
+    }
+
+    /**
+     * Turns the self tail calls of a resolved, type checked and folded function into a loop.
+     * @param functionNode the function
+     */
+    static void eliminate(FunctionNode functionNode){
+        TailCallEliminator eliminator = new TailCallEliminator(functionNode);
+        eliminator.findResultSlot();
+        List<FunctionCallNode> tailCalls = new ArrayList<>();
+        eliminator.tailCalls(functionNode.getStatements(), tailCalls);
+        if(tailCalls.isEmpty()) return;
+        eliminator.loop(tailCalls);
+        if(Trace.INTERPRETER_DEBUG) Trace.log(Trace.Category.INTERPRETER, "Turned " + tailCalls.size() + " tail calls in " + functionNode.getName() + " into a loop");
+    }
+
+    private void findResultSlot(){
+        int varParameters = 0;
+        for(int slot = 0; slot < parameters.size(); slot++){
+            if(parameters.get(slot).isVar()){
+                varParameters++;
+                resultSlot = slot;
+            }
+        }
+        if(varParameters != 1 || reads(functionNode.getStatements(), resultSlot)
+                || !assigns(functionNode.getStatements(), resultSlot)) resultSlot = -1;
+    }
+
+    /**
+     * Whether statements assign a slot whichever way they go. A call passing the slot in its own place
+     * to the function itself counts, since every other way through the function assigns it. Without
+     * this, passing the result along would keep the caller's old value where the call would have set
+     * it to the local's starting value.
+     */
+    private boolean assigns(Collection<StatementNode> statements, int slot){
+        if(statements == null) return false;
+        for(StatementNode statement : statements){
+            if(statement instanceof AssignmentNode assignment){
+                if(isParameter(assignment.getTarget(), slot)) return true;
+            } else if(statement instanceof FunctionCallNode call){
+                if(isSelfCall(call) && passesVarParametersAlong(call)) return true;
+            } else if(statement instanceof IfNode ifNode){
+                boolean hasElse = false, everyBranch = true;
+                for(IfNode node = ifNode; node != null; node = node.next()){
+                    hasElse |= node.getCondition() == null;
+                    everyBranch &= assigns(node.getStatements(), slot);
+                }
+                if(hasElse && everyBranch) return true;
+            } else if(statement instanceof RepeatNode repeatNode){
+                // The only loop that always runs its body.
+                if(assigns(repeatNode.getStatements(), slot)) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Collects the self calls in tail position: the last statement of the body, or of a branch of an if
+     * that is. Calls that would need their var parameters bound to something else are left alone.
+     */
+    private void tailCalls(Collection<StatementNode> statements, List<FunctionCallNode> tailCalls){
+        if(statements == null || statements.isEmpty()) return;
+        List<StatementNode> list = (List<StatementNode>) statements;
+        StatementNode last = list.get(list.size() - 1);
+        if(last instanceof IfNode ifNode){
+            for(IfNode node = ifNode; node != null; node = node.next()){
+                tailCalls(node.getStatements(), tailCalls);
+            }
+        } else if(last instanceof FunctionCallNode call && isSelfCall(call)){
+            if(passesVarParametersAlong(call)) tailCalls.add(call);
+        } else if(last instanceof AssignmentNode assignment && list.size() >= 2
+                && list.get(list.size() - 2) instanceof FunctionCallNode call && isSelfCall(call)){
+            if(forwardsResult(call, assignment)){
+                list.remove(list.size() - 1);
+                tailCalls.add(call);
+            }
+        }
+    }
+
+    private boolean isSelfCall(FunctionCallNode call){
+        return call.getFunction() == functionNode;
+    }
+
+    private boolean passesVarParametersAlong(FunctionCallNode call){
+        int slot = 0;
+        for(ParameterNode argument : call.getParameters()){
+            if(argument.isVar() && !isParameter(argument.getVariableRef(), slot)) return false;
+            slot++;
+        }
+        return true;
+    }
+
+    /**
+     * Whether a self call followed by result := local, where the local is passed in the place of the
+     * result, can pass the result along instead. If it can, the call is changed to pass it.
+     */
+    private boolean forwardsResult(FunctionCallNode call, AssignmentNode assignment){
+        if(resultSlot < 0 || !isParameter(assignment.getTarget(), resultSlot)) return false;
+        if(!(assignment.getValue() instanceof VariableReferenceNode local) || local.getIndex() != null) return false;
+        ParameterNode passed = null;
+        int slot = 0;
+        for(ParameterNode argument : call.getParameters()){
+            if(slot == resultSlot) passed = argument;
+            // Passed anywhere else too, binding the result there would change what the call sees.
+            else if(argument.isVar() || reads(argument.getNode(), local.getSlot())) return false;
+            slot++;
+        }
+        if(passed == null || !passed.isVar() || passed.getVariableRef().getSlot() != local.getSlot()
+                || passed.getVariableRef().getIndex() != null || local.getSlot() < parameters.size())
+            return false;
+        List<ParameterNode> arguments = new ArrayList<>(call.getParameters());
+        arguments.set(resultSlot, new ParameterNode(reference(resultSlot, parameters.get(resultSlot).getName())));
+        call.getParameters().clear();
+        call.getParameters().addAll(arguments);
+        return true;
+    }
+
+    private static boolean isParameter(VariableReferenceNode varRef, int slot){
+        return varRef.getIndex() == null && varRef.getSlot() == slot;
+    }
+
+    /**
+     * Wraps the body in the loop and replaces the tail calls with the statements that start it over.
+     */
+    private void loop(List<FunctionCallNode> tailCalls){
+        // The locals to start over, before slots are added for the loop.
+        List<VariableNode> locals = new ArrayList<>(functionNode.getConstAndVariables());
+        VariableReferenceNode again = reference(declare(new BooleanNode(false), "tail.again"));
+        // The slot of the temporary for each parameter, once one is needed.
+        int[] temporaries = new int[parameters.size()];
+        Arrays.fill(temporaries, -1);
+
+        for(FunctionCallNode call : tailCalls){
+            replace(functionNode.getStatements(), call, restart(call, temporaries, again));
+        }
+
+        Collection<StatementNode> body = new ArrayList<>();
+        body.add(new AssignmentNode(again, new BooleanNode(false)));
+        int slot = parameters.size();
+        for(VariableNode local : locals){
+            body.add(new AssignmentNode(reference(slot++, local.getName()), ConstantFolder.copy(local.getType())));
+        }
+        body.addAll(functionNode.getStatements());
+        Collection<StatementNode> statements = new ArrayList<>();
+        statements.add(new AssignmentNode(reference(again), new BooleanNode(true)));
+        statements.add(new WhileNode(new BooleanEqualsNode(BooleanComparison.EQUALS, reference(again), new BooleanNode(true)), body));
+        functionNode.setBody(functionNode.getConstAndVariables(), statements);
+    }
+
+    /**
+     * The statements a tail call is replaced with: the non-var parameters get the arguments, through
+     * temporaries if more than one changes since the arguments can read them, then the loop goes again.
+     */
+    private List<StatementNode> restart(FunctionCallNode call, int[] temporaries, VariableReferenceNode again){
+        List<Integer> changed = new ArrayList<>();
+        List<Node> values = new ArrayList<>();
+        int slot = 0;
+        for(ParameterNode argument : call.getParameters()){
+            if(!argument.isVar()
+                    && !(argument.getNode() instanceof VariableReferenceNode varRef && isParameter(varRef, slot))){
+                changed.add(slot);
+                values.add(argument.getNode());
+            }
+            slot++;
+        }
+        List<StatementNode> statements = new ArrayList<>();
+        if(changed.size() == 1){
+            statements.add(new AssignmentNode(reference(changed.get(0), parameters.get(changed.get(0)).getName()), values.get(0)));
+        } else {
+            for(int i = 0; i < changed.size(); i++){
+                VariableNode parameter = parameters.get(changed.get(i));
+                if(temporaries[changed.get(i)] < 0)
+                    temporaries[changed.get(i)] = declare(parameter.getType(), "tail." + parameter.getName());
+                statements.add(new AssignmentNode(reference(temporaries[changed.get(i)], parameter.getName()), values.get(i)));
+            }
+            for(int i = 0; i < changed.size(); i++){
+                int parameter = changed.get(i);
+                statements.add(new AssignmentNode(reference(parameter, parameters.get(parameter).getName()),
+                        reference(temporaries[parameter], parameters.get(parameter).getName())));
+            }
+        }
+        statements.add(new AssignmentNode(reference(again), new BooleanNode(true)));
+        return statements;
+    }
+
+    /**
+     * Replaces a statement, wherever it is in the body, with others.
+     * @return whether it was found
+     */
+    private static boolean replace(Collection<StatementNode> statements, StatementNode statement, List<StatementNode> replacement){
+        if(statements == null) return false;
+        List<StatementNode> list = (List<StatementNode>) statements;
+        for(int i = 0; i < list.size(); i++){
+            StatementNode candidate = list.get(i);
+            if(candidate == statement){
+                list.remove(i);
+                list.addAll(i, replacement);
+                return true;
+            }
+            if(candidate instanceof IfNode ifNode){
+                for(IfNode node = ifNode; node != null; node = node.next()){
+                    if(replace(node.getStatements(), statement, replacement)) return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private int declare(Node type, String name){
+        functionNode.getConstAndVariables().add(new VariableNode(type, name, false));
+        int slot = functionNode.getFrameSize();
+        functionNode.setFrameSize(slot + 1);
+        return slot;
+    }
+
+    private VariableReferenceNode reference(int slot){
+        return reference(slot, "tail.again");
+    }
+
+    private static VariableReferenceNode reference(int slot, String name){
+        VariableReferenceNode varRef = new VariableReferenceNode(name);
+        varRef.setSlot(slot);
+        return varRef;
+    }
+
+    private static VariableReferenceNode reference(VariableReferenceNode varRef){
+        return reference(varRef.getSlot(), varRef.getName());
+    }
+
+    /**
+     * Whether a slot is read anywhere in some statements. Being assigned or counted by a for loop doesn't count,
+     * being passed to a call does, since it can read it.
+     */
+    private static boolean reads(Collection<StatementNode> statements, int slot){
+        if(statements == null) return false;
+        for(StatementNode statement : statements){
+            if(statement instanceof IfNode ifNode){
+                for(IfNode node = ifNode; node != null; node = node.next()){
+                    if(reads(node.getCondition(), slot) || reads(node.getStatements(), slot)) return true;
+                }
+            } else if(statement instanceof ForNode forNode){
+                if(reads(forNode.getVarReference(), slot) || reads(forNode.getFrom(), slot)
+                        || reads(forNode.getTo(), slot) || reads(forNode.getStatements(), slot)) return true;
+            } else if(statement instanceof WhileNode whileNode){
+                if(reads(whileNode.getCondition(), slot) || reads(whileNode.getStatements(), slot)) return true;
+            } else if(statement instanceof RepeatNode repeatNode){
+                if(reads(repeatNode.getCondition(), slot) || reads(repeatNode.getStatements(), slot)) return true;
+            } else if(statement instanceof AssignmentNode assignment){
+                if(reads(assignment.getTarget().getIndex(), slot) || reads(assignment.getValue(), slot)) return true;
+            } else if(statement instanceof FunctionCallNode call){
+                for(ParameterNode argument : call.getParameters()){
+                    if(reads(argument.isVar() ? argument.getVariableRef() : argument.getNode(), slot)) return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean reads(Node node, int slot){
+        if(node instanceof VariableReferenceNode varRef){
+            return varRef.getSlot() == slot || reads(varRef.getIndex(), slot);
+        } else if(node instanceof MathOpNode mathOp){
+            return reads(mathOp.getLeft(), slot) || reads(mathOp.getRight(), slot);
+        } else if(node instanceof BooleanCompareNode compare){
+            return reads(compare.getLeft(), slot) || reads(compare.getRight(), slot);
+        }
+        return false;
+    }
+}
@@ -108,7 +108,17 @@ public class Token {
      * @return BooleanComparison of compare type or null
      */
     public BooleanComparison isComparisonNode(){
-        switch(this.tokenType){
+        return comparisonOf(this.tokenType);
+    }
+
+    /**
+     * Helper function to determine whether a token type is a
+     * comparison or not, without needing the token itself.
+     * @param tokenType the token type to check
+     * @return BooleanComparison of compare type or null
+     */
+    static BooleanComparison comparisonOf(TokenType tokenType){
+        switch(tokenType){
             case EQUALS:
                 return BooleanComparison.EQUALS;
             case NOT_EQUAL:
@@ -0,0 +1,175 @@
+package m.pat;
+
+import java.util.Arrays;
+
+/**
+ * Compact, growable stream of tokens produced by the Lexer.
+ * Tokens are stored as parallel int arrays (type, text offset, text length, line)
+ * instead of one Token object each. Identifier, number and literal text is copied
+ * into a shared character pool, keywords and operators keep no text at all, and
+ * String/Token objects are only created when {@link #text(int)} or {@link #get(int)}
+ * is called.
+ */
+final class TokenBuffer {
+
+    private static final Token.TokenType[] TYPES = Token.TokenType.values();
+    private static final int NO_TEXT = -1;
+
+    private int[] types;
+    private int[] starts;
+    private int[] lengths;
+    private int[] lines;
+    private int size;
+
+    private char[] text;
+    private int textLength;
+
+    /**
+     * Creates an empty token buffer.
+     */
+    TokenBuffer(){
+        types = new int[1024];
+        starts = new int[1024];
+        lengths = new int[1024];
+        lines = new int[1024];
+        text = new char[4096];
+    }
+
+    /**
+     * Adds a token whose text is fixed by its type (keywords, operators, ENDOFLINE, INDENT...).
+     * @param tokenType the type of token
+     * @param line the line the token was found on
+     */
+    void add(Token.TokenType tokenType, int line){
+        ensureCapacity();
+        types[size] = tokenType.ordinal();
+        starts[size] = NO_TEXT;
+        lengths[size] = 0;
+        lines[size] = line;
+        size++;
+    }
+
+    /**
+     * Adds a token whose text is taken from source[start, end), such as an identifier or literal.
+     * @param tokenType the type of token
+     * @param source the line being lexed
+     * @param start first character of the token text
+     * @param end one past the last character of the token text
+     * @param line the line the token was found on
+     */
+    void add(Token.TokenType tokenType, CharSequence source, int start, int end, int line){
+        ensureCapacity();
+        int length = end - start;
+        if(textLength + length > text.length){
+            text = Arrays.copyOf(text, Math.max(text.length * 2, textLength + length));
+        }
+        for(int i = start; i < end; i++){
+            text[textLength++] = source.charAt(i);
+        }
+        types[size] = tokenType.ordinal();
+        starts[size] = textLength - length;
+        lengths[size] = length;
+        lines[size] = line;
+        size++;
+    }
+
+    /**
+     * Adds every token of another buffer to the end of this one.
+     * @param other the tokens to append
+     */
+    void append(TokenBuffer other){
+        int newSize = size + other.size;
+        if(newSize > types.length){
+            int capacity = Math.max(types.length * 2, newSize);
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+        }
+        if(textLength + other.textLength > text.length){
+            text = Arrays.copyOf(text, Math.max(text.length * 2, textLength + other.textLength));
+        }
+        System.arraycopy(other.types, 0, types, size, other.size);
+        System.arraycopy(other.lengths, 0, lengths, size, other.size);
+        System.arraycopy(other.lines, 0, lines, size, other.size);
+        for(int i = 0; i < other.size; i++){
+            int start = other.starts[i];
+            starts[size + i] = start == NO_TEXT ? NO_TEXT : start + textLength;
+        }
+        System.arraycopy(other.text, 0, text, textLength, other.textLength);
+        size = newSize;
+        textLength += other.textLength;
+    }
+
+    /**
+     * The number of tokens in the buffer.
+     * @return number of tokens
+     */
+    int size(){
+        return size;
+    }
+
+    /**
+     * The type of the token at an index.
+     * @param index the index of the token
+     * @return the token type
+     */
+    Token.TokenType type(int index){
+        return TYPES[types[index]];
+    }
+
+    /**
+     * The line the token at an index was found on.
+     * @param index the index of the token
+     * @return 1-based line number
+     */
+    int line(int index){
+        return lines[index];
+    }
+
+    /**
+     * Whether the token at an index has text of its own, rather than the fixed spelling of its type.
+     * @param index the index of the token
+     * @return true for identifiers, numbers and literals
+     */
+    boolean hasText(int index){
+        return starts[index] != NO_TEXT;
+    }
+
+    /**
+     * Materializes the text of the token at an index.
+     * @param index the index of the token
+     * @return the token text, the spelling of keywords and operators, or "" for ENDOFLINE/INDENT/DEDENT
+     */
+    String text(int index){
+        if(starts[index] == NO_TEXT){
+            Token.TokenType tokenType = type(index);
+            String spelling = KeywordTable.WORDS.spelling(tokenType);
+            if(spelling == null) spelling = KeywordTable.OPERATORS.spelling(tokenType);
+            return spelling == null ? "" : spelling;
+        }
+        return new String(text, starts[index], lengths[index]);
+    }
+
+    /**
+     * Materializes the token at an index. A new Token is built on every call, nothing
+     * is kept, so the buffer stays just its arrays. Only for error messages and tracing,
+     * use {@link #type(int)} and {@link #text(int)} for anything else.
+     * @param index the index of the token
+     * @return the token
+     */
+    Token get(int index){
+        if(index < 0 || index >= size) throw new IndexOutOfBoundsException(index);
+        return new Token(type(index), text(index));
+    }
+
+    private void ensureCapacity(){
+        if(size == types.length){
+            int capacity = size * 2;
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package m.pat;
+
+/**
+ * Level gated tracing for the lexer, parser and interpreter.
+ * The level of each category is read once from system properties when the class is
+ * loaded: -Dshank.trace=debug sets every category, and -Dshank.trace.parser=trace (or
+ * .lexer/.interpreter) sets a single one. The default level is INFO.
+ * The levels end up in static final booleans, and every call site is written as
+ * <pre>if(Trace.PARSER_DEBUG) Trace.log(Trace.Category.PARSER, "..." + node);</pre>
+ * so when a level is off the JIT sees a constant false branch and drops it, along with
+ * any string building inside of it.
+ */
+final class Trace {
+
+    enum Level {
+        OFF,   // Nothing at all.
+        INFO,  // Warnings and major phases.
+        DEBUG, // What was built (functions, statements, declarations...).
+        TRACE  // Every token.
+    }
+
+    enum Category {
+        LEXER,
+        PARSER,
+        INTERPRETER
+    }
+
+    static final Level LEXER_LEVEL = level(Category.LEXER);
+    static final Level PARSER_LEVEL = level(Category.PARSER);
+    static final Level INTERPRETER_LEVEL = level(Category.INTERPRETER);
+
+    static final boolean LEXER_TRACE = LEXER_LEVEL.compareTo(Level.TRACE) >= 0;
+
+    static final boolean PARSER_INFO = PARSER_LEVEL.compareTo(Level.INFO) >= 0;
+    static final boolean PARSER_DEBUG = PARSER_LEVEL.compareTo(Level.DEBUG) >= 0;
+    static final boolean PARSER_TRACE = PARSER_LEVEL.compareTo(Level.TRACE) >= 0;
+
+    static final boolean INTERPRETER_INFO = INTERPRETER_LEVEL.compareTo(Level.INFO) >= 0;
+    static final boolean INTERPRETER_DEBUG = INTERPRETER_LEVEL.compareTo(Level.DEBUG) >= 0;
+
+    private Trace(){}
+
+    /**
+     * Writes a trace message. Callers check the matching level constant first.
+     * @param category the part of Shank the message is from
+     * @param message the message to write
+     */
+    static void log(Category category, String message){
+        System.out.println("[" + category.name().toLowerCase() + "] " + message);
+    }
+
+    private static Level level(Category category){
+        String value = System.getProperty("shank.trace." + category.name().toLowerCase(),
+                System.getProperty("shank.trace", Level.INFO.name()));
+        try{
+            return Level.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown trace level '" + value + "' for " + category + ", using INFO.");
+            return Level.INFO;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package m.pat;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Static type checking pass, run over a function after the Resolver and before it is first interpreted.
+ * Every declaration has a type, so the type of every expression is known before the function runs.
+ * The checker works those out, reports mismatches, and rewrites each MathOpNode and BooleanCompareNode
+ * into the type specialized node for its operand types (IntegerMathOpNode, RealCompareNode,
+ * ConcatenationNode...), which the interpreter evaluates without checking the operand types again.
+ * Calls to user functions are checked against their signatures, which are always parsed.
+ */
+final class TypeChecker {
+
+    enum Type {
+        INTEGER, REAL, STRING, CHARACTER, BOOLEAN
+    }
+
+    private final FunctionNode functionNode;
+    private final ProgramNode program;
+    private final Type[] slotTypes;
+    private final boolean[] constantSlots;
+
+    private TypeChecker(FunctionNode functionNode, ProgramNode program){
+        this.functionNode = functionNode;
+        this.program = program;
+        this.slotTypes = new Type[functionNode.getFrameSize()];
+        this.constantSlots = new boolean[functionNode.getFrameSize()];
+    }
+
+    /**
+     * Type checks a resolved function, if it hasn't been already.
+     * @param functionNode the function to check
+     * @param program the program the function is in, for the signatures of called functions
+     * @throws InterpreterErrorException if there is a type error
+     */
+    static void check(FunctionNode functionNode, ProgramNode program) throws InterpreterErrorException {
+        if(functionNode.isTypeChecked()) return;
+        TypeChecker checker = new TypeChecker(functionNode, program);
+        // Same slot order as the Resolver, parameters first.
+        int slot = 0;
+        for(VariableNode parameter : functionNode.getParameters()){
+            checker.slotTypes[slot++] = checker.declaredType(parameter);
+        }
+        for(VariableNode constOrVar : functionNode.getConstAndVariables()){
+            checker.constantSlots[slot] = constOrVar.isConstant();
+            checker.slotTypes[slot++] = checker.declaredType(constOrVar);
+        }
+        checker.statements(functionNode.getStatements());
+        functionNode.setTypeChecked();
+        if(Trace.INTERPRETER_DEBUG) Trace.log(Trace.Category.INTERPRETER, "Type checked " + functionNode.getName());
+    }
+
+    /**
+     * The type a declaration's type node stands for.
+     * @param type the type node of a VariableNode
+     * @return the type, or null if it isn't one
+     */
+    static Type typeOf(Node type){
+        if(type instanceof IntegerNode) return Type.INTEGER;
+        if(type instanceof FloatNode) return Type.REAL;
+        if(type instanceof StringNode) return Type.STRING;
+        if(type instanceof CharacterNode) return Type.CHARACTER;
+        if(type instanceof BooleanNode) return Type.BOOLEAN;
+        return null;
+    }
+
+    private Type declaredType(VariableNode variable) throws InterpreterErrorException {
+        Type type = typeOf(variable.getType());
+        if(type == null)
+            throw error("'" + variable.getName() + "' has no type");
+        return type;
+    }
+
+    private void statements(Collection<StatementNode> statements) throws InterpreterErrorException {
+        if(statements == null) return;
+        for(StatementNode statement : statements){
+            if(statement instanceof IfNode ifNode){
+                for(IfNode node = ifNode; node != null; node = node.next()){
+                    if(node.getCondition() != null) node.setCondition(condition(node.getCondition()));
+                    statements(node.getStatements());
+                }
+            } else if(statement instanceof ForNode forNode){
+                expect(Type.INTEGER, writable(forNode.getVarReference()), "for loop variable");
+                forNode.setFrom(expect(Type.INTEGER, forNode.getFrom(), "for loop from"));
+                forNode.setTo(expect(Type.INTEGER, forNode.getTo(), "for loop to"));
+                statements(forNode.getStatements());
+            } else if(statement instanceof WhileNode whileNode){
+                whileNode.setCondition(condition(whileNode.getCondition()));
+                statements(whileNode.getStatements());
+            } else if(statement instanceof RepeatNode repeatNode){
+                repeatNode.setCondition(condition(repeatNode.getCondition()));
+                statements(repeatNode.getStatements());
+            } else if(statement instanceof AssignmentNode assignment){
+                Type target = type(writable(assignment.getTarget()));
+                Node value = rewrite(assignment.getValue());
+                if(type(value) != target)
+                    throw error("can't assign " + type(value) + " to " + target + " '" + assignment.getTarget().getName() + "'");
+                assignment.setValue(value);
+            } else if(statement instanceof FunctionCallNode call){
+                functionCall(call);
+            }
+        }
+    }
+
+    /**
+     * Checks a call against the signature of the function or built-in it calls, and binds it to it.
+     */
+    private void functionCall(FunctionCallNode call) throws InterpreterErrorException {
+        List<Type> arguments = new ArrayList<>();
+        for(ParameterNode parameter : call.getParameters()){
+            if(parameter.isVar()){
+                arguments.add(type(writable(parameter.getVariableRef())));
+            } else {
+                parameter.setNode(rewrite(parameter.getNode()));
+                arguments.add(type(parameter.getNode()));
+            }
+        }
+        FunctionNode function = program.getFunction(call.getName());
+        if(function == null){
+            BuiltIn builtIn = BuiltIn.get(call.getName());
+            if(builtIn == null)
+                throw error("function '" + call.getName() + "' does not exist");
+            builtInCall(call, builtIn, arguments);
+            call.setFunction(builtIn);
+            return;
+        }
+        if(function.getParameters().size() != arguments.size())
+            throw error(call.getName() + " expects " + function.getParameters().size() + " parameters, found " + arguments.size());
+        Iterator<ParameterNode> parameter = call.getParameters().iterator();
+        Iterator<Type> argument = arguments.iterator();
+        for(VariableNode declared : function.getParameters()){
+            // var parameters have to be passed a variable with var.
+            if(declared.isVar() != parameter.next().isVar())
+                throw error("parameter '" + declared.getName() + "' of " + call.getName()
+                        + (declared.isVar() ? " must" : " can't") + " be passed with var");
+            Type type = argument.next();
+            if(typeOf(declared.getType()) != type)
+                throw error("parameter '" + declared.getName() + "' of " + call.getName() + " can't be passed " + type);
+        }
+        call.setFunction(function);
+    }
+
+    /**
+     * Checks a call to a built-in. Built-ins are passed the variable itself when it's passed without var too,
+     * so their var parameters can be passed a variable either way, but not anything else.
+     */
+    private void builtInCall(FunctionCallNode call, BuiltIn builtIn, List<Type> arguments) throws InterpreterErrorException {
+        List<VariableNode> declared = new ArrayList<>(builtIn.getParameters());
+        if(!builtIn.isVariadic() && declared.size() != arguments.size())
+            throw error(call.getName() + " expects " + declared.size() + " parameters, found " + arguments.size());
+        int i = 0;
+        for(ParameterNode parameter : call.getParameters()){
+            VariableNode expected = declared.get(builtIn.isVariadic() ? 0 : i);
+            if(parameter.isVar() && !expected.isVar())
+                throw error("parameter '" + expected.getName() + "' of " + call.getName() + " can't be passed with var");
+            if(expected.isVar() && !parameter.isVar()){
+                if(!(parameter.getNode() instanceof VariableReferenceNode varRef))
+                    throw error("parameter '" + expected.getName() + "' of " + call.getName() + " must be passed a variable");
+                writable(varRef);
+            }
+            Type type = arguments.get(i);
+            if(expected.getType() != null && typeOf(expected.getType()) != type)
+                throw error("parameter '" + expected.getName() + "' of " + call.getName() + " can't be passed " + type);
+            i++;
+        }
+    }
+
+    /**
+     * Checks a variable being assigned, counted with or passed with var isn't a constant.
+     * @return the variable
+     */
+    private VariableReferenceNode writable(VariableReferenceNode varRef) throws InterpreterErrorException {
+        if(constantSlots[varRef.getSlot()])
+            throw error("can't change constant '" + varRef.getName() + "'");
+        return varRef;
+    }
+
+    private BooleanCompareNode condition(BooleanCompareNode condition) throws InterpreterErrorException {
+        return (BooleanCompareNode) rewrite(condition);
+    }
+
+    private Node expect(Type expected, Node node, String what) throws InterpreterErrorException {
+        Node rewritten = rewrite(node);
+        Type type = type(rewritten);
+        if(type != expected)
+            throw error(what + " must be " + expected + ", found " + type);
+        return rewritten;
+    }
+
+    /**
+     * Rewrites the math operations and comparisons in an expression into their specialized nodes.
+     * @return the rewritten expression
+     */
+    private Node rewrite(Node node) throws InterpreterErrorException {
+        if(node instanceof MathOpNode mathOp){
+            Node left = rewrite(mathOp.getLeft());
+            Node right = rewrite(mathOp.getRight());
+            Type leftType = type(left);
+            Type rightType = type(right);
+            MathOp operation = mathOp.getOperation();
+            if(operation == MathOp.PLUS && (leftType == Type.STRING || rightType == Type.STRING)){
+                return new ConcatenationNode(left, right);
+            } else if(leftType == Type.INTEGER && rightType == Type.INTEGER){
+                return new IntegerMathOpNode(operation, left, right);
+            } else if(leftType == Type.REAL && rightType == Type.REAL && operation != MathOp.MOD){
+                return new RealMathOpNode(operation, left, right);
+            }
+            throw error("can't " + operation + " " + leftType + " and " + rightType);
+        } else if(node instanceof BooleanCompareNode compare){
+            Node left = rewrite(compare.getLeft());
+            Node right = rewrite(compare.getRight());
+            Type leftType = type(left);
+            Type rightType = type(right);
+            BooleanComparison comparison = compare.getComparison();
+            if(leftType != rightType)
+                throw error("can't compare " + leftType + " and " + rightType);
+            boolean equality = comparison == BooleanComparison.EQUALS || comparison == BooleanComparison.NOT_EQUALS;
+            switch(leftType){
+                case INTEGER -> {
+                    return new IntegerCompareNode(comparison, left, right);
+                }
+                case REAL -> {
+                    return new RealCompareNode(comparison, left, right);
+                }
+                case CHARACTER -> {
+                    return new CharacterCompareNode(comparison, left, right);
+                }
+                case STRING -> {
+                    if(equality) return new StringEqualsNode(comparison, left, right);
+                }
+                case BOOLEAN -> {
+                    if(equality) return new BooleanEqualsNode(comparison, left, right);
+                }
+            }
+            throw error(comparison + " comparison can only be done on integers, floats or characters");
+        } else if(node instanceof VariableReferenceNode varRef && varRef.getIndex() != null){
+            varRef.setIndex(expect(Type.INTEGER, varRef.getIndex(), "array index"));
+        }
+        return node;
+    }
+
+    /**
+     * The type of an expression that has already been rewritten.
+     */
+    private Type type(Node node) throws InterpreterErrorException {
+        if(node instanceof IntegerNode || node instanceof IntegerMathOpNode) return Type.INTEGER;
+        if(node instanceof FloatNode || node instanceof RealMathOpNode) return Type.REAL;
+        if(node instanceof StringNode || node instanceof ConcatenationNode) return Type.STRING;
+        if(node instanceof CharacterNode) return Type.CHARACTER;
+        if(node instanceof BooleanNode || node instanceof BooleanCompareNode) return Type.BOOLEAN;
+        if(node instanceof VariableReferenceNode varRef) return slotTypes[varRef.getSlot()];
+        throw error("invalid expression " + node);
+    }
+
+    private InterpreterErrorException error(String message){
+        return new InterpreterErrorException("Type error in function " + functionNode.getName() + ": " + message + ".");
+    }
+}
@@ -0,0 +1,253 @@
+package m.pat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Runs a program as Bytecode instead of walking the AST like the Interpreter does.
+ * Each function is compiled by the BytecodeCompiler the first time it's called, after it has been
+ * parsed, resolved and type checked the same way as for the Interpreter, and then run by a loop
+ * that switches on one opcode at a time.
+ */
+public class VirtualMachine {
+
+    private final ProgramNode program;
+    private final HashMap<FunctionNode, Bytecode> bytecodes = new HashMap<>();
+
+    /**
+     * Instantiates the VM for a program from the Parser.
+     * @param program the program to run
+     */
+    VirtualMachine(ProgramNode program){
+        this.program = program;
+    }
+
+    /**
+     * Runs the program, starting at the start function.
+     * @throws InterpreterErrorException if there is no start function, or running it fails
+     */
+    public void interpretProgram() throws InterpreterErrorException {
+        FunctionNode start = program.getFunction("start");
+        if(start == null)
+            throw new InterpreterErrorException("No start function was found.");
+        if(!start.getParameters().isEmpty())
+            throw new InterpreterErrorException("The start function can't have parameters.");
+        call(getBytecode(start), new Object[0], 0, 0);
+    }
+
+    /**
+     * The Bytecode for a function, which isn't compiled until the function is first called.
+     * @param function the function
+     * @return the same Bytecode every time for the same function
+     */
+    Bytecode getBytecode(FunctionNode function){
+        return bytecodes.computeIfAbsent(function, Bytecode::new);
+    }
+
+    /**
+     * Calls a function, compiling it first if this is the first call.
+     * @param function the function to call
+     * @param arguments the stack the arguments are on, IDTs in parameter order
+     * @param offset the index of the first argument
+     * @param count the number of arguments
+     */
+    private void call(Bytecode function, Object[] arguments, int offset, int count) throws InterpreterErrorException {
+        if(!function.isCompiled()){
+            Interpreter.prepare(function.function, program);
+            BytecodeCompiler.compile(function, this);
+        }
+        if(function.jitted == null && !function.jitFailed && JitCompiler.ENABLED && ++function.heat >= JitCompiler.THRESHOLD){
+            function.jitted = JitCompiler.compile(function, this);
+            function.jitFailed = function.jitted == null;
+            function.jitChecksArguments = JitCompiler.mayAliasVarParameters(function.function);
+        }
+        if(function.jitted != null){
+            InterpreterDataType[] jitArguments = new InterpreterDataType[count];
+            System.arraycopy(arguments, offset, jitArguments, 0, count);
+            if(!function.jitChecksArguments || distinct(jitArguments)){
+                function.jitted.run(this, jitArguments);
+                return;
+            }
+        }
+        InterpreterDataType[] frame = new InterpreterDataType[function.frameSize];
+        // Var parameters are passed the caller's IDT and the others a copy, either way the callee uses it as it is.
+        int slot = 0;
+        for(; slot < count; slot++){
+            frame[slot] = (InterpreterDataType) arguments[offset + slot];
+        }
+        for(VariableNode constOrVar : function.function.getConstAndVariables()){
+            frame[slot++] = constOrVar.getDataType();
+        }
+        // The rest are the hidden for loop counters.
+        while(slot < frame.length){
+            frame[slot++] = new IntegerDataType();
+        }
+        run(function, frame);
+    }
+
+    /**
+     * Calls a function from JIT compiled code.
+     * @param function the function to call
+     * @param arguments the arguments, IDTs in parameter order
+     */
+    void invoke(Bytecode function, InterpreterDataType[] arguments) throws InterpreterErrorException {
+        call(function, arguments, 0, arguments.length);
+    }
+
+    /**
+     * Calls a built-in from JIT compiled code.
+     * @param builtIn the built-in to call
+     * @param arguments the arguments, IDTs in parameter order
+     */
+    void invokeBuiltIn(BuiltIn builtIn, InterpreterDataType[] arguments){
+        builtIn.execute(Arrays.asList(arguments));
+    }
+
+    /**
+     * Whether no IDT is passed twice, so var parameters can't share one.
+     */
+    private static boolean distinct(InterpreterDataType[] arguments){
+        for(int i = 0; i < arguments.length; i++){
+            for(int j = i + 1; j < arguments.length; j++){
+                if(arguments[i] == arguments[j]) return false;
+            }
+        }
+        return true;
+    }
+
+    private void run(Bytecode function, InterpreterDataType[] frame) throws InterpreterErrorException {
+        final int[] code = function.code;
+        final Object[] constants = function.constants;
+        final int[] ints = new int[function.intStackSize];
+        final Object[] objects = new Object[function.objectStackSize];
+        int intTop = 0, objectTop = 0;
+        int pc = 0;
+        while(true){
+            switch(code[pc++]){
+                case Bytecode.ICONST -> ints[intTop++] = code[pc++];
+                case Bytecode.SCONST -> objects[objectTop++] = constants[code[pc++]];
+
+                case Bytecode.LOAD_I -> ints[intTop++] = ((IntegerDataType) frame[code[pc++]]).getInteger();
+                case Bytecode.LOAD_F -> ints[intTop++] = Float.floatToRawIntBits(((RealDataType) frame[code[pc++]]).getReal());
+                case Bytecode.LOAD_C -> ints[intTop++] = ((CharacterDataType) frame[code[pc++]]).getCharacter();
+                case Bytecode.LOAD_B -> ints[intTop++] = ((BooleanDataType) frame[code[pc++]]).getBoolean() ? 1 : 0;
+                case Bytecode.LOAD_S -> objects[objectTop++] = ((StringDataType) frame[code[pc++]]).getString();
+                case Bytecode.LOAD_REF -> objects[objectTop++] = frame[code[pc++]];
+                case Bytecode.STORE_I -> ((IntegerDataType) frame[code[pc++]]).setInteger(ints[--intTop]);
+                case Bytecode.STORE_F -> ((RealDataType) frame[code[pc++]]).setReal(Float.intBitsToFloat(ints[--intTop]));
+                case Bytecode.STORE_C -> ((CharacterDataType) frame[code[pc++]]).setCharacter((char) ints[--intTop]);
+                case Bytecode.STORE_B -> ((BooleanDataType) frame[code[pc++]]).setBoolean(ints[--intTop] != 0);
+                case Bytecode.STORE_S -> ((StringDataType) frame[code[pc++]]).setString((String) objects[--objectTop]);
+                case Bytecode.INC -> {
+                    IntegerDataType counter = (IntegerDataType) frame[code[pc++]];
+                    counter.setInteger(counter.getInteger() + 1);
+                }
+
+                case Bytecode.IADD -> { intTop--; ints[intTop - 1] += ints[intTop]; }
+                case Bytecode.ISUB -> { intTop--; ints[intTop - 1] -= ints[intTop]; }
+                case Bytecode.IMUL -> { intTop--; ints[intTop - 1] *= ints[intTop]; }
+                case Bytecode.IDIV -> {
+                    intTop--;
+                    if(ints[intTop] == 0)
+                        throw new InterpreterErrorException("Division by zero.");
+                    ints[intTop - 1] /= ints[intTop];
+                }
+                case Bytecode.IMOD -> {
+                    intTop--;
+                    if(ints[intTop] == 0)
+                        throw new InterpreterErrorException("Division by zero.");
+                    ints[intTop - 1] %= ints[intTop];
+                }
+                case Bytecode.FADD -> { intTop--; ints[intTop - 1] = real(real(ints[intTop - 1]) + real(ints[intTop])); }
+                case Bytecode.FSUB -> { intTop--; ints[intTop - 1] = real(real(ints[intTop - 1]) - real(ints[intTop])); }
+                case Bytecode.FMUL -> { intTop--; ints[intTop - 1] = real(real(ints[intTop - 1]) * real(ints[intTop])); }
+                case Bytecode.FDIV -> {
+                    intTop--;
+                    if(real(ints[intTop]) == 0)
+                        throw new InterpreterErrorException("Division by zero.");
+                    ints[intTop - 1] = real(real(ints[intTop - 1]) / real(ints[intTop]));
+                }
+                case Bytecode.CONCAT -> {
+                    objectTop--;
+                    objects[objectTop - 1] = (String) objects[objectTop - 1] + objects[objectTop];
+                }
+
+                case Bytecode.IEQ -> { intTop--; ints[intTop - 1] = ints[intTop - 1] == ints[intTop] ? 1 : 0; }
+                case Bytecode.INE -> { intTop--; ints[intTop - 1] = ints[intTop - 1] != ints[intTop] ? 1 : 0; }
+                case Bytecode.ILT -> { intTop--; ints[intTop - 1] = ints[intTop - 1] < ints[intTop] ? 1 : 0; }
+                case Bytecode.IGT -> { intTop--; ints[intTop - 1] = ints[intTop - 1] > ints[intTop] ? 1 : 0; }
+                case Bytecode.ILE -> { intTop--; ints[intTop - 1] = ints[intTop - 1] <= ints[intTop] ? 1 : 0; }
+                case Bytecode.IGE -> { intTop--; ints[intTop - 1] = ints[intTop - 1] >= ints[intTop] ? 1 : 0; }
+                case Bytecode.FEQ -> { intTop--; ints[intTop - 1] = real(ints[intTop - 1]) == real(ints[intTop]) ? 1 : 0; }
+                case Bytecode.FNE -> { intTop--; ints[intTop - 1] = real(ints[intTop - 1]) != real(ints[intTop]) ? 1 : 0; }
+                case Bytecode.FLT -> { intTop--; ints[intTop - 1] = real(ints[intTop - 1]) < real(ints[intTop]) ? 1 : 0; }
+                case Bytecode.FGT -> { intTop--; ints[intTop - 1] = real(ints[intTop - 1]) > real(ints[intTop]) ? 1 : 0; }
+                case Bytecode.FLE -> { intTop--; ints[intTop - 1] = real(ints[intTop - 1]) <= real(ints[intTop]) ? 1 : 0; }
+                case Bytecode.FGE -> { intTop--; ints[intTop - 1] = real(ints[intTop - 1]) >= real(ints[intTop]) ? 1 : 0; }
+                case Bytecode.SEQ -> {
+                    objectTop -= 2;
+                    ints[intTop++] = objects[objectTop].equals(objects[objectTop + 1]) ? 1 : 0;
+                }
+                case Bytecode.SNE -> {
+                    objectTop -= 2;
+                    ints[intTop++] = objects[objectTop].equals(objects[objectTop + 1]) ? 0 : 1;
+                }
+
+                // Strings are made the same way the IDT's toString() would.
+                case Bytecode.I2S -> objects[objectTop++] = Integer.toString(ints[--intTop]);
+                case Bytecode.F2S -> objects[objectTop++] = Float.toString(real(ints[--intTop]));
+                case Bytecode.C2S -> objects[objectTop++] = String.valueOf((char) ints[--intTop]);
+                case Bytecode.B2S -> objects[objectTop++] = Boolean.toString(ints[--intTop] != 0);
+                case Bytecode.BOX_I -> objects[objectTop++] = new IntegerDataType(ints[--intTop]);
+                case Bytecode.BOX_F -> objects[objectTop++] = new RealDataType(real(ints[--intTop]));
+                case Bytecode.BOX_C -> objects[objectTop++] = new CharacterDataType((char) ints[--intTop]);
+                case Bytecode.BOX_B -> objects[objectTop++] = new BooleanDataType(ints[--intTop] != 0);
+                case Bytecode.BOX_S -> objects[objectTop - 1] = new StringDataType((String) objects[objectTop - 1]);
+
+                case Bytecode.JUMP -> {
+                    // Going back around a loop warms the function up for the JIT.
+                    if(code[pc] < pc) function.heat++;
+                    pc = code[pc];
+                }
+                case Bytecode.JUMP_IF_FALSE -> {
+                    if(ints[--intTop] != 0){
+                        pc++;
+                    } else {
+                        if(code[pc] < pc) function.heat++;
+                        pc = code[pc];
+                    }
+                }
+                case Bytecode.CALL -> {
+                    Bytecode callee = (Bytecode) constants[code[pc++]];
+                    int count = code[pc++];
+                    objectTop -= count;
+                    call(callee, objects, objectTop, count);
+                }
+                case Bytecode.CALL_BUILTIN -> {
+                    BuiltIn builtIn = (BuiltIn) constants[code[pc++]];
+                    int count = code[pc++];
+                    objectTop -= count;
+                    List<InterpreterDataType> arguments = new ArrayList<>(count);
+                    for(int i = 0; i < count; i++){
+                        arguments.add((InterpreterDataType) objects[objectTop + i]);
+                    }
+                    builtIn.execute(arguments);
+                }
+                case Bytecode.RETURN -> {
+                    return;
+                }
+                default -> throw new InterpreterErrorException("Invalid opcode " + code[pc - 1] + " in " + function.function.getName() + ".");
+            }
+        }
+    }
+
+    private static float real(int bits){
+        return Float.intBitsToFloat(bits);
+    }
+
+    private static int real(float value){
+        return Float.floatToRawIntBits(value);
+    }
+}